@@ -0,0 +1,256 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010 - 2011, Tomasz Blaszczynski, Emanuele Zattin
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jvnet.hudson.plugins.periodicbackup;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.logging.Logger;
+
+/**
+ *
+ * BackupCatalog lists the backups stored in a directory, so that they can be listed without reading every BackupObject file.
+ *
+ * The catalog is a text file to which a line is appended whenever a backup is stored or deleted:
+ * "+ TAB timestamp TAB parentTimestamp TAB storage class TAB volume:size,... TAB BackupObject file name TAB FileManager name"
+ * for a stored backup and "- TAB timestamp" for a deleted one. The FileManager name may be missing.
+ * When the deleted backups outnumber the stored ones the catalog is rewritten.
+ */
+public class BackupCatalog {
+
+    public final static String FILE_NAME = "periodicbackup.catalog";
+    private final static String ADDED = "+";
+    private final static String DELETED = "-";
+    private final static String NONE = "-";
+    private static final Logger LOGGER = Logger.getLogger(BackupCatalog.class.getName());
+
+    private final File catalogFile;
+    private int deletedLines;                                               // Number of "deleted" lines in the catalog file
+
+    public BackupCatalog(File directory) {
+        this.catalogFile = new File(directory, FILE_NAME);
+    }
+
+    public synchronized boolean exists() {
+        return catalogFile.exists();
+    }
+
+    /**
+     *
+     * Reads the backups listed in the catalog
+     *
+     * @return the backups sorted by timestamp
+     * @throws IOException If an IO problem occurs
+     */
+    public synchronized List<Entry> read() throws IOException {
+        SortedMap<Date, Entry> entries = Maps.newTreeMap();
+        deletedLines = 0;
+        if(!catalogFile.exists()) {
+            return Lists.newArrayList();
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(catalogFile), Charsets.UTF_8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 7);
+                try {
+                    if(fields.length >= 6 && fields[0].equals(ADDED)) {
+                        Entry entry = new Entry(new Date(Long.parseLong(fields[1])),
+                                fields[2].equals(NONE) ? null : new Date(Long.parseLong(fields[2])),
+                                fields[3], parseVolumes(fields[4]), fields[5], fields.length == 7 ? fields[6] : null);
+                        entries.put(entry.getTimestamp(), entry);
+                    }
+                    else if(fields.length == 2 && fields[0].equals(DELETED)) {
+                        entries.remove(new Date(Long.parseLong(fields[1])));
+                        deletedLines++;
+                    }
+                    else {
+                        LOGGER.warning("Skipping invalid line in " + catalogFile.getAbsolutePath() + ": " + line);
+                    }
+                } catch (NumberFormatException e) {
+                    // A line cut short by an interrupted write
+                    LOGGER.warning("Skipping invalid line in " + catalogFile.getAbsolutePath() + ": " + line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return Lists.newArrayList(entries.values());
+    }
+
+    /**
+     *
+     * Appends a stored backup to the catalog
+     *
+     * @param entry the stored backup
+     * @throws IOException If an IO problem occurs
+     */
+    public synchronized void add(Entry entry) throws IOException {
+        append(format(entry));
+    }
+
+    /**
+     *
+     * Appends a deleted backup to the catalog, the catalog is compacted when needed
+     *
+     * @param timestamp timestamp of the deleted backup
+     * @throws IOException If an IO problem occurs
+     */
+    public synchronized void remove(Date timestamp) throws IOException {
+        append(DELETED + "\t" + timestamp.getTime());
+        List<Entry> entries = read();
+        if(deletedLines > entries.size()) {
+            rewrite(entries);
+        }
+    }
+
+    /**
+     *
+     * Replaces the content of the catalog
+     *
+     * @param entries the backups to list
+     * @throws IOException If an IO problem occurs
+     */
+    public synchronized void rewrite(List<Entry> entries) throws IOException {
+        File temporaryFile = new File(catalogFile.getParentFile(), FILE_NAME + ".tmp");
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temporaryFile), Charsets.UTF_8));
+        try {
+            for (Entry entry : entries) {
+                writer.write(format(entry) + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+        if(catalogFile.exists() && !catalogFile.delete()) {
+            throw new IOException("Could not delete " + catalogFile.getAbsolutePath());
+        }
+        if(!temporaryFile.renameTo(catalogFile)) {
+            throw new IOException("Could not rename " + temporaryFile.getAbsolutePath() + " to " + catalogFile.getAbsolutePath());
+        }
+        deletedLines = 0;
+    }
+
+    private void append(String line) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(catalogFile, true), Charsets.UTF_8);
+        try {
+            writer.write(line + "\n");
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static String format(Entry entry) {
+        StringBuilder volumes = new StringBuilder();
+        for (Map.Entry<String, Long> volume : entry.getVolumes().entrySet()) {
+            if(volumes.length() > 0) {
+                volumes.append(',');
+            }
+            volumes.append(volume.getKey()).append(':').append(volume.getValue());
+        }
+        return ADDED + "\t" + entry.getTimestamp().getTime() + "\t" +
+                (entry.getParentTimestamp() == null ? NONE : String.valueOf(entry.getParentTimestamp().getTime())) + "\t" +
+                entry.getStorageType() + "\t" + volumes + "\t" + entry.getBackupObjectFileName() +
+                (entry.getFileManagerName() == null ? "" : "\t" + entry.getFileManagerName());
+    }
+
+    private static Map<String, Long> parseVolumes(String field) {
+        Map<String, Long> volumes = Maps.newLinkedHashMap();
+        if(field.length() == 0) {
+            return volumes;
+        }
+        for (String volume : field.split(",")) {
+            int separator = volume.lastIndexOf(':');
+            volumes.put(volume.substring(0, separator), Long.parseLong(volume.substring(separator + 1)));
+        }
+        return volumes;
+    }
+
+    /**
+     *
+     * Entry describes a backup stored in the directory
+     */
+    public static class Entry {
+
+        private final Date timestamp;
+        private final Date parentTimestamp;
+        private final String storageType;                                   // Class name of the Storage which created the archives
+        private final Map<String, Long> volumes;                            // Archive file name -> size
+        private final String backupObjectFileName;
+        private final String fileManagerName;                               // Display name of the FileManager, null if unknown
+
+        public Entry(Date timestamp, Date parentTimestamp, String storageType, Map<String, Long> volumes, String backupObjectFileName) {
+            this(timestamp, parentTimestamp, storageType, volumes, backupObjectFileName, null);
+        }
+
+        public Entry(Date timestamp, Date parentTimestamp, String storageType, Map<String, Long> volumes, String backupObjectFileName,
+                     String fileManagerName) {
+            this.timestamp = timestamp;
+            this.parentTimestamp = parentTimestamp;
+            this.storageType = storageType;
+            this.volumes = volumes;
+            this.backupObjectFileName = backupObjectFileName;
+            this.fileManagerName = fileManagerName;
+        }
+
+        public Date getTimestamp() {
+            return timestamp;
+        }
+
+        public Date getParentTimestamp() {
+            return parentTimestamp;
+        }
+
+        public String getStorageType() {
+            return storageType;
+        }
+
+        public Map<String, Long> getVolumes() {
+            return Collections.unmodifiableMap(volumes);
+        }
+
+        public String getBackupObjectFileName() {
+            return backupObjectFileName;
+        }
+
+        public String getFileManagerName() {
+            return fileManagerName;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010 - 2011, Tomasz Blaszczynski, Emanuele Zattin
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jvnet.hudson.plugins.periodicbackup;
+
+import com.google.common.collect.Lists;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ *
+ * BackupEvent emits Flight Recorder events around the slow parts of the backup and of the restore, so that they can be
+ * correlated with the garbage collections, the I/O and the lock contention of the same recording. The events carry
+ * the number of files, the number of bytes, a path and whether the work succeeded.
+ * The plugin is built for JVMs without Flight Recorder, so the event types are defined when the plugin is loaded with
+ * jdk.jfr.EventFactory, through reflection. When Flight Recorder is not available or the event is not being recorded,
+ * begin() returns a Span which does nothing.
+ */
+public class BackupEvent {
+
+    public final static BackupEvent SCAN = new BackupEvent("Scan", "Backup Scan", "Files to back up collected by the FileManager");
+    public final static BackupEvent ADD_FILES = new BackupEvent("AddFiles", "Backup Add Files", "Batch of files added to a Storage");
+    public final static BackupEvent CLOSE_VOLUME = new BackupEvent("CloseVolume", "Backup Close Volume", "Backup archive completed by a Storage");
+    public final static BackupEvent STORE = new BackupEvent("Store", "Backup Store", "Backup archives stored in a Location");
+    public final static BackupEvent RETRIEVE = new BackupEvent("Retrieve", "Backup Retrieve", "Backup archives retrieved from a Location");
+    public final static BackupEvent UNARCHIVE = new BackupEvent("Unarchive", "Backup Unarchive", "Backup archives extracted by a Storage");
+    public final static BackupEvent RESTORE = new BackupEvent("Restore", "Backup Restore", "Extracted files restored by the RestorePolicy");
+
+    private final static Span NOT_RECORDING = new Span(null);
+    private static final Logger LOGGER = Logger.getLogger(BackupEvent.class.getName());
+
+    private static Method newEvent;                                         // EventFactory.newEvent()
+    private static Method begin;                                            // Event.begin()
+    private static Method set;                                              // Event.set(int, Object)
+    private static Method commit;                                           // Event.commit()
+    private static Method isEnabled;                                        // EventType.isEnabled()
+
+    private final Object factory;                                           // EventFactory of this event, null without Flight Recorder
+    private final Object eventType;
+
+    private BackupEvent(String name, String label, String description) {
+        Object factory = null;
+        Object eventType = null;
+        try {
+            Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+            Class<?> annotationElementClass = Class.forName("jdk.jfr.AnnotationElement");
+            Class<?> valueDescriptorClass = Class.forName("jdk.jfr.ValueDescriptor");
+            Constructor<?> annotationElement = annotationElementClass.getConstructor(Class.class, Object.class);
+            Constructor<?> valueDescriptor = valueDescriptorClass.getConstructor(Class.class, String.class);
+            List<Object> annotations = Lists.newArrayList(
+                    annotationElement.newInstance(Class.forName("jdk.jfr.Name"), BackupEvent.class.getPackage().getName() + "." + name),
+                    annotationElement.newInstance(Class.forName("jdk.jfr.Label"), label),
+                    annotationElement.newInstance(Class.forName("jdk.jfr.Description"), description),
+                    annotationElement.newInstance(Class.forName("jdk.jfr.Category"), new String[] {"Jenkins", "Periodic Backup"}));
+            // The order of the fields is the one used by Span.commit
+            List<Object> fields = Lists.newArrayList(
+                    valueDescriptor.newInstance(long.class, "files"),
+                    valueDescriptor.newInstance(long.class, "bytes"),
+                    valueDescriptor.newInstance(String.class, "path"),
+                    valueDescriptor.newInstance(boolean.class, "successful"));
+            factory = factoryClass.getMethod("create", List.class, List.class).invoke(null, annotations, fields);
+            eventType = factoryClass.getMethod("getEventType").invoke(factory);
+            synchronized (BackupEvent.class) {
+                if (newEvent == null) {
+                    Class<?> eventClass = Class.forName("jdk.jfr.Event");
+                    begin = eventClass.getMethod("begin");
+                    set = eventClass.getMethod("set", int.class, Object.class);
+                    commit = eventClass.getMethod("commit");
+                    isEnabled = Class.forName("jdk.jfr.EventType").getMethod("isEnabled");
+                    newEvent = factoryClass.getMethod("newEvent");
+                }
+            }
+        } catch (ClassNotFoundException e) {
+            // This JVM has no Flight Recorder
+            factory = null;
+        } catch (Throwable t) {
+            LOGGER.log(Level.FINE, "Could not define the Flight Recorder event " + name, t);
+            factory = null;
+        }
+        this.factory = factory;
+        this.eventType = factory != null ? eventType : null;
+    }
+
+    /**
+     *
+     * @return true if the event is being recorded
+     */
+    public boolean isRecording() {
+        if (factory == null) {
+            return false;
+        }
+        try {
+            return (Boolean) isEnabled.invoke(eventType);
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     *
+     * Starts timing an event
+     *
+     * @return the Span to commit once the work is done
+     */
+    public Span begin() {
+        if (!isRecording()) {
+            return NOT_RECORDING;
+        }
+        try {
+            Object event = newEvent.invoke(factory);
+            begin.invoke(event);
+            return new Span(event);
+        } catch (Exception e) {
+            return NOT_RECORDING;
+        }
+    }
+
+    /**
+     *
+     * An event being timed
+     */
+    public static class Span {
+
+        private final Object event;                                         // null when not recording
+
+        private Span(Object event) {
+            this.event = event;
+        }
+
+        /**
+         *
+         * @return true if the event is recorded, so that the values given to commit are worth computing
+         */
+        public boolean isRecording() {
+            return event != null;
+        }
+
+        /**
+         *
+         * Ends the event and records it
+         *
+         * @param files number of files processed
+         * @param bytes number of bytes processed, 0 if unknown
+         * @param path file, directory or location processed
+         */
+        public void commit(long files, long bytes, String path) {
+            commit(files, bytes, path, true);
+        }
+
+        /**
+         *
+         * Ends the event and records it, also when the work has failed
+         *
+         * @param files number of files processed
+         * @param bytes number of bytes processed, 0 if unknown
+         * @param path file, directory or location processed
+         * @param successful false if the work has failed
+         */
+        public void commit(long files, long bytes, String path, boolean successful) {
+            if (event == null) {
+                return;
+            }
+            try {
+                set.invoke(event, 0, files);
+                set.invoke(event, 1, bytes);
+                set.invoke(event, 2, path);
+                set.invoke(event, 3, successful);
+                commit.invoke(event);
+            } catch (Exception e) {
+                LOGGER.log(Level.FINE, "Could not commit the Flight Recorder event", e);
+            }
+        }
+    }
+}
@@ -24,9 +24,15 @@
 
 package org.jvnet.hudson.plugins.periodicbackup;
 
+import com.google.common.base.Predicates;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import hudson.util.DaemonThreadFactory;
 import hudson.util.DescribableList;
+import hudson.util.ExceptionCatchingThreadFactory;
+import org.apache.commons.io.FileUtils;
 import org.codehaus.plexus.archiver.ArchiverException;
 
 import java.io.File;
@@ -34,12 +40,20 @@ import java.io.IOException;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class BackupExecutor {
 
-    private final Set<File> filesToBackup = Sets.newHashSet();
+    // Number of files in each Flight Recorder event of the files added to the storages
+    private static final int EVENT_BATCH_SIZE = 1000;
     private static final Logger LOGGER = Logger.getLogger(BackupExecutor.class.getName());
 
     public void backup(FileManager fileManager,
@@ -47,14 +61,27 @@ public class BackupExecutor {
                        DescribableList<Location, LocationDescriptor> locations,
                        String tempDirectory,
                        int cycleQuantity,
-                       int cycleDays) throws ArchiverException, PeriodicBackupException, IOException {
-        long start = System.currentTimeMillis(); // Measure the duration of the backup
-        // Collecting files for backup
-        for(File f: fileManager.getFilesToBackup()) {
-            filesToBackup.add(f);
+                       int cycleDays,
+                       int locationConcurrency) throws ArchiverException, PeriodicBackupException, IOException {
+        BackupMetrics metrics = BackupMetrics.startBackup();
+        boolean successful = false;
+        try {
+            backup(fileManager, storages, locations, tempDirectory, cycleQuantity, cycleDays, locationConcurrency, metrics);
+            successful = true;
+        } finally {
+            metrics.finish(successful);
         }
+    }
 
-        File backupObjectFile;
+    private void backup(FileManager fileManager,
+                        DescribableList<Storage, StorageDescriptor> storages,
+                        DescribableList<Location, LocationDescriptor> locations,
+                        String tempDirectory,
+                        int cycleQuantity,
+                        int cycleDays,
+                        int locationConcurrency,
+                        BackupMetrics metrics) throws ArchiverException, PeriodicBackupException, IOException {
+        long start = System.currentTimeMillis(); // Measure the duration of the backup
         Date timestamp = new Date(); // Timestamp for the BackupObject
         String fileNameBase = Util.generateFileNameBase(timestamp);
 
@@ -63,59 +90,341 @@ public class BackupExecutor {
         Calendar timeThreshold = Calendar.getInstance();
         timeThreshold.add(Calendar.DAY_OF_MONTH, (-1 * cycleDays));
 
-        // Creating backup archives for each storage defined
-        for (Storage storage : storages) {
-            storage.backupStart(tempDirectory, fileNameBase);
-            for (File fileToBackup : filesToBackup) {
-                storage.backupAddFile(fileToBackup);
+        List<Location> enabledLocations = Lists.newArrayList();
+        for (Location location : locations) {
+            if(location.enabled) {
+                enabledLocations.add(location);
             }
-            Iterable<File> archives = storage.backupStop();
-            for (Location location : locations) {
-                // Sends all the backup archives and backup files to all the active locations
-                if(location.enabled) {
-                    BackupObject backupObject = new BackupObject(fileManager, storage, location, timestamp);
-                    backupObjectFile = Util.createBackupObjectFile(backupObject, tempDirectory, fileNameBase);
-                    location.storeBackupInLocation(archives, backupObjectFile);
-
-                    // Delete the temporary BackupObject file
-                    LOGGER.info("Deleting the temporary file " + backupObjectFile.getAbsolutePath());
-                    if (!backupObjectFile.delete()) {
-                        LOGGER.warning("Could not delete " + backupObjectFile.getAbsolutePath());
-                    }
-
-                    List<BackupObject> backupsInLocation = Lists.newArrayList(location.getAvailableBackups());
-                    LOGGER.info("Checking for redundant and old backups in the location.");
+            else {
+                LOGGER.info(location.getDisplayName() + " is disabled, ignoring.");
+            }
+        }
 
-                    int index1 = -1; // index in backupsInLocation if the number of backups exceeds the allowed one
-                    int index2 = -1; // index in backupsInLocation if the backups are older than allowed
+        // The archives of each storage are sent to all the enabled locations at the same time,
+        // locationConcurrency limits how many locations are being written to simultaneously
+        int threads = enabledLocations.size();
+        if(locationConcurrency > 0 && locationConcurrency < threads) {
+            threads = locationConcurrency;
+        }
+        ExecutorService distributor = Executors.newFixedThreadPool(Math.max(threads, 1),
+                new ExceptionCatchingThreadFactory(new DaemonThreadFactory()));
+        List<String> failedLocations = Lists.newArrayList();
+        // Storages able to stream write their archives straight into the locations able to receive them,
+        // the temporary directory is used only for the other locations
+        Map<Storage, List<BackupSink>> locationSinks = Maps.newHashMap();
+        Map<Storage, TeeSink> openSinks = Maps.newHashMap();
+        Map<Storage, DirectorySink> tempSinks = Maps.newHashMap();
+        List<Storage> startedStorages = Lists.newArrayList();               // Storages started and not stopped yet
 
-                    if (backupsInLocation.size() > cycleQuantity) {
-                        index1 = backupsInLocation.size() - cycleQuantity;
+        try {
+            // Files are added to the archives of every storage as soon as the FileManager finds them
+            for (Storage storage : storages) {
+                storage.setTargetLocations(enabledLocations);
+                List<BackupSink> sinks = storage.isStreamingSupported() ? openLocationSinks(enabledLocations) : null;
+                if (sinks == null) {
+                    storage.backupStart(tempDirectory, fileNameBase);
+                    startedStorages.add(storage);
+                    continue;
+                }
+                List<BackupSink> targets = Lists.newArrayList(Iterables.filter(sinks, Predicates.notNull()));
+                if (targets.size() < sinks.size()) {
+                    DirectorySink tempSink = new DirectorySink(new File(tempDirectory));
+                    targets.add(tempSink);
+                    tempSinks.put(storage, tempSink);
+                }
+                TeeSink teeSink = new TeeSink(targets);
+                locationSinks.put(storage, sinks);
+                openSinks.put(storage, teeSink);
+                storage.backupStart(teeSink, fileNameBase);
+                startedStorages.add(storage);
+            }
+            FilePipeline pipeline = new FilePipeline(fileManager, FilePipeline.DEFAULT_CAPACITY);
+            BackupMetrics.Phase scanPhase = metrics.getPhase(BackupMetrics.SCAN);
+            Map<Storage, BackupMetrics.Phase> compressPhases = Maps.newHashMap();
+            for (Storage storage : storages) {
+                compressPhases.put(storage, metrics.getPhase(BackupMetrics.COMPRESS, storage.getDisplayName()));
+            }
+            pipeline.start();
+            try {
+                File fileToBackup;
+                // The files are added to the storages in batches of EVENT_BATCH_SIZE files for the Flight Recorder
+                BackupEvent.Span event = BackupEvent.ADD_FILES.begin();
+                long batchFiles = 0;
+                long batchBytes = 0;
+                while ((fileToBackup = pipeline.take()) != null) {
+                    long length = fileToBackup.length();
+                    scanPhase.count(1, length);
+                    String archivePath = fileManager.getArchivePath(fileToBackup);
+                    for (Storage storage : storages) {
+                        // The reads of the file are governed by the streams the storage reads it through
+                        long addStart = System.nanoTime();
+                        storage.backupAddFile(fileToBackup, archivePath);
+                        compressPhases.get(storage).record(addStart, 1, length);
                     }
-                    for (BackupObject backupObj : backupsInLocation) {
-                        if(backupObj.getTimestamp().before(timeThreshold.getTime())) {
-                            index2++;
+                    if (event.isRecording()) {
+                        batchBytes += length;
+                        if (++batchFiles == EVENT_BATCH_SIZE) {
+                            event.commit(batchFiles, batchBytes, fileToBackup.getAbsolutePath());
+                            event = BackupEvent.ADD_FILES.begin();
+                            batchFiles = 0;
+                            batchBytes = 0;
                         }
                     }
-                    if(index1 != -1 || index2 != -1) {
-                        for (int index = 0; index <= Math.max(index1, index2); index++) {
-                            location.deleteBackupFiles(backupsInLocation.get(index));
+                }
+                if (batchFiles > 0) {
+                    event.commit(batchFiles, batchBytes, fileManager.getDisplayName());
+                }
+            } finally {
+                pipeline.cancel();
+                scanPhase.addNanos(pipeline.getScanNanos());
+            }
+            // Incremental backups depend on their parent backup and record the files deleted since then
+            Date parentTimestamp = fileManager.getParentTimestamp();
+            List<String> deletedFiles = Lists.newArrayList(fileManager.getDeletedFiles());
+
+            // Finalizing the backup archives for each storage defined
+            for (Storage storage : storages) {
+                long stopStart = System.nanoTime();
+                // backupStop releases the resources of the storage even when it fails
+                startedStorages.remove(storage);
+                Iterable<File> archives = storage.backupStop();
+                compressPhases.get(storage).record(stopStart, 0, 0);
+                List<BackupSink> sinks = locationSinks.get(storage);
+                TeeSink teeSink = openSinks.remove(storage);
+                DirectorySink tempSink = tempSinks.get(storage);
+                boolean tempArchivesMissing = false;
+                if (tempSink != null) {
+                    tempArchivesMissing = teeSink.getFailure(tempSink) != null;
+                    if (!tempArchivesMissing) {
+                        tempSink.commit(null);
+                    }
+                    else {
+                        tempSink.abort();
+                    }
+                    archives = tempSink.getArchives();
+                }
+                // The size of the streamed archives is only known where they have been written
+                for (File archive : archives) {
+                    compressPhases.get(storage).addOutputBytes(archive.length());
+                }
+
+                // Sends all the backup archives and backup files to all the active locations
+                Map<Location, Future<Void>> transfers = Maps.newLinkedHashMap();
+                for (int i = 0; i < enabledLocations.size(); i++) {
+                    Location location = enabledLocations.get(i);
+                    BackupSink sink = sinks != null ? sinks.get(i) : null;
+                    if ((sink != null && teeSink.getFailure(sink) != null) || (sinks != null && sink == null && tempArchivesMissing)) {
+                        LOGGER.warning("The archives could not be written for " + location.getDisplayName());
+                        if (sink != null) {
+                            sink.abort();
                         }
+                        failedLocations.add(location.getDisplayName());
+                        continue;
                     }
+                    // Every location gets its own BackupObject file, so they are kept in separate subdirectories
+                    File backupObjectDirectory = new File(tempDirectory, "location_" + (i + 1));
+                    transfers.put(location, distributor.submit(new LocationTransfer(fileManager, storage, location, archives, sink,
+                            timestamp, parentTimestamp, deletedFiles, backupObjectDirectory, fileNameBase, cycleQuantity, timeThreshold, metrics)));
+                }
+                // A failing location does not prevent the other ones from receiving the backup
+                for (Map.Entry<Location, Future<Void>> transfer : transfers.entrySet()) {
+                    Location location = transfer.getKey();
+                    try {
+                        transfer.getValue().get();
+                    } catch (ExecutionException e) {
+                        LOGGER.log(Level.WARNING, "Could not store the backup in " + location.getDisplayName(), e.getCause());
+                        failedLocations.add(location.getDisplayName());
+                    } catch (InterruptedException e) {
+                        throw new PeriodicBackupException("Interrupted while storing the backup in " + location.getDisplayName());
+                    }
+                }
+
+                // Delete the temporary archive files
+                for (File f : archives) {
+                    LOGGER.info("Deleting temporary file " + f.getAbsolutePath());
+                    if (!f.delete()) {
+                        LOGGER.warning("Could not delete " + f.getAbsolutePath());
+                    }
+                }
+            }
+        } finally {
+            distributor.shutdownNow();
+            for (Storage storage : startedStorages) {
+                storage.backupAbort();
+            }
+            // Archives of an interrupted backup are not left behind in the locations
+            for (TeeSink teeSink : openSinks.values()) {
+                teeSink.abort();
+            }
+        }
+        if(!failedLocations.isEmpty()) {
+            throw new PeriodicBackupException("Backup could not be stored in " + failedLocations);
+        }
+        fileManager.backupFinished(timestamp);
+        LOGGER.info("Backup finished successfully after " + (System.currentTimeMillis() - start) + " ms" );
+    }
+
+    /**
+     *
+     * Opens a BackupSink in each location able to receive streams
+     *
+     * @param enabledLocations locations receiving the backup
+     * @return the sinks in the order of the locations, null for the locations which do not stream,
+     *         or null if none of the locations can stream
+     */
+    private static List<BackupSink> openLocationSinks(List<Location> enabledLocations) {
+        List<BackupSink> sinks = Lists.newArrayList();
+        boolean streaming = false;
+        for (Location location : enabledLocations) {
+            BackupSink sink = null;
+            try {
+                sink = location.openBackupSink();
+            } catch (IOException e) {
+                LOGGER.warning("Could not stream the backup to " + location.getDisplayName() + ", using the temporary directory. " + e.getMessage());
+            }
+            streaming |= sink != null;
+            sinks.add(sink);
+        }
+        return streaming ? sinks : null;
+    }
+
+    /**
+     *
+     * Deletes the backups in the given location that exceed the allowed amount or are older than allowed
+     *
+     * @param location Location to check
+     * @param cycleQuantity maximum amount of backups allowed in the location
+     * @param timeThreshold backups older than this will be deleted
+     */
+    private static void deleteRedundantBackups(Location location, int cycleQuantity, Calendar timeThreshold) {
+        List<BackupObject> backupsInLocation = Lists.newArrayList(location.getAvailableBackups());
+        LOGGER.info("Checking for redundant and old backups in the location.");
+
+        int index1 = -1; // index in backupsInLocation if the number of backups exceeds the allowed one
+        int index2 = -1; // index in backupsInLocation if the backups are older than allowed
+
+        if (backupsInLocation.size() > cycleQuantity) {
+            index1 = backupsInLocation.size() - cycleQuantity;
+        }
+        for (BackupObject backupObj : backupsInLocation) {
+            if(backupObj.getTimestamp().before(timeThreshold.getTime())) {
+                index2++;
+            }
+        }
+        if(index1 != -1 || index2 != -1) {
+            int lastIndexToDelete = Math.min(Math.max(index1, index2), backupsInLocation.size() - 1);
+            // Backups which the kept incremental backups are based upon cannot be deleted
+            Map<Date, BackupObject> backupsByTimestamp = Maps.newHashMap();
+            for (BackupObject backupObj : backupsInLocation) {
+                backupsByTimestamp.put(backupObj.getTimestamp(), backupObj);
+            }
+            Set<Date> requiredTimestamps = Sets.newHashSet();
+            for (int index = lastIndexToDelete + 1; index < backupsInLocation.size(); index++) {
+                Date parentTimestamp = backupsInLocation.get(index).getParentTimestamp();
+                while (parentTimestamp != null && requiredTimestamps.add(parentTimestamp) && backupsByTimestamp.containsKey(parentTimestamp)) {
+                    parentTimestamp = backupsByTimestamp.get(parentTimestamp).getParentTimestamp();
+                }
+            }
+            for (int index = 0; index <= lastIndexToDelete; index++) {
+                BackupObject backupObj = backupsInLocation.get(index);
+                if(requiredTimestamps.contains(backupObj.getTimestamp())) {
+                    LOGGER.info("Keeping " + backupObj.getDisplayName() + " since newer backups are based upon it");
                 }
                 else {
-                    LOGGER.info(location.getDisplayName() + " is disabled, ignoring.");
+                    location.deleteBackupFiles(backupObj);
                 }
             }
+        }
+    }
+
+    /**
+     *
+     * Stores the archives created by one Storage in one Location and cleans up the old backups there afterwards.
+     * When the archives have been streamed into the location the sink is committed instead.
+     */
+    private static class LocationTransfer implements Callable<Void> {
+
+        private final FileManager fileManager;
+        private final Storage storage;
+        private final Location location;
+        private final Iterable<File> archives;
+        private final BackupSink sink;
+        private final Date timestamp;
+        private final Date parentTimestamp;
+        private final List<String> deletedFiles;
+        private final File backupObjectDirectory;
+        private final String fileNameBase;
+        private final int cycleQuantity;
+        private final Calendar timeThreshold;
+        private final BackupMetrics metrics;
 
-            // Delete the temporary archive files
-            for (File f : archives) {
-                LOGGER.info("Deleting temporary file " + f.getAbsolutePath());
-                if (!f.delete()) {
-                    LOGGER.warning("Could not delete " + f.getAbsolutePath());
+        LocationTransfer(FileManager fileManager, Storage storage, Location location, Iterable<File> archives, BackupSink sink, Date timestamp,
+                         Date parentTimestamp, List<String> deletedFiles, File backupObjectDirectory, String fileNameBase,
+                         int cycleQuantity, Calendar timeThreshold, BackupMetrics metrics) {
+            this.fileManager = fileManager;
+            this.storage = storage;
+            this.location = location;
+            this.archives = archives;
+            this.sink = sink;
+            this.timestamp = timestamp;
+            this.parentTimestamp = parentTimestamp;
+            this.deletedFiles = deletedFiles;
+            this.backupObjectDirectory = backupObjectDirectory;
+            this.fileNameBase = fileNameBase;
+            this.cycleQuantity = cycleQuantity;
+            this.timeThreshold = timeThreshold;
+            this.metrics = metrics;
+        }
+
+        public Void call() throws Exception {
+            long start = System.currentTimeMillis();
+            if(!backupObjectDirectory.isDirectory() && !backupObjectDirectory.mkdirs()) {
+                throw new IOException("Could not create " + backupObjectDirectory.getAbsolutePath());
+            }
+            boolean stored = false;
+            long transferStart = System.nanoTime();
+            long archivesSize = 0;
+            int archivesCount = 0;
+            if (sink == null) {
+                for (File archive : archives) {
+                    archivesSize += archive.length();
+                    archivesCount++;
+                }
+            }
+            BackupEvent.Span event = BackupEvent.STORE.begin();
+            try {
+                BackupObject backupObject = new BackupObject(fileManager, storage, location, timestamp, parentTimestamp, deletedFiles);
+                File backupObjectFile = Util.createBackupObjectFile(backupObject, backupObjectDirectory.getAbsolutePath(), fileNameBase);
+                if (sink != null) {
+                    sink.commit(backupObjectFile);
+                }
+                else {
+                    location.storeBackupInLocation(archives, backupObjectFile);
+                }
+                stored = true;
+                metrics.getPhase(BackupMetrics.TRANSFER, location.getDisplayName()).record(transferStart, archivesCount, archivesSize);
+                LOGGER.info("Backup stored in " + location.getDisplayName() + " after " + (System.currentTimeMillis() - start) + " ms");
+            } finally {
+                event.commit(archivesCount, archivesSize, location.getDisplayName(), stored);
+                if (!stored && sink != null) {
+                    sink.abort();
+                }
+                // Delete the temporary BackupObject file
+                LOGGER.info("Deleting the temporary directory " + backupObjectDirectory.getAbsolutePath());
+                FileUtils.deleteDirectory(backupObjectDirectory);
+            }
+            long pruneStart = System.nanoTime();
+            try {
+                deleteRedundantBackups(location, cycleQuantity, timeThreshold);
+                metrics.getPhase(BackupMetrics.PRUNE, location.getDisplayName()).record(pruneStart, 0, 0);
+            } finally {
+                // The restore page lists the backups of this location again
+                PeriodicBackupLink link = PeriodicBackupLink.get();
+                if (link != null) {
+                    link.getBackupObjectCache().invalidate(location);
                 }
             }
+            return null;
         }
-        LOGGER.info("Backup finished successfully after " + (System.currentTimeMillis() - start) + " ms" );
     }
 }
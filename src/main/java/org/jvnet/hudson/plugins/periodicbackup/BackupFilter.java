@@ -0,0 +1,229 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010 - 2011, Tomasz Blaszczynski, Emanuele Zattin
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jvnet.hudson.plugins.periodicbackup;
+
+import com.google.common.collect.Lists;
+import org.codehaus.plexus.util.SelectorUtils;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ *
+ * BackupFilter decides which files of the Jenkins homedir are backed up according to Ant-style include and exclude
+ * patterns relative to the homedir (e.g. "jobs/&#42;&#42;/workspace/&#42;&#42;"). It is checked during the walk,
+ * so a directory that is excluded, or that no include pattern can match anything in, is not descended at all.
+ * The files and directories skipped by each exclude pattern are counted and can be logged at the end of the walk.
+ */
+public class BackupFilter {
+
+    /**
+     * Excludes of the "skip regenerable data" preset: workspaces, archived artifacts, Maven repositories,
+     * the exploded war and the content of the exploded plugins, which are all created again by Jenkins or by the builds
+     */
+    public final static List<String> REGENERABLE_DATA = Collections.unmodifiableList(Lists.newArrayList(
+            "workspace/**",
+            "jobs/**/workspace/**",
+            "jobs/**/builds/*/archive/**",
+            "**/.m2/**",
+            "war/**",
+            "plugins/*/*/**"));
+    private static final Logger LOGGER = Logger.getLogger(BackupFilter.class.getName());
+
+    private final String rootPath;
+    private final List<String> includes;                                    // Empty means everything is included
+    private final List<Rule> excludes;
+
+    public BackupFilter(File rootDir, List<String> includes, List<String> excludes) {
+        this.rootPath = rootDir.getPath();
+        this.includes = Lists.newArrayList();
+        for (String include : includes) {
+            this.includes.add(normalize(include));
+        }
+        this.excludes = Lists.newArrayList();
+        for (String exclude : excludes) {
+            this.excludes.add(new Rule(exclude));
+        }
+    }
+
+    /**
+     *
+     * Splits a list of patterns separated by commas or new lines
+     *
+     * @param patterns the patterns as typed in the configuration, it may be null
+     * @return list of the patterns
+     */
+    public static List<String> parsePatterns(String patterns) {
+        List<String> result = Lists.newArrayList();
+        if (patterns != null) {
+            for (String pattern : patterns.split("[,\\n\\r]+")) {
+                if (pattern.trim().length() > 0) {
+                    result.add(pattern.trim());
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     *
+     * @return true if the filter accepts every file, there are neither include nor exclude patterns
+     */
+    public boolean isComplete() {
+        return includes.isEmpty() && excludes.isEmpty();
+    }
+
+    /**
+     *
+     * @param directory directory found during the walk
+     * @return true if the walk should descend into the directory
+     */
+    public boolean acceptDirectory(File directory) {
+        String path = getRelativePath(directory);
+        if (!includes.isEmpty()) {
+            boolean canMatch = false;
+            for (String include : includes) {
+                if (SelectorUtils.matchPatternStart(include, path)) {
+                    canMatch = true;
+                    break;
+                }
+            }
+            if (!canMatch) {
+                return false;
+            }
+        }
+        for (Rule exclude : excludes) {
+            if (SelectorUtils.matchPath(exclude.pattern, path)) {
+                exclude.skippedDirectories.incrementAndGet();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     *
+     * @param file file (not directory) found during the walk
+     * @return true if the file should be backed up
+     */
+    public boolean acceptFile(File file) {
+        String path = getRelativePath(file);
+        if (!includes.isEmpty()) {
+            boolean included = false;
+            for (String include : includes) {
+                if (SelectorUtils.matchPath(include, path)) {
+                    included = true;
+                    break;
+                }
+            }
+            if (!included) {
+                return false;
+            }
+        }
+        for (Rule exclude : excludes) {
+            if (SelectorUtils.matchPath(exclude.pattern, path)) {
+                exclude.skippedFiles.incrementAndGet();
+                exclude.skippedBytes.addAndGet(file.length());
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     *
+     * Logs what has been skipped by each exclude pattern, the content of the skipped directories is not counted
+     * since they have not been walked
+     */
+    public void logSkipped() {
+        for (Rule exclude : excludes) {
+            if (exclude.skippedDirectories.get() > 0 || exclude.skippedFiles.get() > 0) {
+                LOGGER.info("Exclude pattern " + exclude.originalPattern + " skipped " + exclude.skippedDirectories.get()
+                        + " directories and " + exclude.skippedFiles.get() + " files (" + exclude.skippedBytes.get() + " B)");
+            }
+        }
+    }
+
+    public long getSkippedDirectories(String pattern) {
+        Rule rule = getRule(pattern);
+        return rule != null ? rule.skippedDirectories.get() : 0;
+    }
+
+    public long getSkippedFiles(String pattern) {
+        Rule rule = getRule(pattern);
+        return rule != null ? rule.skippedFiles.get() : 0;
+    }
+
+    public long getSkippedBytes(String pattern) {
+        Rule rule = getRule(pattern);
+        return rule != null ? rule.skippedBytes.get() : 0;
+    }
+
+    private Rule getRule(String pattern) {
+        for (Rule exclude : excludes) {
+            if (exclude.originalPattern.equals(pattern)) {
+                return exclude;
+            }
+        }
+        return null;
+    }
+
+    private String getRelativePath(File file) {
+        String path = file.getPath();
+        return path.startsWith(rootPath) ? path.substring(rootPath.length() + 1) : path;
+    }
+
+    /**
+     *
+     * SelectorUtils works with the platform separator, a trailing separator means everything below
+     */
+    private static String normalize(String pattern) {
+        String normalized = pattern.replace('/', File.separatorChar).replace('\\', File.separatorChar);
+        if (normalized.startsWith(File.separator)) {
+            normalized = normalized.substring(1);
+        }
+        if (normalized.endsWith(File.separator)) {
+            normalized += "**";
+        }
+        return normalized;
+    }
+
+    private static class Rule {
+
+        private final String originalPattern;
+        private final String pattern;
+        private final AtomicLong skippedDirectories = new AtomicLong();
+        private final AtomicLong skippedFiles = new AtomicLong();
+        private final AtomicLong skippedBytes = new AtomicLong();
+
+        Rule(String originalPattern) {
+            this.originalPattern = originalPattern;
+            this.pattern = normalize(originalPattern);
+        }
+    }
+}
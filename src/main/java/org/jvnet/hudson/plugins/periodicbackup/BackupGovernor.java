@@ -0,0 +1,369 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010 - 2011, Tomasz Blaszczynski, Emanuele Zattin
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jvnet.hudson.plugins.periodicbackup;
+
+import hudson.model.Hudson;
+import hudson.util.DaemonThreadFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+
+/**
+ *
+ * BackupGovernor keeps the backup from saturating the disk and the processors of the Jenkins server.
+ * The bytes read from the files to back up, written to the archives and copied to the locations all take their
+ * tokens from the same bucket, which is refilled at the configured rate. When the build queue or the system load
+ * average is above its threshold the lower busy rate is used instead.
+ * The compression threads can be limited in number and run with the lowest priority.
+ * On Linux the pages brought into the page cache by the backup can be dropped once the files are done with,
+ * so that the backup does not evict the files Jenkins works with.
+ */
+public class BackupGovernor {
+
+    private final static long BUSY_CHECK_INTERVAL = 5000;                   // Milliseconds between two checks of the queue and the load
+    private final static BackupGovernor UNLIMITED = new BackupGovernor(0, 0, 0, 0, 0, false, false);
+    private static final Logger LOGGER = Logger.getLogger(BackupGovernor.class.getName());
+
+    private final long bytesPerSecond;              // 0 means no limit
+    private final long busyBytesPerSecond;          // Rate used while Jenkins is busy, 0 means the normal rate
+    private final int busyQueueLength;              // Jenkins is busy when more items are waiting in the queue, 0 means never
+    private final double busyLoadAverage;           // Jenkins is busy when the load average is higher, 0 means never
+    private final int compressionThreadLimit;       // 0 means no limit
+    private final boolean lowPriority;              // Compression threads run with the lowest priority
+    private final boolean dropPageCache;            // The pages read and written by the backup are dropped from the page cache
+
+    private final Clock clock;
+
+    private double tokens;                          // Bytes which can be transferred right away, negative when in debt
+    private long lastRefill;
+    private boolean busy;
+    private long lastBusyCheck;
+
+    public BackupGovernor(long bytesPerSecond, long busyBytesPerSecond, int busyQueueLength, double busyLoadAverage,
+                          int compressionThreadLimit, boolean lowPriority) {
+        this(bytesPerSecond, busyBytesPerSecond, busyQueueLength, busyLoadAverage, compressionThreadLimit, lowPriority, false);
+    }
+
+    public BackupGovernor(long bytesPerSecond, long busyBytesPerSecond, int busyQueueLength, double busyLoadAverage,
+                          int compressionThreadLimit, boolean lowPriority, boolean dropPageCache) {
+        this(bytesPerSecond, busyBytesPerSecond, busyQueueLength, busyLoadAverage, compressionThreadLimit, lowPriority,
+                dropPageCache, Clock.SYSTEM);
+    }
+
+    BackupGovernor(long bytesPerSecond, long busyBytesPerSecond, int busyQueueLength, double busyLoadAverage,
+                   int compressionThreadLimit, boolean lowPriority, boolean dropPageCache, Clock clock) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.busyBytesPerSecond = busyBytesPerSecond;
+        this.busyQueueLength = busyQueueLength;
+        this.busyLoadAverage = busyLoadAverage;
+        this.compressionThreadLimit = compressionThreadLimit;
+        this.lowPriority = lowPriority;
+        this.dropPageCache = dropPageCache;
+        this.clock = clock;
+        this.lastRefill = clock.nanoTime();
+    }
+
+    /**
+     *
+     * Source of time of the rate limit, the tests replace it so that they do not depend on the speed of the machine
+     */
+    interface Clock {
+
+        Clock SYSTEM = new Clock() {
+            public long nanoTime() {
+                return System.nanoTime();
+            }
+
+            public void sleep(long nanos) throws InterruptedException {
+                Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+            }
+        };
+
+        long nanoTime();
+
+        void sleep(long nanos) throws InterruptedException;
+    }
+
+    /**
+     *
+     * @return the governor configured for the plugin, or one without limits if there is none
+     */
+    public static BackupGovernor get() {
+        if (Hudson.getInstance() == null) {
+            return UNLIMITED;
+        }
+        PeriodicBackupLink link = PeriodicBackupLink.get();
+        return link != null ? link.getGovernor() : UNLIMITED;
+    }
+
+    /**
+     *
+     * @return true if the transfers are never slowed down
+     */
+    public boolean isUnlimited() {
+        return bytesPerSecond <= 0 && busyBytesPerSecond <= 0;
+    }
+
+    /**
+     *
+     * Waits until the given amount of bytes can be transferred
+     *
+     * @param bytes number of bytes about to be read or written
+     * @throws InterruptedIOException if the thread is interrupted while waiting
+     */
+    public void acquire(long bytes) throws InterruptedIOException {
+        if (isUnlimited() || bytes <= 0) {
+            return;
+        }
+        long waitNanos;
+        synchronized (this) {
+            long rate = getRate();
+            if (rate <= 0) {
+                return;
+            }
+            long now = clock.nanoTime();
+            // At most one second of transfer can be saved up
+            tokens = Math.min(rate, tokens + (now - lastRefill) * rate / 1e9);
+            lastRefill = now;
+            tokens -= bytes;
+            waitNanos = tokens < 0 ? (long) (-tokens * 1e9 / rate) : 0;
+        }
+        if (waitNanos > 0) {
+            try {
+                clock.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the backup bandwidth");
+            }
+        }
+    }
+
+    private long getRate() {
+        if (busyBytesPerSecond > 0 && isBusy()) {
+            return bytesPerSecond > 0 ? Math.min(bytesPerSecond, busyBytesPerSecond) : busyBytesPerSecond;
+        }
+        return bytesPerSecond;
+    }
+
+    /**
+     *
+     * Tells whether Jenkins is busy, the queue and the load are checked every few seconds at most
+     */
+    private synchronized boolean isBusy() {
+        long now = System.currentTimeMillis();
+        if (now - lastBusyCheck < BUSY_CHECK_INTERVAL) {
+            return busy;
+        }
+        lastBusyCheck = now;
+        boolean wasBusy = busy;
+        busy = false;
+        if (busyQueueLength > 0 && Hudson.getInstance() != null && Hudson.getInstance().getQueue().getItems().length > busyQueueLength) {
+            busy = true;
+        }
+        if (busyLoadAverage > 0 && ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage() > busyLoadAverage) {
+            busy = true;
+        }
+        if (busy != wasBusy) {
+            LOGGER.info(busy ? "Jenkins is busy, the backup is slowed down to " + getRate() + " B/s"
+                    : "Jenkins is not busy anymore, the backup goes on at " + getRate() + " B/s");
+        }
+        return busy;
+    }
+
+    /**
+     *
+     * @param threads number of compression threads requested by the Storage
+     * @return the number of threads allowed
+     */
+    public int limitThreads(int threads) {
+        return compressionThreadLimit > 0 ? Math.min(threads, compressionThreadLimit) : threads;
+    }
+
+    /**
+     *
+     * @return ThreadFactory for the compression threads
+     */
+    public ThreadFactory getThreadFactory() {
+        final ThreadFactory daemonThreadFactory = new DaemonThreadFactory();
+        if (!lowPriority) {
+            return daemonThreadFactory;
+        }
+        return new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = daemonThreadFactory.newThread(runnable);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     *
+     * @param in stream to read from
+     * @return stream whose reads are governed
+     */
+    public InputStream throttle(InputStream in) {
+        if (isUnlimited()) {
+            return in;
+        }
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                acquire(1);
+                return super.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = super.read(b, off, len);
+                acquire(read);
+                return read;
+            }
+        };
+    }
+
+    /**
+     *
+     * @param out stream to write to
+     * @return stream whose writes are governed
+     */
+    public OutputStream throttle(OutputStream out) {
+        if (isUnlimited()) {
+            return out;
+        }
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                acquire(1);
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                acquire(len);
+                out.write(b, off, len);
+            }
+        };
+    }
+
+    /**
+     *
+     * Opens a file which is read once from start to end by the backup, the reads are governed
+     *
+     * @param file file to read
+     * @return stream reading the file, the pages it brought into the page cache are dropped when it is closed
+     * @throws IOException If the file could not be opened
+     */
+    public InputStream openInput(File file) throws IOException {
+        return throttle(openFile(file));
+    }
+
+    private InputStream openFile(File file) throws IOException {
+        if (!dropPageCache) {
+            return new FileInputStream(file);
+        }
+        return new ReadOnceInputStream(file);
+    }
+
+    /**
+     *
+     * Drops on close the pages of the file which were not cached when it was opened, the pages Jenkins was
+     * already using stay in the page cache
+     */
+    private static class ReadOnceInputStream extends FileInputStream {
+
+        private final byte[] residentPages;
+
+        ReadOnceInputStream(File file) throws IOException {
+            super(file);
+            residentPages = PageCache.getResidentPages(getFD(), file.length());
+            PageCache.readOnce(getFD());
+        }
+
+        @Override
+        public void close() throws IOException {
+            PageCache.dropPagesNotResident(getFD(), residentPages);
+            super.close();
+        }
+    }
+
+    /**
+     *
+     * Creates a file written by the backup, which Jenkins does not need
+     *
+     * @param file file to write
+     * @return stream writing the file, its pages already written to the disk are dropped from the page cache when it is closed
+     * @throws IOException If the file could not be created
+     */
+    public OutputStream openOutput(File file) throws IOException {
+        if (!dropPageCache) {
+            return new FileOutputStream(file);
+        }
+        return new FileOutputStream(file) {
+            @Override
+            public void close() throws IOException {
+                // The file is not synced, the dirty pages are left to the kernel and only the clean ones are dropped
+                PageCache.drop(getFD());
+                super.close();
+            }
+        };
+    }
+
+    /**
+     *
+     * Copies a file, only the bytes written are governed so that they are not counted twice
+     *
+     * @param source file to copy
+     * @param destination copy of the file
+     * @throws IOException If an IO problem occurs
+     */
+    public void copy(File source, File destination) throws IOException {
+        InputStream in = openFile(source);
+        try {
+            OutputStream out = throttle(openOutput(destination));
+            try {
+                byte[] buffer = new byte[64 * 1024];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
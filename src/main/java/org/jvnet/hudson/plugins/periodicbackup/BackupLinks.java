@@ -0,0 +1,314 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010 - 2011, Tomasz Blaszczynski, Emanuele Zattin
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jvnet.hudson.plugins.periodicbackup;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+import hudson.os.PosixAPI;
+import org.apache.commons.io.FileUtils;
+import org.jruby.ext.posix.FileStat;
+import org.jruby.ext.posix.POSIX;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+/**
+ *
+ * BackupLinks keeps track of the symbolic links and of the hard links found while scanning the Jenkins homedir,
+ * so that the same build directories and files are not archived once per link. A symbolic link is not followed,
+ * and only the first path of a file with several hard links is archived. The links are written to LINKS_FILE_NAME,
+ * which is backed up with the files and is used by the restore policies to create the links again.
+ *
+ * The links file has one "S TAB path TAB target" line per symbolic link and one "H TAB path TAB archived path" line
+ * per hard link, the paths are relative to the HUDSON directory. Backslashes, tabs and line breaks in the paths
+ * are written as the escape sequences \\, \t, \n and \r.
+ */
+public class BackupLinks {
+
+    public final static String LINKS_FILE_NAME = "periodicBackupLinks.txt";
+    private final static String SYMBOLIC_LINK = "S";
+    private final static String HARD_LINK = "H";
+    private static final Logger LOGGER = Logger.getLogger(BackupLinks.class.getName());
+
+    private final File rootDir;
+    private final BackupFilter filter;                                      // Links left out by the filter are not recorded
+    private final ConcurrentMap<String, String> symbolicLinks = Maps.newConcurrentMap();   // path -> target
+    private final ConcurrentMap<String, String> hardLinks = Maps.newConcurrentMap();       // path -> archived path
+    private final ConcurrentMap<String, String> inodes = Maps.newConcurrentMap();          // device:inode -> archived path
+    private static volatile boolean supported = true;                       // Cleared if the native lstat() is not available
+
+    public BackupLinks(File rootDir, BackupFilter filter) {
+        this.rootDir = rootDir;
+        this.filter = filter;
+    }
+
+    /**
+     *
+     * Reads the attributes of the given directory entry itself, not of what it links to
+     *
+     * @param file file or directory found during the walk
+     * @return the attributes of the entry, or null if links cannot be detected on this system
+     */
+    public static FileStat lstat(File file) {
+        if (!supported) {
+            return null;
+        }
+        try {
+            return PosixAPI.get().lstat(file.getPath());
+        } catch (Throwable t) {
+            LOGGER.warning("Links cannot be detected on this system, they will be followed " + t.getMessage());
+            supported = false;
+            return null;
+        }
+    }
+
+    /**
+     *
+     * Checks if the given directory entry is a symbolic link to a directory, which is never followed during the walk
+     * as it could lead back to one of its parents
+     *
+     * @param file file or directory found during the walk
+     * @param stat the attributes of the entry as read by lstat(), null if they are not available
+     * @return true if the walk must not descend into the file
+     */
+    public static boolean isLinkToDirectory(File file, FileStat stat) {
+        if (stat != null) {
+            return stat.isSymlink() && file.isDirectory();
+        }
+        if (!file.isDirectory()) {
+            return false;
+        }
+        try {
+            return hudson.Util.isSymlink(file);
+        } catch (IOException e) {
+            // Not followed when in doubt
+            return true;
+        }
+    }
+
+    /**
+     *
+     * Lets the tests walk the files as on a system without the native lstat()
+     *
+     * @param lstatSupported false to make lstat() return null
+     */
+    static void setLstatSupported(boolean lstatSupported) {
+        supported = lstatSupported;
+    }
+
+    /**
+     *
+     * Checks if the given directory entry is a link that must not be archived, in that case the link is recorded
+     *
+     * @param file file or directory found during the walk
+     * @param stat the attributes of the entry as read by lstat(), null if they are not available
+     * @return true if the file is a symbolic link or a further hard link of an already found file
+     */
+    public boolean isLink(File file, FileStat stat) {
+        if (stat == null) {
+            return false;
+        }
+        if (stat.isSymlink()) {
+            if (filter == null || filter.acceptFile(file)) {
+                try {
+                    symbolicLinks.put(getRelativePath(file), PosixAPI.get().readlink(file.getPath()));
+                } catch (IOException e) {
+                    LOGGER.warning("Could not read the symbolic link " + file.getAbsolutePath() + " " + e.getMessage());
+                }
+            }
+            return true;
+        }
+        if (stat.isDirectory() || stat.nlink() <= 1 || stat.ino() == 0 || (filter != null && !filter.acceptFile(file))) {
+            return false;
+        }
+        String path = getRelativePath(file);
+        String archivedPath = inodes.putIfAbsent(stat.dev() + ":" + stat.ino(), path);
+        if (archivedPath == null) {
+            return false;
+        }
+        hardLinks.put(path, archivedPath);
+        return true;
+    }
+
+    public int getSymbolicLinksCount() {
+        return symbolicLinks.size();
+    }
+
+    public int getHardLinksCount() {
+        return hardLinks.size();
+    }
+
+    /**
+     *
+     * Writes all the recorded links to the given file
+     *
+     * @param linksFile destination file
+     * @throws IOException If an IO problem occurs
+     */
+    public void write(File linksFile) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(linksFile), Charsets.UTF_8));
+        try {
+            for (Map.Entry<String, String> link : symbolicLinks.entrySet()) {
+                writer.write(SYMBOLIC_LINK + "\t" + escape(link.getKey()) + "\t" + escape(link.getValue()) + "\n");
+            }
+            for (Map.Entry<String, String> link : hardLinks.entrySet()) {
+                writer.write(HARD_LINK + "\t" + escape(link.getKey()) + "\t" + escape(link.getValue()) + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+        LOGGER.info(symbolicLinks.size() + " symbolic links and " + hardLinks.size() + " hard links recorded in " + linksFile.getAbsolutePath());
+    }
+
+    /**
+     *
+     * Creates in the HUDSON directory the links listed in the links file of the restored backup, if any.
+     * The existing files and symbolic links in the way are replaced. A hard link that cannot be created
+     * is replaced by a copy of the linked file.
+     *
+     * @param tempDir the directory containing the restored files
+     * @param hudsonRoot the HUDSON directory
+     * @throws IOException If an IO problem occurs
+     */
+    public static void restore(File tempDir, File hudsonRoot) throws IOException {
+        File linksFile = new File(tempDir, LINKS_FILE_NAME);
+        if (!linksFile.exists()) {
+            return;
+        }
+        POSIX posix = PosixAPI.get();
+        int linksRestored = 0;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(linksFile), Charsets.UTF_8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 3);
+                if (fields.length < 3) {
+                    continue;
+                }
+                fields[1] = unescape(fields[1]);
+                fields[2] = unescape(fields[2]);
+                File link = new File(hudsonRoot, fields[1]);
+                if (!prepareLink(link)) {
+                    continue;
+                }
+                if (fields[0].equals(SYMBOLIC_LINK)) {
+                    if (posix.symlink(fields[2], link.getPath()) != 0) {
+                        LOGGER.warning("Could not create the symbolic link " + link.getAbsolutePath() + " to " + fields[2]);
+                        continue;
+                    }
+                }
+                else if (fields[0].equals(HARD_LINK)) {
+                    File target = new File(hudsonRoot, fields[2]);
+                    if (posix.link(target.getPath(), link.getPath()) != 0) {
+                        LOGGER.info("Could not create the hard link " + link.getAbsolutePath() + ", copying " + target.getAbsolutePath());
+                        FileUtils.copyFile(target, link);
+                    }
+                }
+                linksRestored++;
+            }
+        } finally {
+            reader.close();
+        }
+        // The restore policy copies the links file along with the restored files, it is not kept in the HUDSON directory
+        File restoredLinksFile = new File(hudsonRoot, LINKS_FILE_NAME);
+        if (restoredLinksFile.exists() && !restoredLinksFile.delete()) {
+            LOGGER.warning("Could not delete " + restoredLinksFile.getAbsolutePath());
+        }
+        LOGGER.info(linksRestored + " links have been restored in " + hudsonRoot.getAbsolutePath());
+    }
+
+    /**
+     *
+     * Removes a file or a symbolic link standing where the link has to be created and creates the parent directory
+     *
+     * @return false if the link cannot be created
+     */
+    private static boolean prepareLink(File link) throws IOException {
+        if (hudson.Util.isSymlink(link) || link.isFile()) {
+            if (!link.delete()) {
+                LOGGER.warning("Could not replace " + link.getAbsolutePath() + " with a link");
+                return false;
+            }
+        }
+        else if (link.exists()) {
+            LOGGER.warning("Directory " + link.getAbsolutePath() + " is in the way of a link, keeping it");
+            return false;
+        }
+        File parent = link.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            LOGGER.warning("Could not create " + parent.getAbsolutePath());
+            return false;
+        }
+        return true;
+    }
+
+    static String escape(String path) {
+        StringBuilder escaped = new StringBuilder(path.length());
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            switch (c) {
+                case '\\': escaped.append("\\\\"); break;
+                case '\t': escaped.append("\\t"); break;
+                case '\n': escaped.append("\\n"); break;
+                case '\r': escaped.append("\\r"); break;
+                default: escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    static String unescape(String field) {
+        StringBuilder path = new StringBuilder(field.length());
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c != '\\' || i + 1 == field.length()) {
+                path.append(c);
+                continue;
+            }
+            char next = field.charAt(++i);
+            switch (next) {
+                case 't': path.append('\t'); break;
+                case 'n': path.append('\n'); break;
+                case 'r': path.append('\r'); break;
+                default: path.append(next);
+            }
+        }
+        return path.toString();
+    }
+
+    private String getRelativePath(File file) {
+        return file.getPath().substring(rootDir.getPath().length() + 1).replace(File.separatorChar, '/');
+    }
+}
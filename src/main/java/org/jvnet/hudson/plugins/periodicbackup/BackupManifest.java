@@ -0,0 +1,184 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010 - 2011, Tomasz Blaszczynski, Emanuele Zattin
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jvnet.hudson.plugins.periodicbackup;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Date;
+import java.util.Map;
+
+/**
+ *
+ * BackupManifest keeps the size and the modification time of every file included in a backup,
+ * so that the next backup can find out which files have changed since then.
+ *
+ * The manifest is a text file with one "size TAB mtime TAB path" line per file,
+ * the last line holds the timestamp of the backup and the number of backups since the last full one.
+ */
+public class BackupManifest {
+
+    private final static String TRAILER_PREFIX = "#";
+
+    private final Map<String, long[]> entries;    // path relative to the HUDSON directory -> {size, mtime}
+    private final Date timestamp;                   // Timestamp of the backup described by this manifest
+    private final int runsSinceFullBackup;          // Number of incremental backups since the last full backup
+
+    private BackupManifest(Map<String, long[]> entries, Date timestamp, int runsSinceFullBackup) {
+        this.entries = entries;
+        this.timestamp = timestamp;
+        this.runsSinceFullBackup = runsSinceFullBackup;
+    }
+
+    /**
+     *
+     * Reads the manifest from the given file
+     *
+     * @param manifestFile the manifest file
+     * @return the manifest, or null if the file does not exist or is incomplete
+     * @throws IOException If an IO problem occurs
+     */
+    public static BackupManifest load(File manifestFile) throws IOException {
+        if(!manifestFile.exists()) {
+            return null;
+        }
+        Map<String, long[]> entries = Maps.newHashMap();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifestFile), Charsets.UTF_8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 3);
+                if(fields.length < 3) {
+                    continue;
+                }
+                if(fields[0].equals(TRAILER_PREFIX)) {
+                    return new BackupManifest(entries, new Date(Long.parseLong(fields[1])), Integer.parseInt(fields[2]));
+                }
+                entries.put(fields[2], new long[] {Long.parseLong(fields[0]), Long.parseLong(fields[1])});
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Manifest " + manifestFile.getAbsolutePath() + " is corrupted " + e.getMessage());
+        } finally {
+            reader.close();
+        }
+        // Without the trailer the manifest has not been written completely
+        return null;
+    }
+
+    public Date getTimestamp() {
+        return timestamp;
+    }
+
+    public int getRunsSinceFullBackup() {
+        return runsSinceFullBackup;
+    }
+
+    /**
+     *
+     * Checks if the file is new or changed with respect to this manifest. Each file should be checked only once,
+     * the files that have never been checked are considered deleted.
+     *
+     * @param path path of the file relative to the HUDSON directory
+     * @param size current size of the file
+     * @param lastModified current modification time of the file
+     * @return true if the file is not in the manifest or its size or modification time are different
+     */
+    public boolean isChanged(String path, long size, long lastModified) {
+        long[] entry = entries.remove(path);
+        return entry == null || entry[0] != size || entry[1] != lastModified;
+    }
+
+    /**
+     *
+     * @return paths of the files present in the manifest that have not been checked
+     */
+    public Iterable<String> getUncheckedPaths() {
+        return entries.keySet();
+    }
+
+    /**
+     *
+     * ManifestWriter writes a new manifest to a temporary file while the files are being scanned,
+     * the manifest replaces the previous one only once the backup has been completed.
+     */
+    public static class ManifestWriter {
+
+        private final File temporaryFile;
+        private final Writer writer;
+
+        public ManifestWriter(File temporaryFile) throws IOException {
+            this.temporaryFile = temporaryFile;
+            this.writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temporaryFile), Charsets.UTF_8));
+        }
+
+        public void add(String path, long size, long lastModified) throws IOException {
+            writer.write(size + "\t" + lastModified + "\t" + path + "\n");
+        }
+
+        /**
+         *
+         * Completes the manifest and moves it to its final place
+         *
+         * @param manifestFile destination of the manifest
+         * @param timestamp timestamp of the backup
+         * @param runsSinceFullBackup number of incremental backups since the last full backup
+         * @throws IOException If an IO problem occurs
+         */
+        public void commit(File manifestFile, Date timestamp, int runsSinceFullBackup) throws IOException {
+            writer.write(TRAILER_PREFIX + "\t" + timestamp.getTime() + "\t" + runsSinceFullBackup + "\n");
+            writer.close();
+            if(manifestFile.exists() && !manifestFile.delete()) {
+                throw new IOException("Could not delete " + manifestFile.getAbsolutePath());
+            }
+            if(!temporaryFile.renameTo(manifestFile)) {
+                throw new IOException("Could not rename " + temporaryFile.getAbsolutePath() + " to " + manifestFile.getAbsolutePath());
+            }
+        }
+
+        /**
+         *
+         * Closes the writer without replacing the previous manifest
+         */
+        public void abort() {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                // Nothing to do, the file is being discarded
+            }
+            if(temporaryFile.exists() && !temporaryFile.delete()) {
+                temporaryFile.deleteOnExit();
+            }
+        }
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010 - 2011, Tomasz Blaszczynski, Emanuele Zattin
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jvnet.hudson.plugins.periodicbackup;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * BackupMetrics records where the time of a backup or of a restore goes. The run is split in phases, such as the scan
+ * of the files, the compression of each storage or the transfer to each location, and every phase adds up its
+ * duration and the files and bytes it processed. The last backup and the last restore are kept, they are published
+ * as JSON by PeriodicBackupLink and through JMX by PeriodicBackupMetrics.
+ */
+public class BackupMetrics {
+
+    public final static String SCAN = "scan";
+    public final static String COMPRESS = "compress";
+    public final static String TRANSFER = "transfer";
+    public final static String PRUNE = "prune";
+    public final static String RETRIEVE = "retrieve";
+    public final static String EXTRACT = "extract";
+    public final static String RESTORE = "restore";
+    public final static String RELOAD = "reload";
+
+    private static volatile BackupMetrics lastBackup;
+    private static volatile BackupMetrics lastRestore;
+
+    private final String kind;
+    private final Date start = new Date();
+    private final long startNanos = System.nanoTime();
+    private volatile long durationMillis = -1;                              // -1 until the run has finished
+    private volatile boolean successful;
+    private final Map<String, Phase> phases = Maps.newLinkedHashMap();      // In the order they started
+
+    private BackupMetrics(String kind) {
+        this.kind = kind;
+    }
+
+    /**
+     *
+     * @return the metrics of a new backup, they are published right away
+     */
+    public static BackupMetrics startBackup() {
+        BackupMetrics metrics = new BackupMetrics("backup");
+        lastBackup = metrics;
+        return metrics;
+    }
+
+    /**
+     *
+     * @return the metrics of a new restore, they are published right away
+     */
+    public static BackupMetrics startRestore() {
+        BackupMetrics metrics = new BackupMetrics("restore");
+        lastRestore = metrics;
+        return metrics;
+    }
+
+    /**
+     *
+     * @return the metrics of the last or current backup, null if there has been none since Jenkins started
+     */
+    public static BackupMetrics getLastBackup() {
+        return lastBackup;
+    }
+
+    /**
+     *
+     * @return the metrics of the last or current restore, null if there has been none since Jenkins started
+     */
+    public static BackupMetrics getLastRestore() {
+        return lastRestore;
+    }
+
+    /**
+     *
+     * @param name name of the phase, followed by the name of the storage or location it applies to, if any
+     * @return the phase, created if needed
+     */
+    public Phase getPhase(String name) {
+        synchronized (phases) {
+            Phase phase = phases.get(name);
+            if (phase == null) {
+                phase = new Phase(name);
+                phases.put(name, phase);
+            }
+            return phase;
+        }
+    }
+
+    /**
+     *
+     * Looks up a phase without creating it, for the readers of the metrics
+     *
+     * @param name name of the phase, followed by the name of the storage or location it applies to, if any
+     * @return the phase, or null if it has not started
+     */
+    public Phase findPhase(String name) {
+        synchronized (phases) {
+            return phases.get(name);
+        }
+    }
+
+    public Phase getPhase(String name, String target) {
+        return getPhase(name + ":" + target);
+    }
+
+    public List<Phase> getPhases() {
+        synchronized (phases) {
+            return Lists.newArrayList(phases.values());
+        }
+    }
+
+    public void finish(boolean successful) {
+        this.successful = successful;
+        durationMillis = (System.nanoTime() - startNanos) / 1000000;
+    }
+
+    public String getKind() {
+        return kind;
+    }
+
+    public Date getStart() {
+        return start;
+    }
+
+    /**
+     *
+     * @return duration of the run in milliseconds, -1 while it is running
+     */
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    public boolean isSuccessful() {
+        return successful;
+    }
+
+    public JSONObject toJSON() {
+        JSONObject result = new JSONObject();
+        result.put("kind", kind);
+        result.put("start", start.getTime());
+        result.put("running", durationMillis < 0);
+        result.put("durationMillis", durationMillis);
+        result.put("successful", successful);
+        JSONArray phaseArray = new JSONArray();
+        for (Phase phase : getPhases()) {
+            phaseArray.add(phase.toJSON());
+        }
+        result.put("phases", phaseArray);
+        return result;
+    }
+
+    /**
+     *
+     * Duration, files and bytes of one phase, the phase can be recorded by several threads and several times
+     */
+    public static class Phase {
+
+        private final String name;
+        private final AtomicLong nanos = new AtomicLong();
+        private final AtomicLong files = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();                  // Bytes read or transferred
+        private final AtomicLong outputBytes = new AtomicLong();            // Bytes written by a compression
+
+        Phase(String name) {
+            this.name = name;
+        }
+
+        /**
+         *
+         * @param startNanos value of System.nanoTime() when the work started
+         * @param files number of files processed
+         * @param bytes number of bytes processed
+         */
+        public void record(long startNanos, long files, long bytes) {
+            addNanos(System.nanoTime() - startNanos);
+            count(files, bytes);
+        }
+
+        public void count(long files, long bytes) {
+            this.files.addAndGet(files);
+            this.bytes.addAndGet(bytes);
+        }
+
+        public void addNanos(long nanos) {
+            this.nanos.addAndGet(nanos);
+        }
+
+        public void addOutputBytes(long outputBytes) {
+            this.outputBytes.addAndGet(outputBytes);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getMillis() {
+            return nanos.get() / 1000000;
+        }
+
+        public long getFiles() {
+            return files.get();
+        }
+
+        public long getBytes() {
+            return bytes.get();
+        }
+
+        public long getOutputBytes() {
+            return outputBytes.get();
+        }
+
+        /**
+         *
+         * @return bytes processed per second, 0 if the phase did not last long enough to tell
+         */
+        public long getBytesPerSecond() {
+            long nanos = this.nanos.get();
+            return nanos > 0 ? (long) (bytes.get() * 1e9 / nanos) : 0;
+        }
+
+        /**
+         *
+         * @return size of the output of a compression relative to its input, 0 if unknown
+         */
+        public double getCompressionRatio() {
+            return outputBytes.get() > 0 && bytes.get() > 0 ? (double) outputBytes.get() / bytes.get() : 0;
+        }
+
+        public JSONObject toJSON() {
+            JSONObject result = new JSONObject();
+            result.put("name", name);
+            result.put("millis", getMillis());
+            result.put("files", getFiles());
+            result.put("bytes", getBytes());
+            result.put("bytesPerSecond", getBytesPerSecond());
+            if (outputBytes.get() > 0) {
+                result.put("outputBytes", getOutputBytes());
+                result.put("compressionRatio", getCompressionRatio());
+            }
+            return result;
+        }
+    }
+}
@@ -32,7 +32,10 @@ import hudson.model.Hudson;
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
+import java.util.logging.Logger;
 
 public class BackupObject implements Comparable {
 
@@ -40,30 +43,85 @@ public class BackupObject implements Comparable {
     private final Storage storage;
     private final Location location;
     private final Date timestamp;
+    private final Date parentTimestamp;     // Timestamp of the backup this one is based upon, null for a complete backup
+    private final List<String> deletedFiles; // Files deleted since the parent backup, relative to the HUDSON directory
+    private final transient File backupObjectFile; // File the other fields are read from when first needed, null if they are known
+    private final transient String fileManagerName; // Display name of the FileManager known without reading the file, may be null
+    private transient BackupObject content; // BackupObject read from backupObjectFile
 
     public final static String EXTENSION = "pbobj";
     public final static String FILE_TIMESTAMP_PATTERN = "yyyy_MM_dd_HH_mm_ss_SSS";
+    private static final Logger LOGGER = Logger.getLogger(BackupObject.class.getName());
 
     public BackupObject(FileManager fileManager, Storage storage, Location location, Date timestamp) {
+        this(fileManager, storage, location, timestamp, null, null);
+    }
+
+    public BackupObject(FileManager fileManager, Storage storage, Location location, Date timestamp, Date parentTimestamp, List<String> deletedFiles) {
         this.fileManager = fileManager;
         this.storage = storage;
         this.location = location;
         this.timestamp = timestamp;
+        this.parentTimestamp = parentTimestamp;
+        this.deletedFiles = deletedFiles;
+        this.backupObjectFile = null;
+        this.fileManagerName = null;
+    }
+
+    /**
+     *
+     * Creates a BackupObject known only by what the catalog of its location tells,
+     * the rest is read from the BackupObject file when needed
+     *
+     * @param backupObjectFile File with serialized backupObject
+     * @param location location holding the backup
+     * @param timestamp timestamp of the backup
+     * @param parentTimestamp timestamp of the parent backup or null
+     * @param fileManagerName display name of the FileManager or null if unknown
+     */
+    public BackupObject(File backupObjectFile, Location location, Date timestamp, Date parentTimestamp, String fileManagerName) {
+        this.fileManager = null;
+        this.storage = null;
+        this.location = location;
+        this.timestamp = timestamp;
+        this.parentTimestamp = parentTimestamp;
+        this.deletedFiles = null;
+        this.backupObjectFile = backupObjectFile;
+        this.fileManagerName = fileManagerName;
+    }
+
+    /**
+     *
+     * @return this BackupObject, or the one read from its file if it has been created from a catalog
+     */
+    private synchronized BackupObject getContent() {
+        if(backupObjectFile == null) {
+            return this;
+        }
+        if(content == null) {
+            content = getFromFile().apply(backupObjectFile);
+            if(content == null) {
+                LOGGER.warning("Could not read " + backupObjectFile.getAbsolutePath());
+                content = this;
+            }
+        }
+        return content;
     }
 
     @SuppressWarnings("unused")
     public FileManager getFileManager() {
-        return fileManager;
+        return getContent().fileManager;
     }
 
     @SuppressWarnings("unused")
     public Storage getStorage() {
-        return storage;
+        return getContent().storage;
     }
 
     @SuppressWarnings("unused")
     public Location getLocation() {
-        return location;
+        // The location the backup has been found in is known without reading the file
+        return location != null ? location : getContent().location;
     }
 
     /**
@@ -91,30 +149,59 @@ public class BackupObject implements Comparable {
         return this.timestamp;
     }
 
+    /**
+     *
+     * @return timestamp of the parent backup or null if this backup is complete on its own
+     */
+    public Date getParentTimestamp() {
+        return parentTimestamp;
+    }
+
+    /**
+     *
+     * @return files deleted since the parent backup, relative to the HUDSON directory
+     */
+    public List<String> getDeletedFiles() {
+        List<String> deletedFiles = getContent().deletedFiles;
+        if(deletedFiles == null) {
+            return Collections.emptyList();
+        }
+        return deletedFiles;
+    }
+
     @SuppressWarnings("unused")
     public String getDisplayName() {
-        return fileManager.getDisplayName() + " created on " + timestamp.toString();
+        String name = fileManagerName;
+        if(name == null) {
+            // The file is not read just for the name
+            BackupObject known = backupObjectFile == null ? this : content;
+            name = known != null && known.fileManager != null ? known.fileManager.getDisplayName() : "Backup";
+        }
+        String displayName = name + " created on " + timestamp.toString();
+        if(parentTimestamp != null) {
+            displayName += " (incremental)";
+        }
+        return displayName;
     }
 
     public String getAsString() {
-        return Hudson.XSTREAM.toXML(this);
+        return Hudson.XSTREAM.toXML(getContent());
     }
 
     @Override
     public boolean equals(Object o) {
         if (o instanceof BackupObject) {
             BackupObject that = (BackupObject) o;
-            return Objects.equal(this.fileManager, that.fileManager)
-                && Objects.equal(this.location,    that.location)
-                && Objects.equal(this.storage,     that.storage)
-                && Objects.equal(this.timestamp,   that.timestamp);
+            // A backup is identified by what is known without reading its file
+            return Objects.equal(this.location,  that.location)
+                && Objects.equal(this.timestamp, that.timestamp);
         }
         return false;
     }
 
     @Override
     public int hashCode() {
-        return Objects.hashCode(fileManager, storage, location, timestamp);
+        return Objects.hashCode(location, timestamp);
     }
 
     public int compareTo(Object o) {
@@ -0,0 +1,125 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010 - 2011, Tomasz Blaszczynski, Emanuele Zattin
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jvnet.hudson.plugins.periodicbackup;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ *
+ * BackupObjectCache keeps the backups available in each Location, so that they are not listed again
+ * every time the restore page is shown. The backups of a location are listed again only after
+ * the location has been invalidated, which happens whenever a backup is stored there or deleted from it.
+ */
+public class BackupObjectCache {
+
+    private static final Logger LOGGER = Logger.getLogger(BackupObjectCache.class.getName());
+
+    private final Map<Location, List<BackupObject>> backups = Maps.newHashMap();
+    private long generation;                                                // Incremented on every invalidation
+
+    /**
+     *
+     * Returns the backups available in the location, listing them if they are not cached
+     *
+     * @param location the location
+     * @return the backups sorted by timestamp
+     */
+    public List<BackupObject> getBackups(Location location) {
+        long listedGeneration;
+        synchronized (this) {
+            List<BackupObject> cached = backups.get(location);
+            if(cached != null) {
+                return cached;
+            }
+            listedGeneration = generation;
+        }
+        // The location is listed without holding the lock, the other locations stay available meanwhile
+        List<BackupObject> listed = Collections.unmodifiableList(Lists.newArrayList(location.getAvailableBackups()));
+        synchronized (this) {
+            // Something invalidated while listing, the result might be already outdated
+            if(listedGeneration == generation) {
+                backups.put(location, listed);
+            }
+        }
+        return listed;
+    }
+
+    /**
+     *
+     * Finds a backup by its timestamp
+     *
+     * @param location location holding the backup
+     * @param timestamp timestamp of the backup in milliseconds
+     * @return the backup or null if there is no such backup in the location
+     */
+    public BackupObject getBackup(Location location, long timestamp) {
+        for (BackupObject backupObject : getBackups(location)) {
+            if(backupObject.getTimestamp().getTime() == timestamp) {
+                return backupObject;
+            }
+        }
+        return null;
+    }
+
+    public synchronized void invalidate(Location location) {
+        backups.remove(location);
+        generation++;
+    }
+
+    public synchronized void invalidateAll() {
+        backups.clear();
+        generation++;
+    }
+
+    /**
+     *
+     * Lists the backups of the given locations in a background thread
+     *
+     * @param locations locations to list
+     */
+    public void warm(final Iterable<Location> locations) {
+        Thread warmer = new Thread(new Runnable() {
+            public void run() {
+                long start = System.currentTimeMillis();
+                for (Location location : locations) {
+                    try {
+                        getBackups(location);
+                    } catch (RuntimeException e) {
+                        LOGGER.warning("Could not list the backups in " + location.getDisplayName() + " " + e.getMessage());
+                    }
+                }
+                LOGGER.info("Backups listed in " + (System.currentTimeMillis() - start) + " ms");
+            }
+        }, "Periodic Backup cache warmer");
+        warmer.setDaemon(true);
+        warmer.start();
+    }
+}
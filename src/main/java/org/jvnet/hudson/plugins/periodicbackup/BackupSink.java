@@ -0,0 +1,63 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010 - 2011, Tomasz Blaszczynski, Emanuele Zattin
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jvnet.hudson.plugins.periodicbackup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ *
+ * BackupSink receives the archives of a Storage while they are being written, so that they do not have to be
+ * created in the temporary directory and copied afterwards. The archives become part of the backup only when
+ * the sink is committed.
+ */
+public interface BackupSink {
+
+    /**
+     *
+     * Opens a new archive, several archives can be open at the same time
+     *
+     * @param archiveName file name of the archive
+     * @return stream the archive is written to, it is closed by the Storage once the archive is complete
+     * @throws IOException if the archive could not be opened
+     */
+    OutputStream openArchive(String archiveName) throws IOException;
+
+    /**
+     *
+     * Completes the backup after all the archives have been written and closed
+     *
+     * @param backupObjectFile File with serialized backupObject, or null if there is none
+     * @throws IOException if the backup could not be completed
+     */
+    void commit(File backupObjectFile) throws IOException;
+
+    /**
+     *
+     * Discards the archives written so far
+     */
+    void abort();
+}
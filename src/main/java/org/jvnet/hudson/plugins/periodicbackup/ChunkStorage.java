@@ -0,0 +1,395 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010 - 2011, Tomasz Blaszczynski, Emanuele Zattin
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jvnet.hudson.plugins.periodicbackup;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
+import hudson.Extension;
+import hudson.model.Hudson;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ *
+ * ChunkStorage splits the files into content defined chunks and stores every distinct chunk only once.
+ * Each backup consists of a small index file listing the chunks of every file, plus the chunks
+ * that are not stored in all the enabled locations yet. The chunks are compressed and named after their SHA-1 hash.
+ */
+public class ChunkStorage extends Storage {
+
+    public final static String CHUNK_EXTENSION = "chunk";
+    public final static String INDEX_EXTENSION = "chunkindex";
+    private final static int MIN_CHUNK_SIZE = 256 * 1024;                   // No chunk boundary is placed before this amount of bytes
+    private final static int MAX_CHUNK_SIZE = 4 * 1024 * 1024;              // A chunk boundary is forced after this amount of bytes
+    private final static long BOUNDARY_MASK = (1 << 20) - 1;                // Gives an average chunk size of about 1MiB
+    private final static long[] GEAR = new long[256];                       // Random values used by the rolling hash
+    private static final Logger LOGGER = Logger.getLogger(ChunkStorage.class.getName());
+
+    private transient File tempDirectory;                                   // Directory where the index and the new chunks are created
+    private transient File rootDir;                                         // Directory the paths in the index are relative to
+    private transient File indexFile;                                       // Index of the backup being created
+    private transient Writer indexWriter;
+    private transient List<Location> locations;                             // Locations the backup will be sent to, given by setTargetLocations
+    private transient Set<String> knownChunks;                              // Chunks already stored or created during this backup
+    private transient List<File> archives;                                  // Index and chunk files created so far
+    private transient long bytesTotal, bytesNew;
+
+    static {
+        // The values must be the same for every backup, otherwise the chunk boundaries would move
+        Random random = new Random(0x5EEDL);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    @DataBoundConstructor
+    public ChunkStorage() {
+        super();
+    }
+
+    @Override
+    public void setTargetLocations(List<Location> locations) {
+        this.locations = Lists.newArrayList(locations);
+    }
+
+    @Override
+    public void backupStart(String tempDirectoryPath, String archiveFilenameBase) throws PeriodicBackupException {
+        backupStart(new File(tempDirectoryPath), Hudson.getInstance().getRootDir(), archiveFilenameBase);
+    }
+
+    /**
+     *
+     * Initializes the backup with the given root directory, the paths written to the index are relative to it
+     */
+    void backupStart(File tempDirectory, File rootDir, String archiveFilenameBase) throws PeriodicBackupException {
+        this.tempDirectory = tempDirectory;
+        this.rootDir = rootDir;
+        indexFile = new File(tempDirectory, Util.createFileName(archiveFilenameBase, INDEX_EXTENSION));
+        archives = Lists.newArrayList(indexFile);
+        knownChunks = Sets.newHashSet();
+        bytesTotal = 0;
+        bytesNew = 0;
+        if(locations == null) {
+            locations = Lists.newArrayList();
+        }
+        try {
+            indexWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(indexFile), Charsets.UTF_8));
+        } catch (IOException e) {
+            throw new PeriodicBackupException("Could not create " + indexFile.getAbsolutePath() + " " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void backupAddFile(File fileToStore) throws PeriodicBackupException {
+        backupAddFile(fileToStore, Util.getRelativePath(fileToStore, rootDir));
+    }
+
+    @Override
+    public void backupAddFile(File fileToStore, String archivePath) throws PeriodicBackupException {
+        StringBuilder chunkNames = new StringBuilder();
+        try {
+            InputStream in = BackupGovernor.get().openInput(fileToStore);
+            try {
+                for (String chunkName : storeChunks(in)) {
+                    appendChunkName(chunkNames, chunkName);
+                }
+            } finally {
+                in.close();
+            }
+            indexWriter.write(fileToStore.length() + "\t" + fileToStore.lastModified() + "\t" + chunkNames + "\t" + archivePath + "\n");
+        } catch (IOException e) {
+            LOGGER.warning("Could not add file " + fileToStore.getAbsolutePath() + " to the backup. " + e.getMessage());
+        }
+    }
+
+    /**
+     *
+     * Splits the stream into content defined chunks and stores them
+     *
+     * @param in content to split
+     * @return names of the chunks, in the order of the content
+     * @throws IOException If an IO problem occurs
+     */
+    List<String> storeChunks(InputStream in) throws IOException {
+        List<String> chunkNames = Lists.newArrayList();
+        ByteArrayOutputStream chunk = new ByteArrayOutputStream(MIN_CHUNK_SIZE);
+        byte[] buffer = new byte[64 * 1024];
+        long hash = 0;
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            int chunkStart = 0;
+            for (int i = 0; i < read; i++) {
+                hash = (hash << 1) + GEAR[buffer[i] & 0xFF];
+                int chunkSize = chunk.size() + i + 1 - chunkStart;
+                if((chunkSize >= MIN_CHUNK_SIZE && (hash & BOUNDARY_MASK) == 0) || chunkSize >= MAX_CHUNK_SIZE) {
+                    chunk.write(buffer, chunkStart, i + 1 - chunkStart);
+                    chunkNames.add(storeChunk(chunk.toByteArray()));
+                    chunk.reset();
+                    chunkStart = i + 1;
+                    hash = 0;
+                }
+            }
+            chunk.write(buffer, chunkStart, read - chunkStart);
+        }
+        if(chunk.size() > 0) {
+            chunkNames.add(storeChunk(chunk.toByteArray()));
+        }
+        return chunkNames;
+    }
+
+    private static void appendChunkName(StringBuilder chunkNames, String chunkName) {
+        if(chunkNames.length() > 0) {
+            chunkNames.append(',');
+        }
+        chunkNames.append(chunkName);
+    }
+
+    /**
+     *
+     * Writes the chunk to the temporary directory unless it is already stored in every enabled location
+     *
+     * @param data content of the chunk
+     * @return name of the chunk
+     * @throws IOException If an IO problem occurs
+     */
+    private String storeChunk(byte[] data) throws IOException {
+        String chunkName = Util.createFileName(sha1(data), CHUNK_EXTENSION);
+        bytesTotal += data.length;
+        if(!knownChunks.add(chunkName)) {
+            return chunkName;
+        }
+        // Without any location to ask the chunk is always written
+        boolean storedEverywhere = !locations.isEmpty();
+        for (Location location : locations) {
+            if(!location.hasChunk(chunkName)) {
+                storedEverywhere = false;
+                break;
+            }
+        }
+        if(!storedEverywhere) {
+            File chunkFile = new File(tempDirectory, chunkName);
+            OutputStream out = new DeflaterOutputStream(BackupGovernor.get().throttle(new FileOutputStream(chunkFile)));
+            try {
+                out.write(data);
+            } finally {
+                out.close();
+            }
+            archives.add(chunkFile);
+            bytesNew += data.length;
+        }
+        return chunkName;
+    }
+
+    @Override
+    public Iterable<File> backupStop() throws PeriodicBackupException {
+        try {
+            indexWriter.close();
+        } catch (IOException e) {
+            throw new PeriodicBackupException("Could not create " + indexFile.getAbsolutePath() + " " + e.getMessage());
+        }
+        LOGGER.info((archives.size() - 1) + " new chunks created, " + bytesNew + " out of " + bytesTotal + " bytes were not stored yet");
+        return archives;
+    }
+
+    @Override
+    public void backupAbort() {
+        try {
+            indexWriter.close();
+        } catch (IOException e) {
+            LOGGER.warning("Could not close " + indexFile.getAbsolutePath() + " " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void unarchiveFiles(Iterable<File> archives, File tempDir) {
+        List<File> chunkFiles = Lists.newArrayList();
+        for (File archive : archives) {
+            if(CHUNK_EXTENSION.equals(Util.getExtension(archive))) {
+                chunkFiles.add(archive);
+            }
+        }
+        for (File archive : archives) {
+            if(INDEX_EXTENSION.equals(Util.getExtension(archive))) {
+                LOGGER.info("Restoring files listed in " + archive.getAbsolutePath() + " to " + tempDir.getAbsolutePath());
+                try {
+                    restoreFromIndex(archive, tempDir);
+                } catch (IOException e) {
+                    LOGGER.warning("Could not restore files listed in " + archive.getAbsolutePath() + " " + e.getMessage());
+                }
+                chunkFiles.add(archive);
+            }
+        }
+
+        // Deleting the index and the chunk files
+        for (File file : chunkFiles) {
+            if(!file.delete()) {
+                LOGGER.warning("Could not delete " + file.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     *
+     * Rebuilds the files listed in the index from the chunks in the same directory
+     *
+     * @param index index file
+     * @param tempDir directory where the files will be rebuilt
+     * @throws IOException If an IO problem occurs
+     */
+    private void restoreFromIndex(File index, File tempDir) throws IOException {
+        File chunkDirectory = index.getParentFile();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(index), Charsets.UTF_8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 4);
+                if(fields.length < 4) {
+                    continue;
+                }
+                File file = new File(tempDir, fields[3]);
+                File parent = file.getParentFile();
+                if(!parent.isDirectory() && !parent.mkdirs()) {
+                    throw new IOException("Could not create " + parent.getAbsolutePath());
+                }
+                OutputStream out = new FileOutputStream(file);
+                try {
+                    for (String chunkName : splitChunkNames(fields[2])) {
+                        InputStream in = new InflaterInputStream(new FileInputStream(new File(chunkDirectory, chunkName)));
+                        try {
+                            ByteStreams.copy(in, out);
+                        } finally {
+                            in.close();
+                        }
+                    }
+                } finally {
+                    out.close();
+                }
+                if(!file.setLastModified(Long.parseLong(fields[1]))) {
+                    LOGGER.warning("Could not set the modification time of " + file.getAbsolutePath());
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     *
+     * This returns the names of all the chunks referenced by the given index file
+     *
+     * @param index index file created by ChunkStorage
+     * @return names of the chunk files
+     * @throws IOException If an IO problem occurs
+     */
+    public static Set<String> getReferencedChunks(File index) throws IOException {
+        Set<String> chunkNames = Sets.newHashSet();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(index), Charsets.UTF_8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 4);
+                if(fields.length == 4) {
+                    chunkNames.addAll(splitChunkNames(fields[2]));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return chunkNames;
+    }
+
+    private static List<String> splitChunkNames(String chunkNames) {
+        List<String> result = Lists.newArrayList();
+        for (String chunkName : chunkNames.split(",")) {
+            if(chunkName.length() > 0) {
+                result.add(chunkName);
+            }
+        }
+        return result;
+    }
+
+    private static String sha1(byte[] data) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+        StringBuilder result = new StringBuilder();
+        for (byte b : digest.digest(data)) {
+            result.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return result.toString();
+    }
+
+    public String getDisplayName() {
+        return "Chunk";
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof ChunkStorage;
+    }
+
+    @Override
+    public int hashCode() {
+        return 101;
+    }
+
+    @SuppressWarnings("unused")
+    @Extension
+    public static class DescriptorImpl extends StorageDescriptor {
+        public String getDisplayName() {
+            return "ChunkStorage";
+        }
+
+        @Override
+        public String getArchiveFileExtension() {
+            return INDEX_EXTENSION;
+        }
+    }
+}
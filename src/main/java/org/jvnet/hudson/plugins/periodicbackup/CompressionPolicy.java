@@ -0,0 +1,119 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010 - 2011, Tomasz Blaszczynski, Emanuele Zattin
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jvnet.hudson.plugins.periodicbackup;
+
+import com.google.common.collect.Sets;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Set;
+
+/**
+ *
+ * CompressionPolicy decides which files are worth compressing. Files with one of the configured extensions
+ * are considered already compressed, the other files are probed: if their first bytes look random
+ * (their entropy is close to 8 bits per byte) compressing them would only waste time.
+ */
+public class CompressionPolicy {
+
+    public final static String DEFAULT_STORED_EXTENSIONS = "jpi, hpi, jar, war, ear, zip, gz, tgz, bz2, xz, 7z, png, jpg, jpeg, gif";
+    private final static int PROBE_SIZE = 4096;                             // Number of bytes read from the beginning of the file
+    private final static int MIN_PROBED_SIZE = 512;                         // Smaller files are always compressed
+    private final static double MAX_ENTROPY = 7.5;                          // Bits per byte above which the data is considered compressed
+
+    private final Set<String> storedExtensions = Sets.newHashSet();
+
+    /**
+     *
+     * @param storedExtensions extensions of the files that should not be compressed, separated by commas or spaces
+     */
+    public CompressionPolicy(String storedExtensions) {
+        for (String extension : storedExtensions.split("[,\\s]+")) {
+            if(extension.startsWith(".")) {
+                extension = extension.substring(1);
+            }
+            if(extension.length() > 0) {
+                this.storedExtensions.add(extension.toLowerCase());
+            }
+        }
+    }
+
+    /**
+     *
+     * @param file file to check
+     * @return true if the file should be compressed, false if it should be stored as it is
+     */
+    public boolean isCompressible(File file) {
+        String extension = Util.getExtension(file);
+        if(extension != null && storedExtensions.contains(extension)) {
+            return false;
+        }
+        if(file.length() < MIN_PROBED_SIZE) {
+            return true;
+        }
+        try {
+            return getEntropy(file) <= MAX_ENTROPY;
+        } catch (IOException e) {
+            // The file will fail later on anyway
+            return true;
+        }
+    }
+
+    /**
+     *
+     * Computes the Shannon entropy of the first bytes of the file
+     *
+     * @param file file to probe
+     * @return entropy in bits per byte, between 0 and 8
+     * @throws IOException If an IO problem occurs
+     */
+    static double getEntropy(File file) throws IOException {
+        byte[] buffer = new byte[PROBE_SIZE];
+        int length = 0;
+        InputStream in = new FileInputStream(file);
+        try {
+            int read;
+            while (length < buffer.length && (read = in.read(buffer, length, buffer.length - length)) != -1) {
+                length += read;
+            }
+        } finally {
+            in.close();
+        }
+        int[] counts = new int[256];
+        for (int i = 0; i < length; i++) {
+            counts[buffer[i] & 0xff]++;
+        }
+        double entropy = 0;
+        for (int count : counts) {
+            if(count > 0) {
+                double probability = (double) count / length;
+                entropy -= probability * Math.log(probability) / Math.log(2);
+            }
+        }
+        return entropy;
+    }
+}
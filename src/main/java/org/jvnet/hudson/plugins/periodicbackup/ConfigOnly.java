@@ -24,9 +24,13 @@
 
 package org.jvnet.hudson.plugins.periodicbackup;
 
+import com.google.common.base.Function;
 import com.google.common.base.Objects;
+import com.google.common.base.Predicate;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import hudson.Extension;
+import hudson.model.AbstractItem;
 import hudson.model.Hudson;
 import org.apache.commons.io.filefilter.FileFilterUtils;
 import org.kohsuke.stapler.DataBoundConstructor;
@@ -41,15 +45,24 @@ import java.util.logging.Logger;
  *
  * This implementation of FileManager will only select the .xml files from the Jenkins homedir
  * and the config.xml files of all the jobs during backup.
+ * With useItemModel the config.xml files are taken from the items loaded in Jenkins, nested ones included,
+ * instead of listing the jobs directory.
  * During restore it will try to overwrite the existing files.
  */
 public class ConfigOnly extends FileManager {
 
     private static final Logger LOGGER = Logger.getLogger(ConfigOnly.class.getName());
 
-    @DataBoundConstructor
+    private boolean useItemModel;                                           // Finds the item configurations without listing directories
+
     public ConfigOnly() {
+        this(false);
+    }
+
+    @DataBoundConstructor
+    public ConfigOnly(boolean useItemModel) {
         super();
+        this.useItemModel = useItemModel;
         this.restorePolicy = new OverwriteRestorePolicy();
     }
 
@@ -57,35 +70,74 @@ public class ConfigOnly extends FileManager {
         return "ConfigOnly";
     }
 
+    public boolean isUseItemModel() {
+        return useItemModel;
+    }
+
+    @SuppressWarnings("unused")
+    public void setUseItemModel(boolean useItemModel) {
+        this.useItemModel = useItemModel;
+    }
+
     @Override
     public Iterable<File> getFilesToBackup() throws PeriodicBackupException {
         File rootDir = Hudson.getInstance().getRootDir();
-        List<File> filesToBackup = Lists.newArrayList();
         // First find the xml files in the home directory
         File[] xmlsInRoot = rootDir.listFiles(Util.extensionFileFilter("xml"));
-        filesToBackup.addAll(Arrays.asList(xmlsInRoot));
+        if(useItemModel) {
+            return Iterables.concat(Arrays.asList(xmlsInRoot), getItemConfigs());
+        }
+        Iterable<File> jobConfigs = Lists.newArrayList();
         File jobsDir = new File(rootDir, "jobs");
         if(jobsDir.exists() && jobsDir.isDirectory()) {
-            // Each job directory should have a config.xml file
+            // Each job directory should have a config.xml file, it is checked only when the file is requested
             File[] dirsInJobs = jobsDir.listFiles((FileFilter) FileFilterUtils.directoryFileFilter());
-            for(File job : dirsInJobs) {
-                File jobConfig = new File(job, "config.xml");
-                if(jobConfig.exists() && jobConfig.isFile()) {
-                    filesToBackup.add(jobConfig);
+            jobConfigs = Iterables.filter(Iterables.transform(Arrays.asList(dirsInJobs), new Function<File, File>() {
+                public File apply(File job) {
+                    return new File(job, "config.xml");
                 }
-                else {
+            }), new Predicate<File>() {
+                public boolean apply(File jobConfig) {
+                    if(jobConfig.exists() && jobConfig.isFile()) {
+                        return true;
+                    }
                     LOGGER.warning(jobConfig.getAbsolutePath() + " does not exist or is not a file.");
+                    return false;
                 }
+            });
+        }
+        return Iterables.concat(Arrays.asList(xmlsInRoot), jobConfigs);
+    }
+
+    /**
+     *
+     * The configuration files of all the items known to Jenkins, the items inside folders included.
+     * An item created in memory may not have been saved yet, so only the existing files are returned.
+     *
+     * @return config.xml files of the items
+     */
+    private Iterable<File> getItemConfigs() {
+        long start = System.currentTimeMillis();
+        List<File> itemConfigs = Lists.newArrayList();
+        for(AbstractItem item : Hudson.getInstance().getAllItems(AbstractItem.class)) {
+            File itemConfig = item.getConfigFile().getFile();
+            if(itemConfig.exists()) {
+                itemConfigs.add(itemConfig);
+            }
+            else {
+                LOGGER.warning(itemConfig.getAbsolutePath() + " does not exist.");
             }
         }
-        return filesToBackup;
+        LOGGER.info(itemConfigs.size() + " item configurations found in " + (System.currentTimeMillis() - start) + " ms");
+        return itemConfigs;
     }
 
     @Override
     public boolean equals(Object o) {
         if (o instanceof ConfigOnly) {
             ConfigOnly that = (ConfigOnly) o;
-            return Objects.equal(this.restorePolicy, that.restorePolicy);
+            return this.useItemModel == that.useItemModel
+                && Objects.equal(this.restorePolicy, that.restorePolicy);
         }
         return false;
 
@@ -93,7 +145,7 @@ public class ConfigOnly extends FileManager {
 
     @Override
     public int hashCode() {
-        return 97;
+        return Objects.hashCode(useItemModel, 97);
     }
 
     @SuppressWarnings("unused")
@@ -0,0 +1,201 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010 - 2011, Tomasz Blaszczynski, Emanuele Zattin
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jvnet.hudson.plugins.periodicbackup;
+
+import com.google.common.io.Files;
+import hudson.model.Hudson;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ *
+ * This RestorePolicy compares the content of the backup with the Jenkins home directory and only writes the files
+ * that are new or different, according to their size and modification time or, optionally, to their checksum.
+ * The files of the home directory that are not in the backup are deleted, unless the backup has left them out
+ * with its include and exclude patterns. Non writable files will be kept as they are.
+ */
+public class DiffRestorePolicy implements RestorePolicy {
+
+    private final static long MODIFICATION_TIME_PRECISION = 2000;           // ms, zip archives keep the time in 2 seconds steps
+    private static final Logger LOGGER = Logger.getLogger(DiffRestorePolicy.class.getName());
+
+    private final boolean compareChecksums;                                 // Compares the content of the files having the same size
+    private transient int filesAdded, filesChanged, filesUnchanged, filesDeleted, filesKept;
+
+    public DiffRestorePolicy(boolean compareChecksums) {
+        this.compareChecksums = compareChecksums;
+    }
+
+    public boolean isCompareChecksums() {
+        return compareChecksums;
+    }
+
+    public void restore(File tempDir, BackupFilter filter) throws IOException, PeriodicBackupException {
+        File hudsonRoot = Hudson.getInstance().getRootDir();
+        if(hudsonRoot == null) {
+            throw new PeriodicBackupException("HOME directory is unidentified.");
+        }
+        restore(tempDir, hudsonRoot, filter);
+    }
+
+    void restore(File tempDir, File hudsonRoot, BackupFilter filter) throws IOException {
+        filesAdded = 0;
+        filesChanged = 0;
+        filesUnchanged = 0;
+        filesDeleted = 0;
+        filesKept = 0;
+
+        copyDifferent(tempDir, tempDir, hudsonRoot);
+        deleteMissing(hudsonRoot, hudsonRoot, tempDir, filter);
+        BackupLinks.restore(tempDir, hudsonRoot);
+        LOGGER.info("Restoring of files finished.\n" + filesAdded + " files have been added, " + filesChanged
+                + " files have been changed, " + filesDeleted + " files have been deleted and " + filesUnchanged
+                + " files were already up to date in " + hudsonRoot.getAbsolutePath() + "\n" + filesKept
+                + " non writable files have been kept.");
+    }
+
+    public int getFilesAdded() {
+        return filesAdded;
+    }
+
+    public int getFilesChanged() {
+        return filesChanged;
+    }
+
+    public int getFilesUnchanged() {
+        return filesUnchanged;
+    }
+
+    public int getFilesDeleted() {
+        return filesDeleted;
+    }
+
+    public int getFilesKept() {
+        return filesKept;
+    }
+
+    /**
+     *
+     * Copies the files of the backup which are missing or different in the home directory
+     *
+     * @param directory directory of the backup being compared
+     * @param tempDir temporary directory holding the backup
+     * @param hudsonRoot the home directory
+     * @throws IOException If an IO problem occurs
+     */
+    private void copyDifferent(File directory, File tempDir, File hudsonRoot) throws IOException {
+        File[] files = directory.listFiles();
+        if(files == null) {
+            return;
+        }
+        for(File file : files) {
+            if(file.isDirectory()) {
+                copyDifferent(file, tempDir, hudsonRoot);
+                continue;
+            }
+            File destinationFile = new File(hudsonRoot, Util.getRelativePath(file, tempDir));
+            if(!destinationFile.exists()) {
+                FileUtils.copyFile(file, destinationFile);
+                filesAdded++;
+            }
+            else if(isDifferent(file, destinationFile)) {
+                if(!destinationFile.canWrite()) {
+                    LOGGER.warning("Access denied to " + destinationFile.getAbsolutePath() + ", file will not be replaced");
+                    filesKept++;
+                }
+                else {
+                    FileUtils.copyFile(file, destinationFile);
+                    filesChanged++;
+                }
+            }
+            else {
+                filesUnchanged++;
+            }
+        }
+    }
+
+    /**
+     *
+     * Deletes the files of the home directory which are not in the backup, symbolic links to directories
+     * are not followed since the links are restored separately. The files the backup has left out are kept.
+     *
+     * @param directory directory of the home directory being compared
+     * @param hudsonRoot the home directory
+     * @param tempDir temporary directory holding the backup
+     * @param filter files the backup was made of, null for all of them
+     * @throws IOException If an IO problem occurs
+     */
+    private void deleteMissing(File directory, File hudsonRoot, File tempDir, BackupFilter filter) throws IOException {
+        File[] files = directory.listFiles();
+        if(files == null) {
+            return;
+        }
+        for(File file : files) {
+            if(file.isDirectory()) {
+                if(!hudson.Util.isSymlink(file) && (filter == null || filter.acceptDirectory(file))) {
+                    deleteMissing(file, hudsonRoot, tempDir, filter);
+                }
+                continue;
+            }
+            if(new File(tempDir, Util.getRelativePath(file, hudsonRoot)).exists() || (filter != null && !filter.acceptFile(file))) {
+                continue;
+            }
+            if(!file.canWrite() || !file.delete()) {
+                LOGGER.warning("Access denied to " + file.getAbsolutePath() + ", file will not be deleted");
+                filesKept++;
+            }
+            else {
+                filesDeleted++;
+            }
+        }
+    }
+
+    private boolean isDifferent(File backupFile, File file) throws IOException {
+        if(backupFile.length() != file.length()) {
+            return true;
+        }
+        if(compareChecksums) {
+            return Files.getChecksum(backupFile, new CRC32()) != Files.getChecksum(file, new CRC32());
+        }
+        return Math.abs(backupFile.lastModified() - file.lastModified()) >= MODIFICATION_TIME_PRECISION;
+    }
+
+    public void restoreFinished(boolean successful) {
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof DiffRestorePolicy && ((DiffRestorePolicy) o).compareChecksums == compareChecksums;
+    }
+
+    @Override
+    public int hashCode() {
+        return compareChecksums ? 89 : 97;
+    }
+}
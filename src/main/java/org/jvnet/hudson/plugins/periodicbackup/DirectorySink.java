@@ -0,0 +1,99 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010 - 2011, Tomasz Blaszczynski, Emanuele Zattin
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jvnet.hudson.plugins.periodicbackup;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ *
+ * DirectorySink writes the archives into a directory. They are written under a temporary name
+ * and get their final one on commit, so an interrupted backup never leaves complete looking archives behind.
+ */
+public class DirectorySink implements BackupSink {
+
+    public final static String PARTIAL_EXTENSION = ".part";                 // Appended to the names of the archives until they are committed
+    private static final Logger LOGGER = Logger.getLogger(DirectorySink.class.getName());
+
+    private final File directory;
+    private final List<File> archives = Lists.newArrayList();               // Final files of the archives opened so far
+
+    public DirectorySink(File directory) {
+        this.directory = directory;
+    }
+
+    public OutputStream openArchive(String archiveName) throws IOException {
+        File archive = new File(directory, archiveName);
+        synchronized (archives) {
+            archives.add(archive);
+        }
+        return new BufferedOutputStream(BackupGovernor.get().openOutput(getPartialFile(archive)), 64 * 1024);
+    }
+
+    public void commit(File backupObjectFile) throws IOException {
+        for (File archive : getArchives()) {
+            File partial = getPartialFile(archive);
+            if (!partial.renameTo(archive)) {
+                throw new IOException("Could not rename " + partial.getAbsolutePath() + " to " + archive.getAbsolutePath());
+            }
+            LOGGER.info("Archive " + archive.getAbsolutePath() + " stored");
+        }
+        if (backupObjectFile != null) {
+            File backupObjectFileDestination = new File(directory, backupObjectFile.getName());
+            Files.copy(backupObjectFile, backupObjectFileDestination);
+            LOGGER.info(backupObjectFile.getName() + " copied to " + backupObjectFileDestination.getAbsolutePath());
+        }
+    }
+
+    public void abort() {
+        for (File archive : getArchives()) {
+            File partial = getPartialFile(archive);
+            if (partial.exists() && !partial.delete()) {
+                LOGGER.warning("Could not delete " + partial.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     *
+     * @return the archives opened in this sink, under the name they get on commit
+     */
+    public List<File> getArchives() {
+        synchronized (archives) {
+            return Lists.newArrayList(archives);
+        }
+    }
+
+    private static File getPartialFile(File archive) {
+        return new File(archive.getParentFile(), archive.getName() + PARTIAL_EXTENSION);
+    }
+}
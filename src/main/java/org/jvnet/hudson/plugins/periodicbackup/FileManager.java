@@ -32,6 +32,8 @@ import hudson.model.Hudson;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.Date;
 
 /**
  *
@@ -50,6 +52,48 @@ public abstract class FileManager extends AbstractModelObject implements Describ
      */
     public abstract Iterable<File> getFilesToBackup() throws PeriodicBackupException;
 
+    /**
+     *
+     * This returns the path a file returned by getFilesToBackup() has in the archives
+     *
+     * @param file one of the files to back up
+     * @return path of the file relative to the HUDSON directory it is restored to
+     */
+    public String getArchivePath(File file) {
+        return Util.getRelativePath(file, Hudson.getInstance().getRootDir());
+    }
+
+    /**
+     *
+     * This returns the timestamp of the backup that the files returned by the last call of getFilesToBackup()
+     * are based upon. Restoring such a backup requires restoring this parent backup first.
+     *
+     * @return timestamp of the parent backup, null if the backup is complete on its own
+     */
+    public Date getParentTimestamp() {
+        return null;
+    }
+
+    /**
+     *
+     * This returns the files that have been deleted since the parent backup
+     *
+     * @return paths of the deleted files relative to the HUDSON directory
+     */
+    public Iterable<String> getDeletedFiles() {
+        return Collections.emptyList();
+    }
+
+    /**
+     *
+     * This is called once the backup has been stored in all the locations
+     *
+     * @param timestamp timestamp of the finished backup
+     * @throws IOException if the FileManager could not persist its state
+     */
+    public void backupFinished(Date timestamp) throws IOException {
+    }
+
     /**
      *
      * This will restore files to their right place in the HUDSON directory
@@ -59,7 +103,29 @@ public abstract class FileManager extends AbstractModelObject implements Describ
      * @throws PeriodicBackupException if anything else bad happens
      */
     public void restoreFiles(File tempDir) throws IOException, PeriodicBackupException {
-        restorePolicy.restore(tempDir);
+        restorePolicy.restore(tempDir, getBackupFilter(Hudson.getInstance().getRootDir()));
+    }
+
+    /**
+     *
+     * This returns the filter of the files of the HUDSON directory this FileManager backs up. The files it does not
+     * accept are not in the backups, so the restore policies must neither delete nor replace them.
+     *
+     * @param rootDir the HUDSON directory
+     * @return the filter, or null if the backups cover the whole HUDSON directory
+     */
+    public BackupFilter getBackupFilter(File rootDir) {
+        return null;
+    }
+
+    /**
+     *
+     * This is called once Jenkins has reloaded the restored files, or has failed to
+     *
+     * @param successful true if the files have been restored and loaded
+     */
+    public void restoreFinished(boolean successful) {
+        restorePolicy.restoreFinished(successful);
     }
 
     /**
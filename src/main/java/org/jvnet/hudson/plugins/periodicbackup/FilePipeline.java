@@ -0,0 +1,150 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010 - 2011, Tomasz Blaszczynski, Emanuele Zattin
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jvnet.hudson.plugins.periodicbackup;
+
+import java.io.File;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Logger;
+
+/**
+ *
+ * FilePipeline runs the FileManager scan in a separate thread and hands the found files over to the
+ * backup thread through a bounded queue, this way the files are archived while the scan is still running.
+ * When the queue is full the scan waits until the archiving catches up.
+ */
+public class FilePipeline {
+
+    public final static int DEFAULT_CAPACITY = 1024;                        // Maximum number of files waiting to be archived
+    private final static File END_OF_SCAN = new File("");                   // Marks the end of the scan in the queue
+    private static final Logger LOGGER = Logger.getLogger(FilePipeline.class.getName());
+
+    private final FileManager fileManager;
+    private final BlockingQueue<File> queue;
+    private volatile Throwable scanFailure;                                 // Exception or error thrown by the scanning thread, if any
+    private volatile boolean finished;                                      // Set once END_OF_SCAN has been taken from the queue
+    private volatile long scanNanos;                                        // Time spent scanning, not waiting for the archiving
+    private Thread scanner;
+
+    public FilePipeline(FileManager fileManager, int capacity) {
+        this.fileManager = fileManager;
+        this.queue = new ArrayBlockingQueue<File>(capacity);
+    }
+
+    /**
+     *
+     * Starts scanning the files in the background
+     */
+    public void start() {
+        scanner = new Thread(new Runnable() {
+            public void run() {
+                long start = System.currentTimeMillis();
+                long scanStart = System.nanoTime();
+                long waitNanos = 0;
+                long filesScanned = 0;
+                BackupEvent.Span event = BackupEvent.SCAN.begin();
+                boolean aborted = false;
+                try {
+                    for (File file : fileManager.getFilesToBackup()) {
+                        long putStart = System.nanoTime();
+                        queue.put(file);
+                        waitNanos += System.nanoTime() - putStart;
+                        filesScanned++;
+                    }
+                    scanNanos = System.nanoTime() - scanStart - waitNanos;
+                    event.commit(filesScanned, 0, fileManager.getDisplayName());
+                    LOGGER.info(filesScanned + " files found in " + (System.currentTimeMillis() - start) + " ms");
+                } catch (InterruptedException e) {
+                    LOGGER.info("Scan of the files aborted");
+                    aborted = true;
+                } catch (Throwable t) {
+                    // Errors are handed over as well, the backup thread would wait forever for the end of the scan otherwise
+                    scanFailure = t;
+                } finally {
+                    if(!aborted) {
+                        try {
+                            queue.put(END_OF_SCAN);
+                        } catch (InterruptedException e) {
+                            LOGGER.info("Scan of the files aborted");
+                        }
+                    }
+                }
+            }
+        }, "Periodic Backup file scanner");
+        scanner.setDaemon(true);
+        scanner.start();
+    }
+
+    /**
+     *
+     * Takes the next file found by the FileManager, waiting for the scan if needed
+     *
+     * @return the next file to back up or null when there are no more files
+     * @throws PeriodicBackupException if the scan failed or the waiting thread was interrupted
+     * @throws Error if the scan failed with an Error, which is thrown again as it is
+     */
+    public File take() throws PeriodicBackupException {
+        if(finished) {
+            return null;
+        }
+        File file;
+        try {
+            file = queue.take();
+        } catch (InterruptedException e) {
+            cancel();
+            throw new PeriodicBackupException("Interrupted while waiting for files to back up");
+        }
+        if(file == END_OF_SCAN) {
+            finished = true;
+            if(scanFailure instanceof Error) {
+                throw (Error) scanFailure;
+            }
+            if(scanFailure != null) {
+                throw new PeriodicBackupException("Could not collect files to back up " + scanFailure.getMessage());
+            }
+            return null;
+        }
+        return file;
+    }
+
+    /**
+     *
+     * @return the time the FileManager took to find the files, without the time spent waiting for the queue to have room
+     */
+    public long getScanNanos() {
+        return scanNanos;
+    }
+
+    /**
+     *
+     * Stops the scan if it is still running, the files left in the queue are discarded
+     */
+    public void cancel() {
+        if(scanner != null && scanner.isAlive()) {
+            scanner.interrupt();
+        }
+        queue.clear();
+    }
+}
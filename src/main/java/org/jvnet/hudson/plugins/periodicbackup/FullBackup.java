@@ -25,50 +25,284 @@
 package org.jvnet.hudson.plugins.periodicbackup;
 
 import com.google.common.base.Objects;
+import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.Lists;
 import hudson.Extension;
 import hudson.model.Hudson;
-import org.apache.tools.ant.DirectoryScanner;
+import org.jruby.ext.posix.FileStat;
 import org.kohsuke.stapler.DataBoundConstructor;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.logging.Logger;
 
 /**
  *
- * FullBackup will choose all the files in the Jenkins homedir during the backup.
+ * FullBackup will choose all the files in the Jenkins homedir during the backup,
+ * except the ones left out by the include and exclude patterns. Symbolic links are not followed
+ * and files with several hard links are chosen once, the links are recorded in BackupLinks.LINKS_FILE_NAME,
+ * which is written in the temporary directory and archived at the root of the backup.
  * During the restore it will delete all the deletable files in the Jenkins homedir
- * and then it will write with files in the selected backup.
+ * and then it will write with files in the selected backup, or with diffRestore
+ * it will only write and delete the files that differ from the selected backup.
+ * With swapRestore the selected backup is staged and swapped in with renames.
  */
 public class FullBackup extends FileManager {
 
-    @DataBoundConstructor
+    public final static int DEFAULT_SCAN_THREADS = 4;                       // Used when scanThreads is not set
+
+    private Integer scanThreads;                                            // Number of directories listed at the same time, null in older configurations
+    private String includes;                                                // Ant-style patterns of the files to back up, empty means all
+    private String excludes;                                                // Ant-style patterns of the files and directories to skip
+    private boolean skipRegenerableData;                                    // Adds the BackupFilter.REGENERABLE_DATA patterns to the excludes
+    private transient File linksFile;                                       // Links file of the running backup, outside of the homedir
+    private static final Logger LOGGER = Logger.getLogger(FullBackup.class.getName());
+
     public FullBackup() {
+        this(DEFAULT_SCAN_THREADS);
+    }
+
+    public FullBackup(int scanThreads) {
+        this(scanThreads, "", "", false, false, false, false);
+    }
+
+    @DataBoundConstructor
+    public FullBackup(int scanThreads, String includes, String excludes, boolean skipRegenerableData,
+                      boolean diffRestore, boolean compareChecksums, boolean swapRestore) {
         super();
-        this.restorePolicy = new ReplaceRestorePolicy();
+        this.scanThreads = scanThreads;
+        this.includes = includes;
+        this.excludes = excludes;
+        this.skipRegenerableData = skipRegenerableData;
+        if (swapRestore) {
+            this.restorePolicy = new SwapRestorePolicy();
+        }
+        else {
+            this.restorePolicy = diffRestore ? new DiffRestorePolicy(compareChecksums) : new ReplaceRestorePolicy();
+        }
     }
 
     public String getDisplayName() {
         return "FullBackup";
     }
 
+    public int getScanThreads() {
+        if (scanThreads == null) {
+            // Configurations saved before the parallel scan keep scanning one directory at a time
+            return 1;
+        }
+        return scanThreads > 0 ? scanThreads : DEFAULT_SCAN_THREADS;
+    }
+
+    @SuppressWarnings("unused")
+    public void setScanThreads(int scanThreads) {
+        this.scanThreads = scanThreads;
+    }
+
+    public String getIncludes() {
+        return includes;
+    }
+
+    @SuppressWarnings("unused")
+    public void setIncludes(String includes) {
+        this.includes = includes;
+    }
+
+    public String getExcludes() {
+        return excludes;
+    }
+
+    @SuppressWarnings("unused")
+    public void setExcludes(String excludes) {
+        this.excludes = excludes;
+    }
+
+    public boolean isSkipRegenerableData() {
+        return skipRegenerableData;
+    }
+
+    @SuppressWarnings("unused")
+    public void setSkipRegenerableData(boolean skipRegenerableData) {
+        this.skipRegenerableData = skipRegenerableData;
+    }
+
+    /**
+     *
+     * @return true if the restore only writes the files that differ from the backup
+     */
+    public boolean isDiffRestore() {
+        return restorePolicy instanceof DiffRestorePolicy;
+    }
+
+    public boolean isCompareChecksums() {
+        return isDiffRestore() && ((DiffRestorePolicy) restorePolicy).isCompareChecksums();
+    }
+
+    /**
+     *
+     * @return true if the restore swaps the restored directories with the live ones
+     */
+    public boolean isSwapRestore() {
+        return restorePolicy instanceof SwapRestorePolicy;
+    }
+
+    /**
+     *
+     * @param rootDir directory the patterns are relative to
+     * @return a new filter with the configured patterns, its counters start from zero
+     */
+    public BackupFilter createFilter(File rootDir) {
+        List<String> allExcludes = BackupFilter.parsePatterns(excludes);
+        if (skipRegenerableData) {
+            allExcludes.addAll(BackupFilter.REGENERABLE_DATA);
+        }
+        return new BackupFilter(rootDir, BackupFilter.parsePatterns(includes), allExcludes);
+    }
+
+    @Override
+    public BackupFilter getBackupFilter(File rootDir) {
+        BackupFilter filter = createFilter(rootDir);
+        return filter.isComplete() ? null : filter;
+    }
+
     @Override
     public Iterable<File> getFilesToBackup() {
-        DirectoryScanner directoryScanner = new DirectoryScanner(); // It will scan all files inside the root directory
-        directoryScanner.setBasedir(Hudson.getInstance().getRootDir());
-        directoryScanner.scan();
-        List<File> files = Lists.newArrayList();
-        for(String s: directoryScanner.getIncludedFiles()) {
-            files.add(new File(directoryScanner.getBasedir(), s));
+        final File rootDir = Hudson.getInstance().getRootDir();
+        // The files are found while they are being consumed, the skipped directories are not even listed
+        return new Iterable<File>() {
+            public Iterator<File> iterator() {
+                final BackupFilter filter = createFilter(rootDir);
+                final BackupLinks links = new BackupLinks(rootDir, filter);
+                // Former versions wrote the links file into the homedir
+                final File formerLinksFile = new File(rootDir, BackupLinks.LINKS_FILE_NAME);
+                final File linksFile = getLinksFile();
+                final Iterator<File> files = (getScanThreads() > 1)
+                        ? new ParallelFileWalker(rootDir, getScanThreads(), ParallelFileWalker.DEFAULT_CAPACITY, filter, links).iterator()
+                        : new FileTreeIterator(rootDir, filter, links);
+                return new AbstractIterator<File>() {
+                    private boolean linksWritten;
+
+                    @Override
+                    protected File computeNext() {
+                        while (files.hasNext()) {
+                            File file = files.next();
+                            // The links file of a former backup is replaced by the one of this backup
+                            if (!file.equals(formerLinksFile)) {
+                                return file;
+                            }
+                        }
+                        if (linksWritten) {
+                            return endOfData();
+                        }
+                        filter.logSkipped();
+                        // The links are known only at the end of the walk, so their file is the last one
+                        linksWritten = true;
+                        try {
+                            links.write(linksFile);
+                        } catch (IOException e) {
+                            throw new IllegalStateException("Could not write the links file " + e.getMessage(), e);
+                        }
+                        return linksFile;
+                    }
+                };
+            }
+        };
+    }
+
+    @Override
+    public String getArchivePath(File file) {
+        // The links file is restored from the root of the backup
+        if (file.equals(linksFile)) {
+            return BackupLinks.LINKS_FILE_NAME;
+        }
+        return super.getArchivePath(file);
+    }
+
+    @Override
+    public void backupFinished(Date timestamp) throws IOException {
+        super.backupFinished(timestamp);
+        if (linksFile != null && linksFile.exists() && !linksFile.delete()) {
+            LOGGER.warning("Could not delete " + linksFile.getAbsolutePath());
+        }
+    }
+
+    /**
+     *
+     * The links file is written in the temporary directory of the backup, it replaces the one of a failed backup
+     *
+     * @return the file the links of the running backup are written to
+     */
+    private File getLinksFile() {
+        String tempDirectory = PeriodicBackupLink.get().getTempDirectory();
+        File directory = (tempDirectory != null && tempDirectory.length() > 0) ? new File(tempDirectory) : new File(System.getProperty("java.io.tmpdir"));
+        linksFile = new File(directory, BackupLinks.LINKS_FILE_NAME);
+        return linksFile;
+    }
+
+    /**
+     *
+     * Iterates over all the files inside the given directory and its subdirectories,
+     * only the listing of the directory being visited is kept in memory
+     */
+    static class FileTreeIterator extends AbstractIterator<File> {
+
+        private final LinkedList<File> directories = Lists.newLinkedList(); // Directories still to be visited
+        private final BackupFilter filter;
+        private final BackupLinks links;
+        private File[] currentListing = new File[0];
+        private int currentIndex = 0;
+
+        FileTreeIterator(File rootDir, BackupFilter filter, BackupLinks links) {
+            this.filter = filter;
+            this.links = links;
+            directories.add(rootDir);
+        }
+
+        @Override
+        protected File computeNext() {
+            while (true) {
+                while (currentIndex < currentListing.length) {
+                    File file = currentListing[currentIndex++];
+                    FileStat stat = BackupLinks.lstat(file);
+                    if (links.isLink(file, stat)) {
+                        continue;
+                    }
+                    if (BackupLinks.isLinkToDirectory(file, stat)) {
+                        // A link to a directory is never followed, it could lead back to one of its parents
+                        continue;
+                    }
+                    if (file.isDirectory()) {
+                        if (filter.acceptDirectory(file)) {
+                            directories.addFirst(file);
+                        }
+                    }
+                    else if (filter.acceptFile(file)) {
+                        return file;
+                    }
+                }
+                if (directories.isEmpty()) {
+                    return endOfData();
+                }
+                File[] listing = directories.removeFirst().listFiles();
+                currentListing = (listing != null) ? listing : new File[0];
+                currentIndex = 0;
+            }
         }
-        return files;
     }
 
     @Override
     public boolean equals(Object o) {
-        if (o instanceof FullBackup) {
+        if (o instanceof FullBackup && o.getClass() == getClass()) {
             FullBackup that = (FullBackup) o;
-            return Objects.equal(this.restorePolicy, that.restorePolicy);
+            return this.getScanThreads() == that.getScanThreads()
+                && Objects.equal(this.includes, that.includes)
+                && Objects.equal(this.excludes, that.excludes)
+                && this.skipRegenerableData == that.skipRegenerableData
+                && Objects.equal(this.restorePolicy, that.restorePolicy);
         }
         return false;
 
@@ -76,7 +310,7 @@ public class FullBackup extends FileManager {
 
     @Override
     public int hashCode() {
-        return 73;
+        return Objects.hashCode(getScanThreads(), includes, excludes, skipRegenerableData, 73);
     }
 
     @SuppressWarnings("unused")
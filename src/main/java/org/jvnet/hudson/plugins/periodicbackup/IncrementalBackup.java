@@ -0,0 +1,211 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010 - 2011, Tomasz Blaszczynski, Emanuele Zattin
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jvnet.hudson.plugins.periodicbackup;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Lists;
+import hudson.Extension;
+import hudson.model.Hudson;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ *
+ * IncrementalBackup will choose only the files in the Jenkins homedir that are new or have changed
+ * (according to their size and modification time) since the previous backup, and it will record the deleted ones.
+ * Every fullBackupInterval backups all the files are chosen, like in FullBackup.
+ * During the restore the backups are applied in order starting from the last full backup.
+ */
+public class IncrementalBackup extends FullBackup {
+
+    public final static String MANIFEST_FILE_NAME = "periodicBackupManifest.txt";
+    private static final Logger LOGGER = Logger.getLogger(IncrementalBackup.class.getName());
+
+    private int fullBackupInterval;                                         // A full backup is performed every fullBackupInterval backups
+    private transient Date parentTimestamp;                                 // Timestamp of the backup the current one is based upon
+    private transient int runsSinceFullBackup;                              // Number of incremental backups since the last full one, including the current one
+    private transient List<String> deletedFiles;                            // Files deleted since the parent backup
+    private transient BackupManifest.ManifestWriter manifestWriter;         // Writes the manifest of the current backup
+
+    public IncrementalBackup(int fullBackupInterval) {
+        this(fullBackupInterval, DEFAULT_SCAN_THREADS, "", "", false, false, false, false);
+    }
+
+    @DataBoundConstructor
+    public IncrementalBackup(int fullBackupInterval, int scanThreads, String includes, String excludes, boolean skipRegenerableData,
+                             boolean diffRestore, boolean compareChecksums, boolean swapRestore) {
+        super(scanThreads, includes, excludes, skipRegenerableData, diffRestore, compareChecksums, swapRestore);
+        this.fullBackupInterval = fullBackupInterval;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "IncrementalBackup";
+    }
+
+    @SuppressWarnings("unused")
+    public int getFullBackupInterval() {
+        return fullBackupInterval;
+    }
+
+    @SuppressWarnings("unused")
+    public void setFullBackupInterval(int fullBackupInterval) {
+        this.fullBackupInterval = fullBackupInterval;
+    }
+
+    @Override
+    public Iterable<File> getFilesToBackup() {
+        final File rootDir = Hudson.getInstance().getRootDir();
+        final File manifestFile = new File(rootDir, MANIFEST_FILE_NAME);
+        final File temporaryManifestFile = new File(rootDir, MANIFEST_FILE_NAME + ".tmp");
+        final Iterable<File> allFiles = super.getFilesToBackup();
+
+        return new Iterable<File>() {
+            public Iterator<File> iterator() {
+                BackupManifest previousManifest;
+                try {
+                    previousManifest = BackupManifest.load(manifestFile);
+                    if(manifestWriter != null) {
+                        manifestWriter.abort();
+                    }
+                    manifestWriter = new BackupManifest.ManifestWriter(temporaryManifestFile);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Could not access the manifest " + e.getMessage(), e);
+                }
+                if(previousManifest == null || fullBackupInterval <= 1 || previousManifest.getRunsSinceFullBackup() + 1 >= fullBackupInterval) {
+                    LOGGER.info("Performing a full backup");
+                    previousManifest = null;
+                    parentTimestamp = null;
+                    runsSinceFullBackup = 0;
+                }
+                else {
+                    LOGGER.info("Performing an incremental backup based on the backup from " + previousManifest.getTimestamp());
+                    parentTimestamp = previousManifest.getTimestamp();
+                    runsSinceFullBackup = previousManifest.getRunsSinceFullBackup() + 1;
+                }
+                deletedFiles = Collections.emptyList();
+                return new ChangedFilesIterator(allFiles.iterator(), previousManifest, manifestWriter);
+            }
+        };
+    }
+
+    @Override
+    public Date getParentTimestamp() {
+        return parentTimestamp;
+    }
+
+    @Override
+    public Iterable<String> getDeletedFiles() {
+        return deletedFiles != null ? deletedFiles : Collections.<String>emptyList();
+    }
+
+    @Override
+    public void backupFinished(Date timestamp) throws IOException {
+        super.backupFinished(timestamp);
+        if(manifestWriter != null) {
+            manifestWriter.commit(new File(Hudson.getInstance().getRootDir(), MANIFEST_FILE_NAME), timestamp, runsSinceFullBackup);
+            manifestWriter = null;
+        }
+    }
+
+    /**
+     *
+     * Filters the files of the underlying iterator leaving only the new or changed ones and writes the manifest for each of them
+     */
+    private class ChangedFilesIterator extends AbstractIterator<File> {
+
+        private final Iterator<File> files;
+        private final BackupManifest previousManifest;
+        private final BackupManifest.ManifestWriter writer;
+
+        ChangedFilesIterator(Iterator<File> files, BackupManifest previousManifest, BackupManifest.ManifestWriter writer) {
+            this.files = files;
+            this.previousManifest = previousManifest;
+            this.writer = writer;
+        }
+
+        @Override
+        protected File computeNext() {
+            try {
+                while (files.hasNext()) {
+                    File file = files.next();
+                    String relativePath = getArchivePath(file);
+                    // The manifest itself is not part of the backup
+                    if(relativePath.startsWith(MANIFEST_FILE_NAME)) {
+                        continue;
+                    }
+                    long size = file.length();
+                    long lastModified = file.lastModified();
+                    writer.add(relativePath, size, lastModified);
+                    if(previousManifest == null || previousManifest.isChanged(relativePath, size, lastModified)) {
+                        return file;
+                    }
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not write the manifest " + e.getMessage(), e);
+            }
+            if(previousManifest != null) {
+                deletedFiles = Lists.newArrayList(previousManifest.getUncheckedPaths());
+                LOGGER.info(deletedFiles.size() + " files have been deleted since the previous backup");
+            }
+            return endOfData();
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o instanceof IncrementalBackup) {
+            IncrementalBackup that = (IncrementalBackup) o;
+            return this.fullBackupInterval == that.fullBackupInterval
+                && this.getScanThreads() == that.getScanThreads()
+                && Objects.equal(this.getIncludes(), that.getIncludes())
+                && Objects.equal(this.getExcludes(), that.getExcludes())
+                && this.isSkipRegenerableData() == that.isSkipRegenerableData()
+                && Objects.equal(this.restorePolicy, that.restorePolicy);
+        }
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(fullBackupInterval, getScanThreads(), getIncludes(), getExcludes(), isSkipRegenerableData(), 79);
+    }
+
+    @SuppressWarnings("unused")
+    @Extension
+    public static class DescriptorImpl extends FileManagerDescriptor {
+        public String getDisplayName() {
+            return "IncrementalBackup";
+        }
+    }
+}
@@ -25,8 +25,8 @@
 package org.jvnet.hudson.plugins.periodicbackup;
 
 import com.google.common.base.Objects;
-import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.common.io.Files;
 import hudson.Extension;
@@ -37,8 +37,12 @@ import org.kohsuke.stapler.QueryParameter;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.logging.Logger;
 
@@ -49,6 +53,9 @@ import java.util.logging.Logger;
 public class LocalDirectory extends Location {
 
     private File path;
+    private static final String CHUNK_DIRECTORY = "chunks";                // Subdirectory holding the chunks shared among the backups
+    private transient BackupCatalog catalog;                               // Lists the backups stored in the directory
+    private transient Map<Date, BackupObject> backupObjects;              // BackupObjects listed so far, by timestamp
     private static final Logger LOGGER = Logger.getLogger(LocalDirectory.class.getName());
 
     @DataBoundConstructor
@@ -63,28 +70,138 @@ public class LocalDirectory extends Location {
             LOGGER.warning(path.getAbsolutePath() + " is not a existing/writable directory.");
             return Sets.newHashSet();
         }
-        if(path.listFiles().length == 0) {
-            return Sets.newHashSet();
+        List<BackupObject> backups = Lists.newArrayList();
+        try {
+            // The catalog is sorted according to the timestamp
+            for (BackupCatalog.Entry entry : getCatalogEntries()) {
+                backups.add(getBackupObject(entry));
+            }
+        } catch (IOException e) {
+            LOGGER.warning("Could not read the backup catalog in " + path.getAbsolutePath() + " " + e.getMessage());
+        }
+        return backups;
+    }
+
+    /**
+     *
+     * Reads the catalog of this location, the catalog is created from the BackupObject files if it does not exist yet
+     *
+     * @return the backups in this location sorted by timestamp
+     * @throws IOException If an IO problem occurs
+     */
+    private synchronized List<BackupCatalog.Entry> getCatalogEntries() throws IOException {
+        if(catalog == null) {
+            catalog = new BackupCatalog(path);
+            backupObjects = Maps.newHashMap();
+        }
+        if(catalog.exists()) {
+            return catalog.read();
         }
+        LOGGER.info("Creating the backup catalog in " + path.getAbsolutePath());
         File[] files = path.listFiles(Util.extensionFileFilter(BackupObject.EXTENSION));
-        List<File> backupObjectFiles = Lists.newArrayList(files);
-        // The sorting will be performed according to the timestamp
-        Collections.sort(backupObjectFiles);
+        if(files == null) {
+            throw new IOException(path.getAbsolutePath() + " is not a directory");
+        }
+        List<BackupCatalog.Entry> entries = Lists.newArrayList();
+        for (File backupObjectFile : files) {
+            BackupObject backupObject = BackupObject.getFromFile().apply(backupObjectFile);
+            if(backupObject != null) {
+                entries.add(createCatalogEntry(backupObject, backupObjectFile.getName(), Arrays.asList(findArchives(backupObject.getTimestamp()))));
+                backupObjects.put(backupObject.getTimestamp(), backupObject);
+            }
+        }
+        Collections.sort(entries, new Comparator<BackupCatalog.Entry>() {
+            public int compare(BackupCatalog.Entry entry1, BackupCatalog.Entry entry2) {
+                return entry1.getTimestamp().compareTo(entry2.getTimestamp());
+            }
+        });
+        catalog.rewrite(entries);
+        return entries;
+    }
+
+    /**
+     *
+     * Returns the BackupObject of the given catalog entry, its file is read only when something else than its timestamps is needed
+     */
+    private synchronized BackupObject getBackupObject(BackupCatalog.Entry entry) {
+        BackupObject backupObject = backupObjects.get(entry.getTimestamp());
+        if(backupObject == null) {
+            backupObject = new BackupObject(new File(path, entry.getBackupObjectFileName()), this, entry.getTimestamp(), entry.getParentTimestamp(),
+                    entry.getFileManagerName());
+            backupObjects.put(entry.getTimestamp(), backupObject);
+        }
+        return backupObject;
+    }
+
+    /**
+     *
+     * Adds a stored backup to the catalog
+     *
+     * @param archives archive files as stored in this location
+     * @param backupObjectFile File with serialized backupObject
+     * @throws IOException If an IO problem occurs
+     */
+    private synchronized void addToCatalog(Iterable<File> archives, File backupObjectFile) throws IOException {
+        BackupObject backupObject = BackupObject.getFromFile().apply(backupObjectFile);
+        if(backupObject == null) {
+            throw new IOException("Could not read " + backupObjectFile.getAbsolutePath());
+        }
+        // Creates the catalog from the previous backups first, if needed
+        getCatalogEntries();
+        catalog.add(createCatalogEntry(backupObject, backupObjectFile.getName(), archives));
+        backupObjects.put(backupObject.getTimestamp(), backupObject);
+    }
 
-        return Iterables.transform(backupObjectFiles, BackupObject.getFromFile());
+    private static BackupCatalog.Entry createCatalogEntry(BackupObject backupObject, String backupObjectFileName, Iterable<File> archives) {
+        Map<String, Long> volumes = Maps.newLinkedHashMap();
+        for (File archive : archives) {
+            volumes.put(archive.getName(), archive.length());
+        }
+        FileManager fileManager = backupObject.getFileManager();
+        return new BackupCatalog.Entry(backupObject.getTimestamp(), backupObject.getParentTimestamp(),
+                backupObject.getStorage().getClass().getName(), volumes, backupObjectFileName,
+                fileManager != null ? fileManager.getDisplayName() : null);
+    }
+
+    /**
+     *
+     * Lists the archive files stored in this location for the backup with the given timestamp
+     */
+    private File[] findArchives(final Date timestamp) {
+        return path.listFiles(new FileFilter() {
+            public boolean accept(File pathname) {
+                return (pathname.getName().contains( Util.getFormattedDate(BackupObject.FILE_TIMESTAMP_PATTERN, timestamp)) &&
+                        !pathname.getName().endsWith(BackupObject.EXTENSION) &&
+                        !pathname.getName().endsWith(DirectorySink.PARTIAL_EXTENSION) &&
+                        pathname.isFile());
+            }
+        });
     }
 
     @Override
     public void storeBackupInLocation(Iterable<File> archives, File backupObjectFile) throws IOException {
         if (this.enabled && path.exists()) {
+            int chunksSkipped = 0;
+            List<File> storedArchives = Lists.newArrayList();
             for (File archive : archives) {
+                if(ChunkStorage.CHUNK_EXTENSION.equals(Util.getExtension(archive))) {
+                    if(!storeChunk(archive)) {
+                        chunksSkipped++;
+                    }
+                    continue;
+                }
                 File destination = new File(path, archive.getName());
-                Files.copy(archive, destination);
+                BackupGovernor.get().copy(archive, destination);
+                storedArchives.add(destination);
                 LOGGER.info(archive.getName() + " copied to " + destination.getAbsolutePath());
             }
+            if(chunksSkipped > 0) {
+                LOGGER.info(chunksSkipped + " chunks were already stored in " + path.getAbsolutePath());
+            }
             File backupObjectFileDestination = new File(path, backupObjectFile.getName());
             Files.copy(backupObjectFile, backupObjectFileDestination);
             LOGGER.info(backupObjectFile.getName() + " copied to " + backupObjectFileDestination.getAbsolutePath());
+            addToCatalog(storedArchives, backupObjectFile);
         }
         else {
             LOGGER.warning("skipping location " + this.path + " since it is disabled or it does not exist.");
@@ -92,50 +209,189 @@ public class LocalDirectory extends Location {
     }
 
     @Override
-    public Iterable<File> retrieveBackupFromLocation(final BackupObject backup, File tempDir) throws IOException, PeriodicBackupException {
-        // Get the list of archive files related to the given BackupObject
-        File[] files = path.listFiles(new FileFilter() {
-            public boolean accept(File pathname) {
-                return (pathname.getName().contains( Util.getFormattedDate(BackupObject.FILE_TIMESTAMP_PATTERN, backup.getTimestamp())) &&
-                        !pathname.getName().endsWith(BackupObject.EXTENSION) &&
-                        pathname.isFile());
-            }
-        });
-        if(files.length <= 0) {
-            throw new PeriodicBackupException("Backup archives do not exist in " + path.getAbsolutePath());
+    public BackupSink openBackupSink() throws IOException {
+        if (this.enabled && path.exists()) {
+            return new DirectorySink(path) {
+                @Override
+                public void commit(File backupObjectFile) throws IOException {
+                    super.commit(backupObjectFile);
+                    addToCatalog(getArchives(), backupObjectFile);
+                }
+            };
+        }
+        return null;
+    }
+
+    /**
+     *
+     * Copies the chunk to the chunk directory unless it is already there
+     *
+     * @param chunk chunk file
+     * @return true if the chunk has been copied
+     * @throws IOException If an IO problem occurs
+     */
+    private boolean storeChunk(File chunk) throws IOException {
+        File destination = getChunkFile(chunk.getName());
+        if(destination.exists()) {
+            return false;
+        }
+        File parent = destination.getParentFile();
+        if(!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Could not create " + parent.getAbsolutePath());
+        }
+        // The chunk gets its final name only when it is complete, since existing chunks are never copied again
+        File partial = new File(parent, chunk.getName() + ".tmp");
+        BackupGovernor.get().copy(chunk, partial);
+        if(!partial.renameTo(destination) && !destination.exists()) {
+            throw new IOException("Could not rename " + partial.getAbsolutePath() + " to " + destination.getAbsolutePath());
         }
+        return true;
+    }
+
+    private File getChunkFile(String chunkName) {
+        // Chunks are spread among subdirectories named after the first characters of their hash
+        return new File(new File(new File(path, CHUNK_DIRECTORY), chunkName.substring(0, 2)), chunkName);
+    }
+
+    @Override
+    public boolean hasChunk(String chunkName) {
+        return getChunkFile(chunkName).exists();
+    }
+
+    @Override
+    public Iterable<File> retrieveBackupFromLocation(BackupObject backup, File tempDir) throws IOException, PeriodicBackupException {
         Set<File> archivesInTemp = Sets.newHashSet();
 
         // Copy every archive to the temp dir
-        for(File file : files) {
-            File copiedFile = new File(tempDir, file.getName());
-            if(copiedFile.exists()) {
-                LOGGER.warning(copiedFile.getAbsolutePath() + " already exists, deleting... ");
-                if(!copiedFile.delete()) {
-                    throw new PeriodicBackupException("Could not delete " + copiedFile.getAbsolutePath());
+        for(String volume : getBackupVolumes(backup)) {
+            File file = new File(path, volume);
+            archivesInTemp.add(retrieveVolumeFromLocation(backup, volume, tempDir));
+
+            // The chunks referenced by an index are needed to rebuild its files
+            if(ChunkStorage.INDEX_EXTENSION.equals(Util.getExtension(file))) {
+                for (String chunkName : ChunkStorage.getReferencedChunks(file)) {
+                    File chunkInTemp = new File(tempDir, chunkName);
+                    if(!chunkInTemp.exists()) {
+                        Files.copy(getChunkFile(chunkName), chunkInTemp);
+                        archivesInTemp.add(chunkInTemp);
+                    }
                 }
             }
-            Files.copy(file, copiedFile);
-            LOGGER.info("Archive " + file.getAbsolutePath() + " copied to " + copiedFile.getAbsolutePath());
-            archivesInTemp.add(copiedFile);
         }
         return archivesInTemp;
     }
 
+    @Override
+    public List<String> getBackupVolumes(BackupObject backup) throws IOException, PeriodicBackupException {
+        // Get the list of archive files related to the given BackupObject, from the catalog when possible
+        List<String> volumes = null;
+        for (BackupCatalog.Entry entry : getCatalogEntries()) {
+            if(entry.getTimestamp().equals(backup.getTimestamp()) && !entry.getVolumes().isEmpty()) {
+                volumes = Lists.newArrayList(entry.getVolumes().keySet());
+            }
+        }
+        if(volumes == null) {
+            volumes = Lists.newArrayList();
+            for(File file : findArchives(backup.getTimestamp())) {
+                volumes.add(file.getName());
+            }
+        }
+        if(volumes.isEmpty()) {
+            throw new PeriodicBackupException("Backup archives do not exist in " + path.getAbsolutePath());
+        }
+        return volumes;
+    }
+
+    @Override
+    public File retrieveVolumeFromLocation(BackupObject backup, String volume, File tempDir) throws IOException, PeriodicBackupException {
+        File file = new File(path, volume);
+        File copiedFile = new File(tempDir, volume);
+        if(copiedFile.exists()) {
+            LOGGER.warning(copiedFile.getAbsolutePath() + " already exists, deleting... ");
+            if(!copiedFile.delete()) {
+                throw new PeriodicBackupException("Could not delete " + copiedFile.getAbsolutePath());
+            }
+        }
+        Files.copy(file, copiedFile);
+        LOGGER.info("Archive " + file.getAbsolutePath() + " copied to " + copiedFile.getAbsolutePath());
+        return copiedFile;
+    }
+
+    @Override
+    public File getLocalVolume(BackupObject backup, String volume) {
+        File file = new File(path, volume);
+        return file.isFile() ? file : null;
+    }
+
     @Override
     public void deleteBackupFiles(BackupObject backupObject) {
         String filenamePart = Util.generateFileNameBase(backupObject.getTimestamp());
         File[] files = path.listFiles();
 
         // Delete all the files containing the timestamp of the given BackupObject in their names
+        boolean indexDeleted = false;
         for(File file : files) {
             if (file.getAbsolutePath().contains(filenamePart)) {
                 LOGGER.info("Deleting old/redundant backup file " + file.getAbsolutePath());
                 if(!file.delete()) {
                     LOGGER.warning("Could not delete file " + file.getAbsolutePath());
                 }
+                else if(ChunkStorage.INDEX_EXTENSION.equals(Util.getExtension(file))) {
+                    indexDeleted = true;
+                }
+            }
+        }
+        if(indexDeleted) {
+            deleteUnreferencedChunks();
+        }
+        try {
+            synchronized (this) {
+                getCatalogEntries();
+                catalog.remove(backupObject.getTimestamp());
+                backupObjects.remove(backupObject.getTimestamp());
+            }
+        } catch (IOException e) {
+            LOGGER.warning("Could not update the backup catalog in " + path.getAbsolutePath() + " " + e.getMessage());
+        }
+    }
+
+    /**
+     *
+     * Deletes the chunks which are not referenced by any of the indexes left in this location
+     */
+    private void deleteUnreferencedChunks() {
+        File chunkDirectory = new File(path, CHUNK_DIRECTORY);
+        if(!chunkDirectory.isDirectory()) {
+            return;
+        }
+        Set<String> referencedChunks = Sets.newHashSet();
+        try {
+            for (File index : path.listFiles(Util.extensionFileFilter(ChunkStorage.INDEX_EXTENSION))) {
+                referencedChunks.addAll(ChunkStorage.getReferencedChunks(index));
+            }
+        } catch (IOException e) {
+            // Without knowing all the referenced chunks nothing can be deleted safely
+            LOGGER.warning("Could not read the chunk indexes in " + path.getAbsolutePath() + ", unreferenced chunks are kept. " + e.getMessage());
+            return;
+        }
+        int chunksDeleted = 0;
+        for (File subdirectory : chunkDirectory.listFiles()) {
+            File[] chunks = subdirectory.listFiles();
+            if(chunks == null) {
+                continue;
+            }
+            for (File chunk : chunks) {
+                if(!referencedChunks.contains(chunk.getName())) {
+                    if(chunk.delete()) {
+                        chunksDeleted++;
+                    }
+                    else {
+                        LOGGER.warning("Could not delete chunk " + chunk.getAbsolutePath());
+                    }
+                }
             }
         }
+        LOGGER.info(chunksDeleted + " unreferenced chunks deleted from " + chunkDirectory.getAbsolutePath());
     }
 
     public String getDisplayName() {
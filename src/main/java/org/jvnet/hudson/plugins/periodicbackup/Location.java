@@ -31,6 +31,7 @@ import hudson.model.Hudson;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
 
 /**
  *
@@ -62,6 +63,18 @@ public abstract class Location extends AbstractModelObject implements Describabl
      */
     public abstract void storeBackupInLocation(Iterable<File> archives, File backupObjectFile) throws IOException;
 
+    /**
+     *
+     * Opens a sink writing the archives straight into this location, the backup is stored once the sink is committed.
+     * Locations which cannot receive streams return null and get the archives through storeBackupInLocation.
+     *
+     * @return BackupSink for a new backup or null
+     * @throws IOException IO error
+     */
+    public BackupSink openBackupSink() throws IOException {
+        return null;
+    }
+
     /**
      *
      * Retrieves backup archive files from this location
@@ -74,6 +87,71 @@ public abstract class Location extends AbstractModelObject implements Describabl
      */
     public abstract Iterable<File>retrieveBackupFromLocation(BackupObject backup, File tempDir) throws IOException, PeriodicBackupException;
 
+    /**
+     *
+     * Tells whether an incremental backup kept in this location only holds the files changed since the backup
+     * it is based upon, so that all the backups of the chain have to be retrieved to restore it
+     *
+     * @return false if every backup retrieved from this location is complete on its own
+     */
+    public boolean isBackupChainNeeded() {
+        return true;
+    }
+
+    /**
+     *
+     * Lists the backup archive files, so that they can be retrieved one at a time with retrieveVolumeFromLocation.
+     * Locations which can only retrieve the whole backup return null.
+     *
+     * @param backup BackupObject related to the backup
+     * @return names of the backup archives or null
+     * @throws java.io.IOException if anything goes wrong with IO
+     * @throws PeriodicBackupException if anything else goes wrong
+     */
+    public List<String> getBackupVolumes(BackupObject backup) throws IOException, PeriodicBackupException {
+        return null;
+    }
+
+    /**
+     *
+     * Retrieves a single backup archive file listed by getBackupVolumes
+     *
+     * @param backup BackupObject related to the backup
+     * @param volume name of the backup archive
+     * @param tempDir temporary directory to store the archive
+     * @return the archive in the temporary directory
+     * @throws java.io.IOException if anything goes wrong with IO
+     * @throws PeriodicBackupException if anything else goes wrong
+     */
+    public File retrieveVolumeFromLocation(BackupObject backup, String volume, File tempDir) throws IOException, PeriodicBackupException {
+        throw new PeriodicBackupException(getClass().getSimpleName() + " cannot retrieve single backup archives");
+    }
+
+    /**
+     *
+     * Gives access to a backup archive file listed by getBackupVolumes where it is kept, so that parts of it can be read
+     * without retrieving the whole archive. Locations which are not on the local file system return null.
+     *
+     * @param backup BackupObject related to the backup
+     * @param volume name of the backup archive
+     * @return the archive file in the location or null
+     */
+    public File getLocalVolume(BackupObject backup, String volume) {
+        return null;
+    }
+
+    /**
+     *
+     * Tells whether this location already holds the given chunk created by a deduplicating Storage,
+     * such chunks are shared among the backups and do not need to be sent again.
+     *
+     * @param chunkName name of the chunk file
+     * @return true if the chunk is stored in this location
+     */
+    public boolean hasChunk(String chunkName) {
+        return false;
+    }
+
     /**
      * This method deletes all files related to given BackupObject
      * @param backupObject the backupObject of the backup we want to delete
@@ -34,17 +34,22 @@ import java.util.logging.Logger;
 /**
  *
  * This RestorePolicy assumes that at this stage all the files in tempDir are the files to be restored.
- * The whole content of the tempDir will be copied to the home directory and the existing files will be overwritten.
+ * The whole content of the tempDir will be copied to the home directory and the existing files will be overwritten,
+ * then the links recorded during the backup are created again.
  */
 public class OverwriteRestorePolicy implements RestorePolicy {
 
     private static final Logger LOGGER = Logger.getLogger(ReplaceRestorePolicy.class.getName());
 
-    public void restore(File tempDir) throws IOException {
+    public void restore(File tempDir, BackupFilter filter) throws IOException {
         File hudsonRoot = Hudson.getInstance().getRootDir();
 
         FileUtils.copyDirectory(tempDir, hudsonRoot);
+        BackupLinks.restore(tempDir, hudsonRoot);
         LOGGER.info("Restoring of files finished");
     }
 
+    public void restoreFinished(boolean successful) {
+    }
+
 }
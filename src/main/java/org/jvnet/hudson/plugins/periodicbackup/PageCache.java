@@ -0,0 +1,186 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010 - 2011, Tomasz Blaszczynski, Emanuele Zattin
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jvnet.hudson.plugins.periodicbackup;
+
+import com.sun.jna.Library;
+import com.sun.jna.Native;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
+
+import java.io.FileDescriptor;
+import java.lang.reflect.Field;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ *
+ * PageCache gives advice to the Linux page cache through posix_fadvise, so that the files read and written by the
+ * backup do not evict the files Jenkins works with. The pages of a file which were already cached before the backup
+ * read it are found with mincore and kept, only the pages the backup brought in are dropped. It is called through
+ * JNA, on the other platforms or when the calls are not available nothing is done.
+ */
+public class PageCache {
+
+    private final static int POSIX_FADV_DONTNEED = 4;                       // The pages will not be accessed again
+    private final static int POSIX_FADV_NOREUSE = 5;                        // The pages will be accessed only once
+    private final static int PROT_READ = 1;
+    private final static int MAP_SHARED = 1;
+    private final static Pointer MAP_FAILED = Pointer.createConstant(-1);
+    private static final Logger LOGGER = Logger.getLogger(PageCache.class.getName());
+
+    private static final LibC LIBC;
+    private static final Field FD;                                          // The file descriptor number in FileDescriptor
+    private static final long PAGE_SIZE;
+
+    static {
+        LibC libc = null;
+        Field fd = null;
+        long pageSize = 4096;
+        if ("Linux".equals(System.getProperty("os.name"))) {
+            try {
+                fd = FileDescriptor.class.getDeclaredField("fd");
+                fd.setAccessible(true);
+                libc = (LibC) Native.loadLibrary("c", LibC.class);
+                pageSize = libc.getpagesize();
+            } catch (Throwable t) {
+                LOGGER.info("posix_fadvise is not available, the page cache will not be advised. " + t);
+                libc = null;
+            }
+        }
+        LIBC = libc;
+        FD = fd;
+        PAGE_SIZE = pageSize;
+    }
+
+    private interface LibC extends Library {
+        int posix_fadvise64(int fd, long offset, long len, int advice);
+
+        Pointer mmap64(Pointer address, NativeLong length, int protection, int flags, int fd, long offset);
+
+        int munmap(Pointer address, NativeLong length);
+
+        int mincore(Pointer address, NativeLong length, byte[] residentPages);
+
+        int getpagesize();
+    }
+
+    /**
+     *
+     * @return true if the advice is given to the page cache
+     */
+    public static boolean isAvailable() {
+        return LIBC != null;
+    }
+
+    /**
+     *
+     * Tells that the whole file is going to be read only once
+     *
+     * @param descriptor descriptor of the open file
+     */
+    public static void readOnce(FileDescriptor descriptor) {
+        advise(descriptor, 0, 0, POSIX_FADV_NOREUSE);
+    }
+
+    /**
+     *
+     * Finds the pages of a file which are in the page cache, before the backup reads it
+     *
+     * @param descriptor descriptor of the open file
+     * @param length length of the file
+     * @return one byte per page of the file whose lowest bit is set if the page is cached, or null if it is not known
+     */
+    public static byte[] getResidentPages(FileDescriptor descriptor, long length) {
+        if (LIBC == null || length <= 0 || (length + PAGE_SIZE - 1) / PAGE_SIZE > Integer.MAX_VALUE) {
+            return null;
+        }
+        try {
+            NativeLong size = new NativeLong(length);
+            // Mapping the file does not read it, mincore only looks up the pages in the cache
+            Pointer address = LIBC.mmap64(null, size, PROT_READ, MAP_SHARED, FD.getInt(descriptor), 0);
+            if (address == null || MAP_FAILED.equals(address)) {
+                return null;
+            }
+            try {
+                byte[] residentPages = new byte[(int) ((length + PAGE_SIZE - 1) / PAGE_SIZE)];
+                return LIBC.mincore(address, size, residentPages) == 0 ? residentPages : null;
+            } finally {
+                LIBC.munmap(address, size);
+            }
+        } catch (Throwable t) {
+            LOGGER.log(Level.FINE, "mincore failed", t);
+            return null;
+        }
+    }
+
+    /**
+     *
+     * Drops the cached pages of a file which were not cached before the backup read it. When it is not known
+     * which pages were cached nothing is dropped, the pages Jenkins uses are never evicted.
+     *
+     * @param descriptor descriptor of the open file
+     * @param residentPages pages cached before the backup read the file as returned by getResidentPages, or null
+     */
+    public static void dropPagesNotResident(FileDescriptor descriptor, byte[] residentPages) {
+        if (LIBC == null || residentPages == null) {
+            return;
+        }
+        int firstDropped = -1;
+        for (int page = 0; page <= residentPages.length; page++) {
+            boolean keep = page == residentPages.length || (residentPages[page] & 1) != 0;
+            if (!keep && firstDropped < 0) {
+                firstDropped = page;
+            }
+            else if (keep && firstDropped >= 0) {
+                advise(descriptor, firstDropped * PAGE_SIZE, (page - firstDropped) * PAGE_SIZE, POSIX_FADV_DONTNEED);
+                firstDropped = -1;
+            }
+        }
+    }
+
+    /**
+     *
+     * Drops the cached pages of a whole file created by the backup, the pages not written to the disk yet are kept
+     *
+     * @param descriptor descriptor of the open file
+     */
+    public static void drop(FileDescriptor descriptor) {
+        advise(descriptor, 0, 0, POSIX_FADV_DONTNEED);
+    }
+
+    private static void advise(FileDescriptor descriptor, long offset, long length, int advice) {
+        if (LIBC == null) {
+            return;
+        }
+        try {
+            int result = LIBC.posix_fadvise64(FD.getInt(descriptor), offset, length, advice);
+            if (result != 0) {
+                LOGGER.fine("posix_fadvise failed with error " + result);
+            }
+        } catch (Exception e) {
+            LOGGER.log(Level.FINE, "posix_fadvise failed", e);
+        }
+    }
+}
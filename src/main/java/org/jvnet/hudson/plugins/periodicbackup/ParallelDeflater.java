@@ -0,0 +1,401 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010 - 2011, Tomasz Blaszczynski, Emanuele Zattin
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jvnet.hudson.plugins.periodicbackup;
+
+import com.google.common.io.CountingOutputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.util.Calendar;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ *
+ * ParallelDeflater compresses a single big file the way pigz does: the file is split into blocks which are deflated
+ * by several threads at the same time and then concatenated into one deflate stream. Each block is primed with the
+ * last 32KiB of the previous block, so the compression ratio stays close to the single threaded one.
+ * The blocks are ended with a sync flush, which needs Deflater support available since Java 7, on older runtimes
+ * the file is compressed in the calling thread.
+ */
+public class ParallelDeflater {
+
+    public final static int DEFAULT_BLOCK_SIZE = 1024 * 1024;               // Size of the uncompressed block handed to a single thread
+    private final static int DICTIONARY_SIZE = 32 * 1024;                   // Deflate window size
+    private final static int SYNC_FLUSH = 2;                                // Deflater.SYNC_FLUSH
+    private final static Method SYNC_FLUSH_DEFLATE = findSyncFlushDeflate();
+    private final static long ZIP64_MAGIC = 0xffffffffL;                    // Size or offset stored in the Zip64 extra field
+    private final static long ZIP64_THRESHOLD = 0xf0000000L;                // Files from this size on are archived as Zip64 entries
+    private static final Logger LOGGER = Logger.getLogger(ParallelDeflater.class.getName());
+
+    private final ExecutorService blockCompressor;
+    private final int blockSize;
+    private final int maxPendingBlocks;                                     // Limits the memory used by the blocks read ahead
+    private final int level;                                                // Deflate level
+    long zip64Threshold = ZIP64_THRESHOLD;
+    private long crc;
+    private long size;
+    private long compressedSize;
+
+    public ParallelDeflater(ExecutorService blockCompressor, int blockSize, int maxPendingBlocks) {
+        this(blockCompressor, blockSize, maxPendingBlocks, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    public ParallelDeflater(ExecutorService blockCompressor, int blockSize, int maxPendingBlocks, int level) {
+        this.blockCompressor = blockCompressor;
+        this.blockSize = blockSize > 0 ? blockSize : DEFAULT_BLOCK_SIZE;
+        this.maxPendingBlocks = Math.max(1, maxPendingBlocks);
+        this.level = level;
+    }
+
+    /**
+     *
+     * @return true if the running JVM is able to deflate the blocks in parallel
+     */
+    public static boolean isSupported() {
+        return SYNC_FLUSH_DEFLATE != null;
+    }
+
+    public long getCrc() {
+        return crc;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getCompressedSize() {
+        return compressedSize;
+    }
+
+    /**
+     *
+     * Writes the raw deflate stream (without zlib header) of the given input to the output,
+     * the CRC and the sizes of the data are available afterwards through the getters
+     *
+     * @param in data to compress
+     * @param out destination of the compressed data
+     * @throws IOException if reading, writing or compressing fails
+     */
+    public void deflate(InputStream in, OutputStream out) throws IOException {
+        CRC32 checksum = new CRC32();
+        size = 0;
+        compressedSize = 0;
+        if (!isSupported()) {
+            deflateSerially(in, out, checksum);
+            crc = checksum.getValue();
+            return;
+        }
+        LinkedList<Future<byte[]>> pendingBlocks = new LinkedList<Future<byte[]>>();
+        try {
+            byte[] dictionary = null;
+            boolean last = false;
+            while (!last) {
+                final byte[] block = new byte[blockSize];
+                final int length = readFully(in, block);
+                last = length < blockSize;
+                checksum.update(block, 0, length);
+                size += length;
+                if (pendingBlocks.size() >= maxPendingBlocks) {
+                    writeBlock(pendingBlocks.removeFirst(), out);
+                }
+                pendingBlocks.add(blockCompressor.submit(new BlockDeflater(block, length, dictionary, last, level)));
+                dictionary = getDictionary(block, length);
+            }
+            while (!pendingBlocks.isEmpty()) {
+                writeBlock(pendingBlocks.removeFirst(), out);
+            }
+        } finally {
+            for (Future<byte[]> pendingBlock : pendingBlocks) {
+                pendingBlock.cancel(true);
+            }
+        }
+        crc = checksum.getValue();
+    }
+
+    /**
+     *
+     * Writes a zip archive containing only the given file, compressed with deflate(InputStream, OutputStream).
+     * The CRC and the sizes follow the compressed data in a data descriptor, so the archive can be written
+     * to any stream without storing the compressed data anywhere else first. Files of 4GiB and more are
+     * written as Zip64 entries.
+     *
+     * @param file file to archive
+     * @param entryName name of the file inside the archive
+     * @param archive stream the archive is written to, it is not closed
+     * @throws IOException if the file could not be archived
+     */
+    public void createArchive(File file, String entryName, OutputStream archive) throws IOException {
+        byte[] name = entryName.replace(File.separatorChar, '/').getBytes("UTF-8");
+        long dosTime = toDosTime(file.lastModified());
+        // The sizes are only known after compression, Zip64 is decided upfront with room for a slight expansion
+        boolean zip64 = file.length() >= zip64Threshold;
+        OutputStream out = new BufferedOutputStream(archive, 64 * 1024);
+        byte[] localHeader = createHeader(0x04034b50, name, dosTime, false, zip64);
+        out.write(localHeader);
+        InputStream in = BackupGovernor.get().openInput(file);
+        try {
+            deflate(in, out);
+        } finally {
+            in.close();
+        }
+        if (!zip64 && (size >= ZIP64_MAGIC || compressedSize >= ZIP64_MAGIC)) {
+            throw new IOException("File " + file.getAbsolutePath() + " grew beyond the size of a zip archive while being archived");
+        }
+        byte[] dataDescriptor = new byte[zip64 ? 24 : 16];
+        putLong(dataDescriptor, 0, 0x08074b50);
+        putLong(dataDescriptor, 4, crc);
+        if (zip64) {
+            putLongLong(dataDescriptor, 8, compressedSize);
+            putLongLong(dataDescriptor, 16, size);
+        } else {
+            putLong(dataDescriptor, 8, compressedSize);
+            putLong(dataDescriptor, 12, size);
+        }
+        out.write(dataDescriptor);
+
+        long centralDirectoryOffset = localHeader.length + compressedSize + dataDescriptor.length;
+        byte[] centralDirectory = createHeader(0x02014b50, name, dosTime, true, zip64);
+        out.write(centralDirectory);
+
+        if (zip64) {
+            byte[] zip64End = new byte[56];
+            putLong(zip64End, 0, 0x06064b50);
+            putLongLong(zip64End, 4, zip64End.length - 12);
+            putShort(zip64End, 12, (3 << 8) | 45);                          // Made by unix, zip 4.5
+            putShort(zip64End, 14, 45);                                     // Version needed to extract
+            putLongLong(zip64End, 24, 1);
+            putLongLong(zip64End, 32, 1);
+            putLongLong(zip64End, 40, centralDirectory.length);
+            putLongLong(zip64End, 48, centralDirectoryOffset);
+            out.write(zip64End);
+
+            byte[] locator = new byte[20];
+            putLong(locator, 0, 0x07064b50);
+            putLongLong(locator, 8, centralDirectoryOffset + centralDirectory.length);
+            putLong(locator, 16, 1);
+            out.write(locator);
+        }
+
+        byte[] end = new byte[22];
+        putLong(end, 0, 0x06054b50);
+        putShort(end, 8, 1);
+        putShort(end, 10, 1);
+        putLong(end, 12, centralDirectory.length);
+        putLong(end, 16, zip64 ? ZIP64_MAGIC : centralDirectoryOffset);
+        out.write(end);
+        out.flush();
+    }
+
+    /**
+     *
+     * Creates either the local file header or the central directory record of the only entry of the archive,
+     * the local file header leaves the CRC and the sizes to the data descriptor. Zip64 entries carry the sizes
+     * in the Zip64 extra field.
+     */
+    private byte[] createHeader(long signature, byte[] name, long dosTime, boolean central, boolean zip64) {
+        int offset = central ? 46 : 30;
+        byte[] header = new byte[offset + name.length + (zip64 ? 20 : 0)];
+        int version = zip64 ? 45 : 20;
+        int i = 0;
+        putLong(header, i, signature);
+        i += 4;
+        if (central) {
+            putShort(header, i, (3 << 8) | version);                        // Made by unix
+            i += 2;
+        }
+        putShort(header, i, version);                                       // Version needed to extract
+        putShort(header, i + 2, 0x0808);                                    // Flags, data descriptor present and UTF-8 name
+        putShort(header, i + 4, Deflater.DEFLATED);
+        putLong(header, i + 6, dosTime);
+        if (central) {
+            putLong(header, i + 10, crc);
+            putLong(header, i + 14, zip64 ? ZIP64_MAGIC : compressedSize);
+            putLong(header, i + 18, zip64 ? ZIP64_MAGIC : size);
+            putLong(header, 38, 0100644L << 16);                            // External attributes (unix file mode)
+        } else if (zip64) {
+            putLong(header, i + 14, ZIP64_MAGIC);
+            putLong(header, i + 18, ZIP64_MAGIC);
+        }
+        putShort(header, i + 22, name.length);
+        System.arraycopy(name, 0, header, offset, name.length);
+        if (zip64) {
+            putShort(header, i + 24, 20);                                   // Extra field length
+            int extra = offset + name.length;
+            putShort(header, extra, 0x0001);                                // Zip64 extended information
+            putShort(header, extra + 2, 16);
+            // The local header of a streamed entry has zeroed sizes, the real ones are in the data descriptor
+            putLongLong(header, extra + 4, central ? size : 0);
+            putLongLong(header, extra + 12, central ? compressedSize : 0);
+        }
+        return header;
+    }
+
+    private void writeBlock(Future<byte[]> pendingBlock, OutputStream out) throws IOException {
+        byte[] compressed;
+        try {
+            compressed = pendingBlock.get();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while compressing");
+        } catch (ExecutionException e) {
+            throw new IOException("Could not compress block " + e.getCause().getMessage());
+        }
+        out.write(compressed);
+        compressedSize += compressed.length;
+    }
+
+    private void deflateSerially(InputStream in, OutputStream out, CRC32 checksum) throws IOException {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            CountingOutputStream countingOut = new CountingOutputStream(out);
+            DeflaterOutputStream deflaterOut = new DeflaterOutputStream(countingOut, deflater, 64 * 1024);
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                checksum.update(buffer, 0, read);
+                size += read;
+                deflaterOut.write(buffer, 0, read);
+            }
+            deflaterOut.finish();
+            compressedSize = countingOut.getCount();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static int readFully(InputStream in, byte[] buffer) throws IOException {
+        int length = 0;
+        int read;
+        while (length < buffer.length && (read = in.read(buffer, length, buffer.length - length)) != -1) {
+            length += read;
+        }
+        return length;
+    }
+
+    private static byte[] getDictionary(byte[] block, int length) {
+        int dictionaryLength = Math.min(DICTIONARY_SIZE, length);
+        byte[] dictionary = new byte[dictionaryLength];
+        System.arraycopy(block, length - dictionaryLength, dictionary, 0, dictionaryLength);
+        return dictionary;
+    }
+
+    private static long toDosTime(long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        int year = calendar.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);                                   // 1980-01-01 00:00:00
+        }
+        return ((long) (year - 1980) << 25) | (calendar.get(Calendar.MONTH) + 1) << 21 | calendar.get(Calendar.DAY_OF_MONTH) << 16
+                | calendar.get(Calendar.HOUR_OF_DAY) << 11 | calendar.get(Calendar.MINUTE) << 5 | calendar.get(Calendar.SECOND) >> 1;
+    }
+
+    private static void putShort(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) value;
+        buffer[offset + 1] = (byte) (value >> 8);
+    }
+
+    private static void putLong(byte[] buffer, int offset, long value) {
+        buffer[offset] = (byte) value;
+        buffer[offset + 1] = (byte) (value >> 8);
+        buffer[offset + 2] = (byte) (value >> 16);
+        buffer[offset + 3] = (byte) (value >> 24);
+    }
+
+    private static void putLongLong(byte[] buffer, int offset, long value) {
+        putLong(buffer, offset, value);
+        putLong(buffer, offset + 4, value >>> 32);
+    }
+
+    private static Method findSyncFlushDeflate() {
+        try {
+            return Deflater.class.getMethod("deflate", byte[].class, int.class, int.class, int.class);
+        } catch (NoSuchMethodException e) {
+            LOGGER.info("Deflater does not support sync flush, big files will be compressed in a single thread");
+            return null;
+        }
+    }
+
+    /**
+     *
+     * Deflates a single block, every block but the last one is ended with a sync flush so that the output
+     * stops on a byte boundary and can be followed by the output of the next block
+     */
+    private static class BlockDeflater implements Callable<byte[]> {
+
+        private final byte[] block;
+        private final int length;
+        private final byte[] dictionary;
+        private final boolean last;
+        private final int level;
+
+        BlockDeflater(byte[] block, int length, byte[] dictionary, boolean last, int level) {
+            this.block = block;
+            this.length = length;
+            this.dictionary = dictionary;
+            this.last = last;
+            this.level = level;
+        }
+
+        public byte[] call() throws Exception {
+            Deflater deflater = new Deflater(level, true);
+            try {
+                if (dictionary != null) {
+                    deflater.setDictionary(dictionary);
+                }
+                deflater.setInput(block, 0, length);
+                ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 64);
+                byte[] buffer = new byte[64 * 1024];
+                if (last) {
+                    deflater.finish();
+                    while (!deflater.finished()) {
+                        out.write(buffer, 0, deflater.deflate(buffer));
+                    }
+                } else {
+                    int written;
+                    do {
+                        written = (Integer) SYNC_FLUSH_DEFLATE.invoke(deflater, buffer, 0, buffer.length, SYNC_FLUSH);
+                        out.write(buffer, 0, written);
+                    } while (written == buffer.length);
+                }
+                return out.toByteArray();
+            } finally {
+                deflater.end();
+            }
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010 - 2011, Tomasz Blaszczynski, Emanuele Zattin
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jvnet.hudson.plugins.periodicbackup;
+
+import com.google.common.collect.AbstractIterator;
+import hudson.util.DaemonThreadFactory;
+import org.jruby.ext.posix.FileStat;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ *
+ * ParallelFileWalker finds all the files inside a directory and its subdirectories listing several directories
+ * at the same time, which pays off when every listing waits for a slow (e.g. network) file system.
+ * The files are handed over through a bounded queue while the walk is still running, in no particular order.
+ */
+public class ParallelFileWalker implements Iterable<File> {
+
+    public final static int DEFAULT_CAPACITY = 4096;                        // Maximum number of files found but not yet consumed
+    private final static File END_OF_WALK = new File("");                   // Marks the end of the walk in the queue
+    private final static long OFFER_TIMEOUT = 1000;                         // ms between checks that the files are still being consumed
+    private static final Logger LOGGER = Logger.getLogger(ParallelFileWalker.class.getName());
+
+    private final File rootDir;
+    private final int parallelism;
+    private final int capacity;
+    private final BackupFilter filter;                                      // Null means that all the files are walked
+    private final BackupLinks links;                                        // Null means that the links to files are followed
+
+    public ParallelFileWalker(File rootDir, int parallelism) {
+        this(rootDir, parallelism, DEFAULT_CAPACITY, null, null);
+    }
+
+    public ParallelFileWalker(File rootDir, int parallelism, int capacity, BackupFilter filter, BackupLinks links) {
+        this.rootDir = rootDir;
+        this.parallelism = Math.max(1, parallelism);
+        this.capacity = capacity;
+        this.filter = filter;
+        this.links = links;
+    }
+
+    public Iterator<File> iterator() {
+        return new Walk();
+    }
+
+    /**
+     *
+     * A single walk of the directory tree, the listing threads are started by the first call of hasNext().
+     * If the consuming thread is interrupted or dies before the end of the walk, the walk is stopped.
+     */
+    private class Walk extends AbstractIterator<File> {
+
+        private final BlockingQueue<File> queue = new ArrayBlockingQueue<File>(capacity);
+        private final AtomicInteger pendingDirectories = new AtomicInteger();  // Directories submitted but not listed yet
+        private ExecutorService listers;
+        private Thread consumer;
+        private volatile boolean stopped;
+
+        @Override
+        protected File computeNext() {
+            if (listers == null) {
+                consumer = Thread.currentThread();
+                listers = Executors.newFixedThreadPool(parallelism, new DaemonThreadFactory());
+                submit(rootDir);
+            }
+            File file;
+            try {
+                file = queue.take();
+            } catch (InterruptedException e) {
+                LOGGER.info("Walk of " + rootDir.getAbsolutePath() + " aborted");
+                stop();
+                Thread.currentThread().interrupt();
+                return endOfData();
+            }
+            if (file == END_OF_WALK) {
+                stop();
+                return endOfData();
+            }
+            return file;
+        }
+
+        private void submit(final File directory) {
+            pendingDirectories.incrementAndGet();
+            try {
+                listers.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            list(directory);
+                        } finally {
+                            // The subdirectories are submitted before their parent is done, so zero means the walk is over
+                            if (pendingDirectories.decrementAndGet() == 0) {
+                                put(END_OF_WALK);
+                            }
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // The walk has been stopped in the meantime
+                pendingDirectories.decrementAndGet();
+            }
+        }
+
+        private void list(File directory) {
+            File[] listing = directory.listFiles();
+            if (listing == null) {
+                return;
+            }
+            for (File file : listing) {
+                FileStat stat = BackupLinks.lstat(file);
+                if (links != null && links.isLink(file, stat)) {
+                    continue;
+                }
+                if (BackupLinks.isLinkToDirectory(file, stat)) {
+                    // A link to a directory is never followed, it could lead back to one of its parents
+                    LOGGER.fine("Skipping the symbolic link to a directory " + file.getAbsolutePath());
+                    continue;
+                }
+                if (stat != null ? stat.isDirectory() : file.isDirectory()) {
+                    if (filter == null || filter.acceptDirectory(file)) {
+                        submit(file);
+                    }
+                }
+                else if ((filter == null || filter.acceptFile(file)) && !put(file)) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         *
+         * Waits for room in the queue as long as somebody is still consuming the files
+         *
+         * @return false if the walk has been stopped
+         */
+        private boolean put(File file) {
+            try {
+                while (!stopped) {
+                    if (queue.offer(file, OFFER_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                        return true;
+                    }
+                    if (!consumer.isAlive()) {
+                        LOGGER.warning("Files of " + rootDir.getAbsolutePath() + " are not consumed any more, stopping the walk");
+                        stop();
+                    }
+                }
+            } catch (InterruptedException e) {
+                stop();
+            }
+            return false;
+        }
+
+        private void stop() {
+            stopped = true;
+            listers.shutdownNow();
+        }
+    }
+}
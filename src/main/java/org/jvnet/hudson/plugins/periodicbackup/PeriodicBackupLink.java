@@ -25,22 +25,26 @@
 
 package org.jvnet.hudson.plugins.periodicbackup;
 
-import com.google.common.collect.Maps;
+import com.google.common.collect.Lists;
 import hudson.BulkChange;
 import hudson.Extension;
 import hudson.XmlFile;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
 import hudson.model.*;
 import hudson.util.DescribableList;
+import net.sf.json.JSONArray;
 import net.sf.json.JSONObject;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
 
 import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
 import java.io.File;
 import java.io.IOException;
 import java.util.Collection;
-import java.util.Map;
+import java.util.List;
 
 /**
  *
@@ -58,11 +62,22 @@ public class PeriodicBackupLink extends ManagementLink implements Describable<Pe
     private final DescribableList<Storage, StorageDescriptor> storagePlugins = new DescribableList<Storage, StorageDescriptor>(this);
 
     private transient String message;   // Message shown on the web page when the backup/restore is performed
+    private transient BackupObjectCache backupObjectCache = new BackupObjectCache(); // Backups available in the locations
+    private final static int BACKUPS_PER_PAGE = 50;  // Number of backups of a location listed at once on the restore page
     private String tempDirectory;       // Temporary directory for local storage of files, it should not be placed anywhere inside the Jenkins homedir
     private long period;                // Backup frequency
     private int cycleQuantity;          // Maximum amount of backups allowed
     private int cycleDays;              // Maximum number of days to keep the backup for
     private int initialHourOfDay;       // Hour of the day of the first backup after Jenkins is started
+    private int locationConcurrency;    // Maximum number of locations receiving a backup at the same time, 0 means no limit
+    private int bandwidthLimit;         // Disk bandwidth used by the backup in MB/s, 0 means no limit
+    private int busyBandwidthLimit;     // Disk bandwidth used by the backup while Jenkins is busy in MB/s, 0 means the normal one
+    private int busyQueueLength;        // Jenkins is busy when more items are waiting in the build queue, 0 means never
+    private double busyLoadAverage;     // Jenkins is busy when the system load average is higher, 0 means never
+    private int compressionThreadLimit; // Maximum number of compression threads of each storage, 0 means no limit
+    private boolean lowPriorityThreads; // Compression threads run with the lowest priority
+    private boolean dropPageCache;      // The pages brought into the page cache by the backup are dropped on Linux
+    private transient BackupGovernor governor;
 
     public PeriodicBackupLink() throws IOException {
         load();
@@ -118,6 +133,97 @@ public class PeriodicBackupLink extends ManagementLink implements Describable<Pe
         this.cycleDays = cycleDays;
     }
 
+    @SuppressWarnings("unused")
+    public int getLocationConcurrency() {
+        return locationConcurrency;
+    }
+
+    @SuppressWarnings("unused")
+    public void setLocationConcurrency(int locationConcurrency) {
+        this.locationConcurrency = locationConcurrency;
+    }
+
+    @SuppressWarnings("unused")
+    public int getBandwidthLimit() {
+        return bandwidthLimit;
+    }
+
+    @SuppressWarnings("unused")
+    public void setBandwidthLimit(int bandwidthLimit) {
+        this.bandwidthLimit = bandwidthLimit;
+    }
+
+    @SuppressWarnings("unused")
+    public int getBusyBandwidthLimit() {
+        return busyBandwidthLimit;
+    }
+
+    @SuppressWarnings("unused")
+    public void setBusyBandwidthLimit(int busyBandwidthLimit) {
+        this.busyBandwidthLimit = busyBandwidthLimit;
+    }
+
+    @SuppressWarnings("unused")
+    public int getBusyQueueLength() {
+        return busyQueueLength;
+    }
+
+    @SuppressWarnings("unused")
+    public void setBusyQueueLength(int busyQueueLength) {
+        this.busyQueueLength = busyQueueLength;
+    }
+
+    @SuppressWarnings("unused")
+    public double getBusyLoadAverage() {
+        return busyLoadAverage;
+    }
+
+    @SuppressWarnings("unused")
+    public void setBusyLoadAverage(double busyLoadAverage) {
+        this.busyLoadAverage = busyLoadAverage;
+    }
+
+    @SuppressWarnings("unused")
+    public int getCompressionThreadLimit() {
+        return compressionThreadLimit;
+    }
+
+    @SuppressWarnings("unused")
+    public void setCompressionThreadLimit(int compressionThreadLimit) {
+        this.compressionThreadLimit = compressionThreadLimit;
+    }
+
+    @SuppressWarnings("unused")
+    public boolean isLowPriorityThreads() {
+        return lowPriorityThreads;
+    }
+
+    @SuppressWarnings("unused")
+    public void setLowPriorityThreads(boolean lowPriorityThreads) {
+        this.lowPriorityThreads = lowPriorityThreads;
+    }
+
+    @SuppressWarnings("unused")
+    public boolean isDropPageCache() {
+        return dropPageCache;
+    }
+
+    @SuppressWarnings("unused")
+    public void setDropPageCache(boolean dropPageCache) {
+        this.dropPageCache = dropPageCache;
+    }
+
+    /**
+     *
+     * @return the BackupGovernor applying the current resource limits
+     */
+    public synchronized BackupGovernor getGovernor() {
+        if(governor == null) {
+            governor = new BackupGovernor(bandwidthLimit * 1024L * 1024L, busyBandwidthLimit * 1024L * 1024L,
+                    busyQueueLength, busyLoadAverage, compressionThreadLimit, lowPriorityThreads, dropPageCache);
+        }
+        return governor;
+    }
 
     public String getDisplayName() {
         return Messages.displayName();
@@ -132,36 +238,211 @@ public class PeriodicBackupLink extends ManagementLink implements Describable<Pe
 
     /**
      *
-     * Performing restore when triggered form restore web page, backupHash of selected backup is passed to determine which backup in this location should be chosen
+     * Performing restore when triggered form restore web page, backupId of selected backup is passed to determine which backup should be chosen
      *
      * @param req StaplerRequest
      * @param rsp StaplerResponse
-     * @param backupHash hash code of the selected BackupObject set to be restored
+     * @param backupId index of the location and timestamp of the selected backup, separated by a colon
+     * @param paths patterns of the files to restore separated by commas or new lines, the whole backup is restored if empty
      * @throws IOException If an IO problem occurs
      * @throws PeriodicBackupException If other problem occurs
      */
     @SuppressWarnings("unused")
-    public void doRestore(StaplerRequest req, StaplerResponse rsp, @QueryParameter("backupHash") int backupHash) throws IOException, PeriodicBackupException {
-        Map<Integer, BackupObject> backupObjectMap = Maps.newHashMap();
-        // Populate the map with key=hashcode of value
-        for (Location location : locationPlugins) {
-            if (location.getAvailableBackups() != null) {
-                for (BackupObject backupObject : location.getAvailableBackups()) {
-                    backupObjectMap.put(backupObject.hashCode(), backupObject);
-                }
-            }
-        }
-        if(!backupObjectMap.keySet().contains(backupHash)) {
-            throw new PeriodicBackupException("The provided hash code was not found in the map");
+    public void doRestore(StaplerRequest req, StaplerResponse rsp, @QueryParameter("backupId") String backupId, @QueryParameter("paths") String paths) throws IOException, PeriodicBackupException {
+        Hudson.getInstance().checkPermission(Hudson.ADMINISTER);
+        if(!requirePOST(req, rsp)) {
+            return;
         }
+        BackupObject backupObject = findBackup(backupId);
+        List<String> selectedPaths = BackupFilter.parsePatterns(paths);
         // Perform the restore of the matching BackupObject
-        RestoreExecutor restoreExecutor = new RestoreExecutor(backupObjectMap.get(backupHash), tempDirectory);
+        RestoreExecutor restoreExecutor = new RestoreExecutor(backupObject, tempDirectory, selectedPaths.isEmpty() ? null : selectedPaths);
         Thread t = new Thread(restoreExecutor);
         t.start();
-        message = "Restoring backup...";
+        message = selectedPaths.isEmpty() ? "Restoring backup..." : "Restoring selected files...";
+        rsp.sendRedirect(".");
+    }
+
+    /**
+     *
+     * Restores only the files matching the given patterns, the other files of the Jenkins home are left untouched
+     *
+     * @param req StaplerRequest
+     * @param rsp StaplerResponse
+     * @param backupId index of the location and timestamp of the selected backup, separated by a colon
+     * @param paths patterns of the files to restore, relative to the Jenkins home, separated by commas or new lines
+     * @throws IOException If an IO problem occurs
+     * @throws PeriodicBackupException If other problem occurs
+     */
+    @SuppressWarnings("unused")
+    public void doRestoreSelected(StaplerRequest req, StaplerResponse rsp, @QueryParameter("backupId") String backupId, @QueryParameter("paths") String paths) throws IOException, PeriodicBackupException {
+        Hudson.getInstance().checkPermission(Hudson.ADMINISTER);
+        if(!requirePOST(req, rsp)) {
+            return;
+        }
+        if(BackupFilter.parsePatterns(paths).isEmpty()) {
+            throw new PeriodicBackupException("No paths to restore were given");
+        }
+        doRestore(req, rsp, backupId, paths);
+    }
+
+    /**
+     *
+     * @return true if the files replaced by the last swap restore are kept and can be swapped back
+     */
+    @SuppressWarnings("unused")
+    public boolean isRollbackAvailable() {
+        return SwapRestorePolicy.getPreviousTree(Hudson.getInstance().getRootDir()) != null;
+    }
+
+    /**
+     *
+     * Swaps back the files replaced by the last swap restore and reloads the configuration
+     *
+     * @param req StaplerRequest
+     * @param rsp StaplerResponse
+     * @throws IOException If an IO problem occurs
+     * @throws PeriodicBackupException If there is nothing to roll back
+     */
+    @SuppressWarnings("unused")
+    public void doRollback(StaplerRequest req, StaplerResponse rsp) throws IOException, PeriodicBackupException {
+        Hudson.getInstance().checkPermission(Hudson.ADMINISTER);
+        if(!requirePOST(req, rsp)) {
+            return;
+        }
+        new SwapRestorePolicy().rollback(Hudson.getInstance().getRootDir());
+        Hudson.getInstance().doReload();
         rsp.sendRedirect(".");
     }
 
+    /**
+     *
+     * Deletes the files replaced by the last swap restore, it cannot be rolled back afterwards
+     *
+     * @param req StaplerRequest
+     * @param rsp StaplerResponse
+     * @throws IOException If an IO problem occurs
+     */
+    @SuppressWarnings("unused")
+    public void doDiscardPrevious(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Hudson.getInstance().checkPermission(Hudson.ADMINISTER);
+        if(!requirePOST(req, rsp)) {
+            return;
+        }
+        new SwapRestorePolicy().discardPreviousTrees(Hudson.getInstance().getRootDir(), null);
+        rsp.sendRedirect(".");
+    }
+
+    /**
+     *
+     * The actions changing the Jenkins home are only performed by a form submission
+     *
+     * @return false if the request has been refused
+     */
+    private static boolean requirePOST(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        if(!"POST".equals(req.getMethod())) {
+            rsp.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED, "POST is required");
+            return false;
+        }
+        return true;
+    }
+
+    private BackupObject findBackup(String backupId) throws PeriodicBackupException {
+        BackupObject backupObject = null;
+        if(backupId != null && backupId.indexOf(':') > 0) {
+            try {
+                int locationIndex = Integer.parseInt(backupId.substring(0, backupId.indexOf(':')));
+                long timestamp = Long.parseLong(backupId.substring(backupId.indexOf(':') + 1));
+                if(locationIndex >= 0 && locationIndex < locationPlugins.size()) {
+                    backupObject = backupObjectCache.getBackup(locationPlugins.get(locationIndex), timestamp);
+                }
+            } catch (NumberFormatException e) {
+                // Reported below
+            }
+        }
+        if(backupObject == null) {
+            throw new PeriodicBackupException("The selected backup " + backupId + " was not found");
+        }
+        return backupObject;
+    }
+
+    /**
+     *
+     * Lists a page of the backups available in a location for the restore page, the newest backups come first
+     *
+     * @param req StaplerRequest
+     * @param rsp StaplerResponse
+     * @param location index of the location
+     * @param start index of the first backup to list
+     * @throws IOException If an IO problem occurs
+     */
+    @SuppressWarnings("unused")
+    public void doBackups(StaplerRequest req, StaplerResponse rsp, @QueryParameter("location") int location, @QueryParameter("start") int start) throws IOException {
+        Hudson.getInstance().checkPermission(Hudson.ADMINISTER);
+        JSONObject result = new JSONObject();
+        JSONArray page = new JSONArray();
+        int total = 0;
+        if(location >= 0 && location < locationPlugins.size()) {
+            List<BackupObject> backups = backupObjectCache.getBackups(locationPlugins.get(location));
+            total = backups.size();
+            for (int i = Math.max(start, 0); i < Math.min(start + BACKUPS_PER_PAGE, total); i++) {
+                BackupObject backupObject = backups.get(total - 1 - i);
+                JSONObject backup = new JSONObject();
+                backup.put("id", location + ":" + backupObject.getTimestamp().getTime());
+                backup.put("displayName", backupObject.getDisplayName());
+                page.add(backup);
+            }
+        }
+        result.put("total", total);
+        result.put("start", start);
+        result.put("pageSize", BACKUPS_PER_PAGE);
+        result.put("backups", page);
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().print(result.toString());
+    }
+
+    /**
+     *
+     * Publishes the metrics of the last backup and of the last restore as JSON
+     *
+     * @param req StaplerRequest
+     * @param rsp StaplerResponse
+     * @throws IOException If an IO problem occurs
+     */
+    @SuppressWarnings("unused")
+    public void doMetrics(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Hudson.getInstance().checkPermission(Hudson.ADMINISTER);
+        JSONObject result = new JSONObject();
+        BackupMetrics lastBackup = BackupMetrics.getLastBackup();
+        BackupMetrics lastRestore = BackupMetrics.getLastRestore();
+        // There is no entry for what has not run since Jenkins started
+        if(lastBackup != null) {
+            result.put("lastBackup", lastBackup.toJSON());
+        }
+        if(lastRestore != null) {
+            result.put("lastRestore", lastRestore.toJSON());
+        }
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().print(result.toString());
+    }
+
+    public BackupObjectCache getBackupObjectCache() {
+        return backupObjectCache;
+    }
+
+    /**
+     *
+     * Lists the backups of all the locations once Hudson has started, so that the restore page is shown right away
+     */
+    @SuppressWarnings("unused")
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void warmBackupObjectCache() {
+        PeriodicBackupLink link = get();
+        if(link != null) {
+            link.backupObjectCache.warm(Lists.newArrayList(link.locationPlugins));
+        }
+    }
+
     @Override
     public String getUrlName() {
         return "periodicbackup";
@@ -212,6 +493,14 @@ public class PeriodicBackupLink extends ManagementLink implements Describable<Pe
             period = form.getLong("period");
             cycleQuantity = form.getInt("cycleQuantity");
             cycleDays = form.getInt("cycleDays");
+            locationConcurrency = form.getInt("locationConcurrency");
+            bandwidthLimit = form.getInt("bandwidthLimit");
+            busyBandwidthLimit = form.getInt("busyBandwidthLimit");
+            busyQueueLength = form.getInt("busyQueueLength");
+            busyLoadAverage = form.getDouble("busyLoadAverage");
+            compressionThreadLimit = form.getInt("compressionThreadLimit");
+            lowPriorityThreads = form.getBoolean("lowPriorityThreads");
+            dropPageCache = form.getBoolean("dropPageCache");
             locationPlugins.rebuildHetero(req, form, getLocationDescriptors(), "Location");
             storagePlugins.rebuildHetero(req, form, getStorageDescriptors(), "Storage");
 
@@ -220,6 +509,12 @@ public class PeriodicBackupLink extends ManagementLink implements Describable<Pe
         } finally {
             bc.commit();
         }
+        synchronized (this) {
+            // The limits apply to the next transfers
+            governor = null;
+        }
+        // The locations might have changed
+        backupObjectCache.invalidateAll();
         rsp.sendRedirect(".");
     }
 
@@ -0,0 +1,120 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010 - 2011, Tomasz Blaszczynski, Emanuele Zattin
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jvnet.hudson.plugins.periodicbackup;
+
+import hudson.init.Initializer;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.logging.Logger;
+
+/**
+ *
+ * PeriodicBackupMetrics publishes the BackupMetrics as the org.jvnet.hudson.plugins.periodicbackup:type=Metrics MBean
+ */
+public class PeriodicBackupMetrics implements PeriodicBackupMetricsMBean {
+
+    public final static String OBJECT_NAME = "org.jvnet.hudson.plugins.periodicbackup:type=Metrics";
+    private static final Logger LOGGER = Logger.getLogger(PeriodicBackupMetrics.class.getName());
+
+    /**
+     *
+     * Registers the MBean once the plugin is loaded
+     */
+    @SuppressWarnings("unused")
+    @Initializer
+    public static void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new PeriodicBackupMetrics(), name);
+            }
+        } catch (JMException e) {
+            LOGGER.warning("Could not register the backup metrics MBean " + e.getMessage());
+        }
+    }
+
+    public long getLastBackupStart() {
+        BackupMetrics metrics = BackupMetrics.getLastBackup();
+        return metrics != null ? metrics.getStart().getTime() : -1;
+    }
+
+    public long getLastBackupDurationMillis() {
+        BackupMetrics metrics = BackupMetrics.getLastBackup();
+        return metrics != null ? metrics.getDurationMillis() : -1;
+    }
+
+    public boolean isLastBackupSuccessful() {
+        BackupMetrics metrics = BackupMetrics.getLastBackup();
+        return metrics != null && metrics.isSuccessful();
+    }
+
+    public long getLastBackupFiles() {
+        BackupMetrics.Phase scan = getLastBackupScan();
+        return scan != null ? scan.getFiles() : 0;
+    }
+
+    public long getLastBackupBytes() {
+        BackupMetrics.Phase scan = getLastBackupScan();
+        return scan != null ? scan.getBytes() : 0;
+    }
+
+    /**
+     *
+     * Reading the MBean must not add a phase to the backup, the scan phase is not created if it has not started
+     */
+    private static BackupMetrics.Phase getLastBackupScan() {
+        BackupMetrics metrics = BackupMetrics.getLastBackup();
+        return metrics != null ? metrics.findPhase(BackupMetrics.SCAN) : null;
+    }
+
+    public String getLastBackupPhases() {
+        BackupMetrics metrics = BackupMetrics.getLastBackup();
+        return metrics != null ? metrics.toJSON().toString() : "{}";
+    }
+
+    public long getLastRestoreStart() {
+        BackupMetrics metrics = BackupMetrics.getLastRestore();
+        return metrics != null ? metrics.getStart().getTime() : -1;
+    }
+
+    public long getLastRestoreDurationMillis() {
+        BackupMetrics metrics = BackupMetrics.getLastRestore();
+        return metrics != null ? metrics.getDurationMillis() : -1;
+    }
+
+    public boolean isLastRestoreSuccessful() {
+        BackupMetrics metrics = BackupMetrics.getLastRestore();
+        return metrics != null && metrics.isSuccessful();
+    }
+
+    public String getLastRestorePhases() {
+        BackupMetrics metrics = BackupMetrics.getLastRestore();
+        return metrics != null ? metrics.toJSON().toString() : "{}";
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010 - 2011, Tomasz Blaszczynski, Emanuele Zattin
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jvnet.hudson.plugins.periodicbackup;
+
+/**
+ *
+ * JMX view of the BackupMetrics of the last backup and of the last restore, the durations are -1 until there has been one
+ */
+public interface PeriodicBackupMetricsMBean {
+
+    long getLastBackupStart();
+
+    long getLastBackupDurationMillis();
+
+    boolean isLastBackupSuccessful();
+
+    long getLastBackupFiles();
+
+    long getLastBackupBytes();
+
+    /**
+     *
+     * @return all the phases of the last backup as JSON
+     */
+    String getLastBackupPhases();
+
+    long getLastRestoreStart();
+
+    long getLastRestoreDurationMillis();
+
+    boolean isLastRestoreSuccessful();
+
+    String getLastRestorePhases();
+}
@@ -35,8 +35,8 @@ import java.util.logging.Logger;
 
 /**
  *
- * This RestorePolicy tries to delete all the files inside the Jenkins home directory.
- * Non writable files will be kept as they are.
+ * This RestorePolicy tries to delete all the files inside the Jenkins home directory, except the ones the backup
+ * has left out with its include and exclude patterns. Non writable files will be kept as they are. The links recorded during the backup are created again.
  */
 public class ReplaceRestorePolicy implements RestorePolicy {
 
@@ -45,7 +45,7 @@ public class ReplaceRestorePolicy implements RestorePolicy {
     private List<String> autoExclusionList;
     private transient int filesDeleted, filesReplaced, filesKept;
 
-    public void restore(File tempDir) throws IOException, PeriodicBackupException {
+    public void restore(File tempDir, BackupFilter filter) throws IOException, PeriodicBackupException {
         hudsonRoot = Hudson.getInstance().getRootDir();
         if(hudsonRoot == null) {
             throw new PeriodicBackupException("HOME directory is unidentified.");
@@ -55,9 +55,10 @@ public class ReplaceRestorePolicy implements RestorePolicy {
         filesReplaced = 0;
         filesKept = 0;
 
-        deleteAccessible(hudsonRoot.listFiles());
+        deleteAccessible(hudsonRoot.listFiles(), filter);
         LOGGER.info(filesDeleted + " files have been deleted from " + hudsonRoot.getAbsolutePath());
         replaceAccessible(tempDir.listFiles(), tempDir);
+        BackupLinks.restore(tempDir, hudsonRoot);
         LOGGER.info("Replacing of files finished.\nAfter deleting " + filesDeleted + " files from " +
                 hudsonRoot.getAbsolutePath() + "\n" + filesReplaced + " files have been restored from backup and "
                 + filesKept + " files have been kept.");
@@ -65,14 +66,22 @@ public class ReplaceRestorePolicy implements RestorePolicy {
 
     /**
      *
-     * Attempt to recursively delete all accessible files from the given files array.
+     * Attempt to recursively delete all accessible files from the given files array,
+     * except the ones the backup has left out.
      *
      * @param files array of File objects given in order to be deleted
+     * @param filter files the backup was made of, null for all of them
      */
-    private void deleteAccessible(File[] files) {
+    private void deleteAccessible(File[] files, BackupFilter filter) throws IOException {
         String relativePath;
         for(File file : files) {
-            if(!file.isDirectory()) {
+            boolean directory = file.isDirectory() && !hudson.Util.isSymlink(file);
+            if(filter != null && !(directory ? filter.acceptDirectory(file) : filter.acceptFile(file))) {
+                // Not in the backup, it could not be restored
+                continue;
+            }
+            // Symbolic links to directories are deleted without following them
+            if(!directory) {
                 if(!file.canWrite()) {
                     LOGGER.warning("Access denied to " + file.getAbsolutePath() + ", file will not be replaced");
                     relativePath = Util.getRelativePath(file, hudsonRoot);
@@ -90,7 +99,7 @@ public class ReplaceRestorePolicy implements RestorePolicy {
                 }
             }
             else {
-                deleteAccessible(file.listFiles());
+                deleteAccessible(file.listFiles(), filter);
             }
         }
     }
@@ -130,6 +139,9 @@ public class ReplaceRestorePolicy implements RestorePolicy {
         }
     }
 
+    public void restoreFinished(boolean successful) {
+    }
+
    @Override
     public boolean equals(Object o) {
         return o instanceof ReplaceRestorePolicy;
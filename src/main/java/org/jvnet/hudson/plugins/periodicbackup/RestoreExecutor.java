@@ -24,11 +24,18 @@
 
 package org.jvnet.hudson.plugins.periodicbackup;
 
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import hudson.model.Hudson;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.filefilter.TrueFileFilter;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
 import java.util.logging.Logger;
 
 public class RestoreExecutor implements Runnable {
@@ -36,13 +43,34 @@ public class RestoreExecutor implements Runnable {
     private static final Logger LOGGER = Logger.getLogger(RestoreExecutor.class.getName());
     private final BackupObject backupObject;
     private final String tempDirectoryPath;
+    private final List<String> selectedPaths;       // Patterns of the files to restore, null means the whole backup
+    private BackupMetrics metrics;
 
     public RestoreExecutor(BackupObject backupObject, String tempDirectoryPath) {
+        this(backupObject, tempDirectoryPath, null);
+    }
+
+    public RestoreExecutor(BackupObject backupObject, String tempDirectoryPath, List<String> selectedPaths) {
         this.backupObject = backupObject;
         this.tempDirectoryPath = tempDirectoryPath;
+        this.selectedPaths = selectedPaths;
     }
 
     public void run() {
+        metrics = BackupMetrics.startRestore();
+        boolean successful = false;
+        try {
+            successful = restore();
+        } finally {
+            metrics.finish(successful);
+        }
+    }
+
+    /**
+     *
+     * @return true if the files have been restored and reloaded
+     */
+    private boolean restore() {
         // RestoreExecutor thread is not handled by Jenkins therefore we need to be sure that the safeRestart will not be performed during the restore execution
         PeriodicBackupRestartListener restartListener = PeriodicBackupRestartListener.get();
         restartListener.notReady();
@@ -53,7 +81,7 @@ public class RestoreExecutor implements Runnable {
             LOGGER.warning("Restoration Failure! The temporary folder " + tempDir.getAbsolutePath() + " is not writable. ");
             // Setting message to an empty String will make the "Creating backup..." message disappear in the UI
             PeriodicBackupLink.get().setMessage("");
-            return;
+            return false;
         }
 
         // The temp directory should be empty at this point
@@ -71,36 +99,259 @@ public class RestoreExecutor implements Runnable {
                     LOGGER.warning("Restoration Failure! Could not create " + tempDir.getAbsolutePath());
                     // Setting message to an empty String will make the "Creating backup..." message disappear in the UI
                     PeriodicBackupLink.get().setMessage("");
-                    return;
+                    return false;
                 }
             }
         }
 
-        // Retrieving archive files related to the given BackupObject
-        Iterable<File> archives = null;
+        // An incremental backup is restored by applying all the backups it is based upon, starting from the full one
+        List<BackupObject> backupChain;
         try {
-            archives = backupObject.getLocation().retrieveBackupFromLocation(backupObject, tempDir);
-        } catch (Exception e) {
-            LOGGER.warning("Could not retrieve backup from location. " + e.getMessage());
+            backupChain = getBackupChain(backupObject);
+        } catch (PeriodicBackupException e) {
+            LOGGER.warning("Restoration Failure! " + e.getMessage());
+            // Setting message to an empty String will make the "Creating backup..." message disappear in the UI
+            PeriodicBackupLink.get().setMessage("");
+            restartListener.ready();
+            return false;
         }
 
-        // Extracting the backup archives to the temp directory
-        backupObject.getStorage().unarchiveFiles(archives, tempDir);
+        if(selectedPaths != null) {
+            // Only the selected files are written over the existing ones, nothing else is touched
+            boolean reloaded = restoreSelectedFiles(backupChain, tempDir) && reload();
+            LOGGER.info("Restoration of the selected files finished after " + (System.currentTimeMillis() - start) + " ms");
+            // Setting message to an empty String will make the "Creating backup..." message disappear in the UI
+            PeriodicBackupLink.get().setMessage("");
+            restartListener.ready();
+            return reloaded;
+        }
+
+        for (BackupObject backup : backupChain) {
+            List<String> volumes = null;
+            if(backup.getStorage().isPipelinedRestoreSupported()) {
+                try {
+                    volumes = backup.getLocation().getBackupVolumes(backup);
+                } catch (Exception e) {
+                    LOGGER.warning("Could not list the backup archives in the location. " + e.getMessage());
+                }
+            }
+            if(volumes != null) {
+                // Each archive is extracted while the following ones are being retrieved
+                VolumePipeline pipeline = new VolumePipeline(backup, volumes, tempDir, VolumePipeline.DEFAULT_LOOK_AHEAD);
+                long extractStart = System.nanoTime();
+                BackupEvent.Span event = BackupEvent.UNARCHIVE.begin();
+                pipeline.start();
+                Exception retrieveFailure;
+                try {
+                    backup.getStorage().unarchiveFiles(pipeline, tempDir);
+                } finally {
+                    pipeline.cancel();
+                    retrieveFailure = pipeline.getRetrieveFailure();
+                    if(retrieveFailure != null) {
+                        LOGGER.warning("Could not retrieve backup from location. " + retrieveFailure.getMessage());
+                    }
+                }
+                event.commit(volumes.size(), pipeline.getRetrievedBytes(), tempDir.getAbsolutePath());
+                // The retrieval of the archives overlaps with their extraction
+                metrics.getPhase(BackupMetrics.EXTRACT).record(extractStart, volumes.size(), pipeline.getRetrievedBytes());
+                if(retrieveFailure != null) {
+                    // Restoring only a part of the backup would delete the files of the missing archives
+                    LOGGER.warning("Restoration Failure! Some archives of " + backup.getDisplayName() + " are missing, nothing has been restored");
+                    // Setting message to an empty String will make the "Creating backup..." message disappear in the UI
+                    PeriodicBackupLink.get().setMessage("");
+                    restartListener.ready();
+                    return false;
+                }
+            }
+            else {
+                // Retrieving archive files related to the given BackupObject
+                Iterable<File> archives = null;
+                long retrieveStart = System.nanoTime();
+                long archivesSize = 0;
+                int archivesCount = 0;
+                BackupEvent.Span event = BackupEvent.RETRIEVE.begin();
+                try {
+                    archives = backup.getLocation().retrieveBackupFromLocation(backup, tempDir);
+                    for (File archive : archives) {
+                        archivesSize += archive.length();
+                        archivesCount++;
+                    }
+                } catch (Exception e) {
+                    LOGGER.warning("Could not retrieve backup from location. " + e.getMessage());
+                }
+                metrics.getPhase(BackupMetrics.RETRIEVE).record(retrieveStart, archivesCount, archivesSize);
+                event.commit(archivesCount, archivesSize, backup.getLocation().getDisplayName(), archives != null);
+                if(archives == null) {
+                    LOGGER.warning("Restoration Failure! The archives of " + backup.getDisplayName() + " could not be retrieved, nothing has been restored");
+                    // Setting message to an empty String will make the "Creating backup..." message disappear in the UI
+                    PeriodicBackupLink.get().setMessage("");
+                    restartListener.ready();
+                    return false;
+                }
+
+                // Extracting the backup archives to the temp directory, files of newer backups overwrite the older ones
+                long extractStart = System.nanoTime();
+                event = BackupEvent.UNARCHIVE.begin();
+                backup.getStorage().unarchiveFiles(archives, tempDir);
+                metrics.getPhase(BackupMetrics.EXTRACT).record(extractStart, archivesCount, archivesSize);
+                event.commit(archivesCount, archivesSize, tempDir.getAbsolutePath());
+            }
+
+            // Removing the files which did not exist anymore when the backup was created
+            for (String deletedFile : backup.getDeletedFiles()) {
+                File file = new File(tempDir, deletedFile);
+                if(file.exists() && !file.delete()) {
+                    LOGGER.warning("Could not delete " + file.getAbsolutePath());
+                }
+            }
+        }
         // At this point in the temp directory should be only the extracted backup archives
+        boolean restored = false;
+        long restoreStart = System.nanoTime();
+        BackupEvent.Span event = BackupEvent.RESTORE.begin();
+        // The extracted files are only counted for a recorded event
+        int restoredFiles = event.isRecording() ? FileUtils.listFiles(tempDir, TrueFileFilter.INSTANCE, TrueFileFilter.INSTANCE).size() : 0;
         try {
             backupObject.getFileManager().restoreFiles(tempDir);
+            restored = true;
         } catch (Exception e) {
             LOGGER.warning("Could not restore files. " + e.getMessage());
         }
-        LOGGER.info("Reloading configuration...");
-        try {
-            Hudson.getInstance().doReload();
-        } catch (IOException e) {
-            LOGGER.warning("Error reloading config files from disk.");
+        event.commit(restoredFiles, 0, tempDir.getAbsolutePath(), restored);
+        metrics.getPhase(BackupMetrics.RESTORE).record(restoreStart, 0, 0);
+        boolean reloaded = reload();
+        if(restored) {
+            // A failed reload lets the RestorePolicy roll back the restored files, if it is able to
+            backupObject.getFileManager().restoreFinished(reloaded);
+            if(!reloaded) {
+                reload();
+            }
         }
         LOGGER.info("Restoration finished successfully after " + (System.currentTimeMillis() - start) + " ms");
         // Setting message to an empty String will make the "Creating backup..." message disappear in the UI
         PeriodicBackupLink.get().setMessage("");
         restartListener.ready();
+        return restored && reloaded;
+    }
+
+    /**
+     *
+     * Reloads the configuration in this thread, so that a failure can still be reported to the RestorePolicy
+     *
+     * @return true if Jenkins has loaded the files from disk
+     */
+    private boolean reload() {
+        LOGGER.info("Reloading configuration...");
+        long reloadStart = System.nanoTime();
+        try {
+            Hudson.getInstance().reload();
+            return true;
+        } catch (InterruptedException e) {
+            LOGGER.warning("Reloading config files from disk interrupted.");
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (Exception e) {
+            LOGGER.warning("Error reloading config files from disk. " + e.getMessage());
+            return false;
+        } finally {
+            metrics.getPhase(BackupMetrics.RELOAD).record(reloadStart, 0, 0);
+        }
+    }
+
+    /**
+     *
+     * Extracts the files matching the selected paths from each backup of the chain and copies them
+     * into the Jenkins home. Archives kept on the local file system are read in place.
+     *
+     * @param backupChain the backups to restore in order, starting from the full backup
+     * @param tempDir temporary directory the selected files are extracted to
+     * @return true if the selected files have been restored
+     */
+    private boolean restoreSelectedFiles(List<BackupObject> backupChain, File tempDir) {
+        BackupFilter selection = new BackupFilter(tempDir, selectedPaths, Collections.<String>emptyList());
+        int extracted = 0;
+        long extractStart = System.nanoTime();
+        BackupEvent.Span event = BackupEvent.UNARCHIVE.begin();
+        try {
+            for (BackupObject backup : backupChain) {
+                if(!backup.getStorage().isSelectiveRestoreSupported()) {
+                    throw new PeriodicBackupException(backup.getStorage().getDisplayName() + " cannot restore single files");
+                }
+                List<String> volumes = backup.getLocation().getBackupVolumes(backup);
+                if(volumes == null) {
+                    throw new PeriodicBackupException(backup.getLocation().getDisplayName() + " cannot list the backup archives");
+                }
+                for (String volume : volumes) {
+                    File archive = backup.getLocation().getLocalVolume(backup, volume);
+                    if(archive != null) {
+                        extracted += backup.getStorage().unarchiveSelectedFiles(archive, tempDir, selection);
+                        continue;
+                    }
+                    archive = backup.getLocation().retrieveVolumeFromLocation(backup, volume, tempDir);
+                    try {
+                        extracted += backup.getStorage().unarchiveSelectedFiles(archive, tempDir, selection);
+                    } finally {
+                        if(!archive.delete()) {
+                            LOGGER.warning("Could not delete " + archive.getAbsolutePath());
+                        }
+                    }
+                }
+
+                // Removing the selected files which did not exist anymore when the backup was created
+                for (String deletedFile : backup.getDeletedFiles()) {
+                    File file = new File(tempDir, deletedFile);
+                    if(selection.acceptFile(file) && file.exists() && !file.delete()) {
+                        LOGGER.warning("Could not delete " + file.getAbsolutePath());
+                    }
+                }
+            }
+            LOGGER.info(extracted + " files matching " + selectedPaths + " extracted");
+            metrics.getPhase(BackupMetrics.EXTRACT).record(extractStart, extracted, 0);
+            event.commit(extracted, 0, tempDir.getAbsolutePath());
+            long restoreStart = System.nanoTime();
+            event = BackupEvent.RESTORE.begin();
+            new OverwriteRestorePolicy().restore(tempDir, null);
+            metrics.getPhase(BackupMetrics.RESTORE).record(restoreStart, extracted, 0);
+            event.commit(extracted, 0, tempDir.getAbsolutePath());
+            return true;
+        } catch (Exception e) {
+            // The extraction or the restore which has failed
+            event.commit(extracted, 0, tempDir.getAbsolutePath(), false);
+            LOGGER.warning("Could not restore the selected files. " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     *
+     * Finds the backups the given backup is based upon
+     *
+     * @param backup the backup to restore
+     * @return the backups to restore in order, starting from the full backup and ending with the given one
+     * @throws PeriodicBackupException if one of the needed backups is not available in the location
+     */
+    static List<BackupObject> getBackupChain(BackupObject backup) throws PeriodicBackupException {
+        List<BackupObject> backupChain = Lists.newArrayList(backup);
+        if(backup.getParentTimestamp() == null || !backup.getLocation().isBackupChainNeeded()) {
+            return backupChain;
+        }
+        Map<Date, BackupObject> backupsByTimestamp = Maps.newHashMap();
+        for (BackupObject availableBackup : backup.getLocation().getAvailableBackups()) {
+            if(availableBackup != null) {
+                backupsByTimestamp.put(availableBackup.getTimestamp(), availableBackup);
+            }
+        }
+        BackupObject current = backup;
+        while (current.getParentTimestamp() != null) {
+            BackupObject parent = backupsByTimestamp.get(current.getParentTimestamp());
+            if(parent == null) {
+                throw new PeriodicBackupException("The backup from " + current.getParentTimestamp() + " which "
+                        + current.getDisplayName() + " is based upon is not available");
+            }
+            backupChain.add(0, parent);
+            current = parent;
+        }
+        LOGGER.info("Restoring " + backupChain.size() + " backups starting from " + backupChain.get(0).getDisplayName());
+        return backupChain;
     }
 }
@@ -38,9 +38,19 @@ public interface RestorePolicy {
      * Restores content of the tempDir
      *
      * @param tempDir temporary directory, at this point only unpacked content of the backup archives should be inside
+     * @param filter files of the HUDSON directory the backup was made of, the other ones must be left alone.
+     *        null if the backup covers the whole HUDSON directory
      * @throws IOException If an IO problem occurs
      * @throws PeriodicBackupException If other problem occurs
      */
-    void restore(File tempDir) throws IOException, PeriodicBackupException;
+    void restore(File tempDir, BackupFilter filter) throws IOException, PeriodicBackupException;
+
+    /**
+     *
+     * This is called once Jenkins has reloaded the restored files, or has failed to
+     *
+     * @param successful true if the restored files have been restored and loaded
+     */
+    void restoreFinished(boolean successful);
 
 }
@@ -0,0 +1,363 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010 - 2011, Tomasz Blaszczynski, Emanuele Zattin
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jvnet.hudson.plugins.periodicbackup;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import hudson.Extension;
+import hudson.os.PosixAPI;
+import hudson.util.FormValidation;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.io.FileUtils;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ *
+ * SnapshotDirectory stores every backup as a plain directory tree in a local folder, like rsync --link-dest does.
+ * A file which has not changed since the previous snapshot is a hard link to the copy of that snapshot, so every
+ * backup is a complete tree that can be browsed while only the changed files take new space.
+ * The snapshots are built from zip archives: unchanged entries are recognized by their size and modification time
+ * in the central directory and are never inflated.
+ */
+public class SnapshotDirectory extends Location {
+
+    private File path;
+    private static final Logger LOGGER = Logger.getLogger(SnapshotDirectory.class.getName());
+
+    @DataBoundConstructor
+    public SnapshotDirectory(File path, boolean enabled) {
+        super(enabled);
+        this.path = path;
+    }
+
+    @Override
+    public Iterable<BackupObject> getAvailableBackups() {
+        if( ! Util.isWritableDirectory(path)) {
+            LOGGER.warning(path.getAbsolutePath() + " is not a existing/writable directory.");
+            return Sets.newHashSet();
+        }
+        List<BackupObject> backups = Lists.newArrayList();
+        for (File backupObjectFile : path.listFiles(Util.extensionFileFilter(BackupObject.EXTENSION))) {
+            BackupObject backupObject = BackupObject.getFromFile().apply(backupObjectFile);
+            // A snapshot which has not been completed is not listed
+            if(backupObject != null && getSnapshot(backupObject).isDirectory()) {
+                backups.add(backupObject);
+            }
+        }
+        Collections.sort(backups, new Comparator<BackupObject>() {
+            public int compare(BackupObject backup1, BackupObject backup2) {
+                return backup1.getTimestamp().compareTo(backup2.getTimestamp());
+            }
+        });
+        return backups;
+    }
+
+    @Override
+    public void storeBackupInLocation(Iterable<File> archives, File backupObjectFile) throws IOException {
+        if (this.enabled && path.exists()) {
+            BackupObject backupObject = BackupObject.getFromFile().apply(backupObjectFile);
+            if(backupObject == null) {
+                throw new IOException("Could not read " + backupObjectFile.getAbsolutePath());
+            }
+            File snapshot = getSnapshot(backupObject);
+            File partial = new File(path, snapshot.getName() + DirectorySink.PARTIAL_EXTENSION);
+            if(partial.exists()) {
+                FileUtils.deleteDirectory(partial);
+            }
+
+            // An incremental backup is completed with the unchanged files of the snapshot it is based upon
+            File previous = getPreviousSnapshot(backupObject);
+            if(backupObject.getParentTimestamp() != null && previous == null) {
+                throw new IOException("The snapshot of the backup from " + backupObject.getParentTimestamp() + " is not in " + path.getAbsolutePath());
+            }
+            try {
+                createSnapshot(archives, partial, previous, backupObject.getParentTimestamp() != null, backupObject.getDeletedFiles());
+            } catch (IOException e) {
+                FileUtils.deleteDirectory(partial);
+                throw e;
+            }
+            if(!partial.renameTo(snapshot)) {
+                throw new IOException("Could not rename " + partial.getAbsolutePath() + " to " + snapshot.getAbsolutePath());
+            }
+            File backupObjectFileDestination = new File(path, backupObjectFile.getName());
+            Files.copy(backupObjectFile, backupObjectFileDestination);
+            LOGGER.info(backupObjectFile.getName() + " copied to " + backupObjectFileDestination.getAbsolutePath());
+        }
+        else {
+            LOGGER.warning("skipping location " + this.path + " since it is disabled or it does not exist.");
+        }
+    }
+
+    /**
+     *
+     * Builds a snapshot from the zip archives of a backup
+     *
+     * @param archives the zip archives of the backup
+     * @param snapshot directory of the new snapshot
+     * @param previous directory of the previous snapshot or null
+     * @param incremental true if the archives only contain the files changed since the previous snapshot
+     * @param deletedFiles files of the previous snapshot which have been deleted since then
+     * @throws IOException If an IO problem occurs
+     */
+    static void createSnapshot(Iterable<File> archives, File snapshot, File previous, boolean incremental,
+                               Collection<String> deletedFiles) throws IOException {
+        String snapshotPath = snapshot.getCanonicalPath() + File.separator;
+        Set<String> storedFiles = Sets.newHashSet();
+        int filesLinked = 0;
+        int filesWritten = 0;
+        long bytesWritten = 0;
+        byte[] buffer = new byte[64 * 1024];
+        BackupGovernor governor = BackupGovernor.get();
+        for (File archive : archives) {
+            ZipFile zipFile;
+            try {
+                zipFile = new ZipFile(archive);
+            } catch (IOException e) {
+                throw new IOException(archive.getName() + " is not a zip archive, only zip archives can be stored as snapshots");
+            }
+            try {
+                for (ZipArchiveEntry entry : Collections.list(zipFile.getEntriesInPhysicalOrder())) {
+                    File destination = new File(snapshot, entry.getName());
+                    if (!destination.getCanonicalPath().startsWith(snapshotPath)) {
+                        throw new IOException("Entry " + entry.getName() + " is outside of the snapshot directory");
+                    }
+                    if (entry.isDirectory()) {
+                        mkdirs(destination);
+                        continue;
+                    }
+                    mkdirs(destination.getParentFile());
+                    storedFiles.add(new File(entry.getName()).getPath());
+                    File previousFile = previous != null ? new File(previous, entry.getName()) : null;
+                    if (previousFile != null && previousFile.isFile() && previousFile.length() == entry.getSize()
+                            && previousFile.lastModified() == entry.getTime() && link(previousFile, destination)) {
+                        filesLinked++;
+                        continue;
+                    }
+                    InputStream in = zipFile.getInputStream(entry);
+                    try {
+                        OutputStream out = governor.throttle(new FileOutputStream(destination));
+                        try {
+                            int read;
+                            while ((read = in.read(buffer)) != -1) {
+                                out.write(buffer, 0, read);
+                                bytesWritten += read;
+                            }
+                        } finally {
+                            out.close();
+                        }
+                    } finally {
+                        in.close();
+                    }
+                    if (entry.getTime() != -1 && !destination.setLastModified(entry.getTime())) {
+                        LOGGER.warning("Could not set the modification time of " + destination.getAbsolutePath());
+                    }
+                    filesWritten++;
+                }
+            } finally {
+                zipFile.close();
+            }
+        }
+        if (incremental) {
+            Set<String> skippedFiles = Sets.newHashSet(storedFiles);
+            for (String deletedFile : deletedFiles) {
+                skippedFiles.add(new File(deletedFile).getPath());
+            }
+            filesLinked += linkUnchangedFiles(previous, snapshot, "", skippedFiles);
+        }
+        LOGGER.info("Snapshot " + snapshot.getName() + " created: " + filesWritten + " files written (" + bytesWritten
+                + " B), " + filesLinked + " files linked to the previous snapshot");
+    }
+
+    /**
+     *
+     * Links the files of the previous snapshot which are neither in the archives of the incremental backup
+     * nor deleted since then
+     *
+     * @return number of files linked
+     */
+    private static int linkUnchangedFiles(File previousDirectory, File snapshotDirectory, String relativePath, Set<String> skippedFiles) throws IOException {
+        File[] children = previousDirectory.listFiles();
+        if (children == null) {
+            throw new IOException("Could not list " + previousDirectory.getAbsolutePath());
+        }
+        int filesLinked = 0;
+        for (File child : children) {
+            String childPath = relativePath.length() == 0 ? child.getName() : relativePath + File.separator + child.getName();
+            File destination = new File(snapshotDirectory, child.getName());
+            if (child.isDirectory()) {
+                filesLinked += linkUnchangedFiles(child, destination, childPath, skippedFiles);
+            }
+            else if (!skippedFiles.contains(childPath)) {
+                mkdirs(snapshotDirectory);
+                if (!link(child, destination)) {
+                    FileUtils.copyFile(child, destination);
+                }
+                filesLinked++;
+            }
+        }
+        return filesLinked;
+    }
+
+    /**
+     *
+     * Creates a hard link, it fails when the file has reached the maximum number of links of the file system
+     *
+     * @return true if the link has been created
+     */
+    private static boolean link(File target, File link) {
+        return PosixAPI.get().link(target.getPath(), link.getPath()) == 0;
+    }
+
+    private static void mkdirs(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory.getAbsolutePath());
+        }
+    }
+
+    private File getSnapshot(BackupObject backupObject) {
+        return new File(path, Util.generateFileNameBase(backupObject.getTimestamp()));
+    }
+
+    /**
+     *
+     * @return the snapshot the given backup is based upon, or the newest one for a full backup, or null if there is none
+     */
+    private File getPreviousSnapshot(BackupObject backupObject) {
+        BackupObject previous = null;
+        for (BackupObject availableBackup : getAvailableBackups()) {
+            if(availableBackup.getTimestamp().before(backupObject.getTimestamp())) {
+                previous = availableBackup;
+            }
+            if(availableBackup.getTimestamp().equals(backupObject.getParentTimestamp())) {
+                return getSnapshot(availableBackup);
+            }
+        }
+        return previous != null && backupObject.getParentTimestamp() == null ? getSnapshot(previous) : null;
+    }
+
+    /**
+     *
+     * Every snapshot is a complete tree, the snapshots an incremental backup is based upon are not needed to restore it
+     */
+    @Override
+    public boolean isBackupChainNeeded() {
+        return false;
+    }
+
+    /**
+     *
+     * The snapshot already is a complete tree, it is copied to the temporary directory and there is nothing to extract
+     */
+    @Override
+    public Iterable<File> retrieveBackupFromLocation(BackupObject backup, File tempDir) throws IOException, PeriodicBackupException {
+        File snapshot = getSnapshot(backup);
+        if(!snapshot.isDirectory()) {
+            throw new PeriodicBackupException("The snapshot " + snapshot.getAbsolutePath() + " does not exist");
+        }
+        // The restored files must not be links to the snapshot, or changing them would change the snapshot too
+        FileUtils.copyDirectory(snapshot, tempDir);
+        LOGGER.info("Snapshot " + snapshot.getAbsolutePath() + " copied to " + tempDir.getAbsolutePath());
+        return Lists.newArrayList();
+    }
+
+    /**
+     *
+     * The data of a file is freed only once no other snapshot links to it
+     */
+    @Override
+    public void deleteBackupFiles(BackupObject backupObject) {
+        File snapshot = getSnapshot(backupObject);
+        LOGGER.info("Deleting old/redundant snapshot " + snapshot.getAbsolutePath());
+        try {
+            FileUtils.deleteDirectory(snapshot);
+        } catch (IOException e) {
+            LOGGER.warning("Could not delete " + snapshot.getAbsolutePath() + " " + e.getMessage());
+        }
+        File backupObjectFile = new File(path, Util.createFileName(snapshot.getName(), BackupObject.EXTENSION));
+        if(backupObjectFile.exists() && !backupObjectFile.delete()) {
+            LOGGER.warning("Could not delete file " + backupObjectFile.getAbsolutePath());
+        }
+    }
+
+    public String getDisplayName() {
+        return "SnapshotDirectory: " + path;
+    }
+
+    @SuppressWarnings("unused")
+    public File getPath() {
+        return path;
+    }
+
+    @SuppressWarnings("unused")
+    public void setPath(File path) {
+        this.path = path;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o instanceof SnapshotDirectory) {
+            SnapshotDirectory that = (SnapshotDirectory) o;
+            return Objects.equal(this.path, that.path)
+                && Objects.equal(this.enabled, that.enabled);
+        }
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(path, enabled);
+    }
+
+    @SuppressWarnings("unused")
+    @Extension
+    public static class DescriptorImpl extends LocationDescriptor {
+        public String getDisplayName() {
+            return "SnapshotDirectory";
+        }
+
+        @SuppressWarnings("unused")
+        public FormValidation doTestPath(@QueryParameter String path) {
+            if ( ! Util.isWritableDirectory(new File(path)))
+                return FormValidation.error(path + " doesn't exists or is not a writable directory");
+            return FormValidation.ok("directory \"" + path + "\" OK");
+        }
+    }
+}
@@ -30,6 +30,8 @@ import hudson.model.Describable;
 import hudson.model.Hudson;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.List;
 
 /**
  *
@@ -49,12 +51,57 @@ public abstract class Storage extends AbstractModelObject implements Describable
 
     /**
      *
-     * Adds a file to an archive.
+     * Tells whether this Storage is able to write its archives into a BackupSink instead of the temporary directory
+     *
+     * @return true if backupStart(BackupSink, String) can be used
+     */
+    public boolean isStreamingSupported() {
+        return false;
+    }
+
+    /**
+     *
+     * Initializes Storage for the archiving process, the archives will be written into the given sink
+     * and backupStop will not return any file
+     *
+     * @param sink BackupSink receiving the archives
+     * @param archiveFilenameBase first part of the archive filename
+     * @throws PeriodicBackupException if something goes wrong
+     */
+    public void backupStart(BackupSink sink, String archiveFilenameBase) throws PeriodicBackupException {
+        throw new PeriodicBackupException(getDisplayName() + " cannot write the archives into a stream");
+    }
+
+    /**
+     *
+     * Tells the Storage which locations the next backup will be stored in, it is called before backupStart.
+     * Storages able to skip what the locations already hold use it, the others ignore it.
+     *
+     * @param locations enabled locations of the backup
+     */
+    public void setTargetLocations(List<Location> locations) {
+    }
+
+    /**
+     *
+     * Adds a file of the HUDSON directory to an archive.
      *
      * @param fileToStore The file that will be added to the archive
      * @throws PeriodicBackupException if something goes wrong
      */
-    public abstract void backupAddFile(File fileToStore) throws PeriodicBackupException;
+    public void backupAddFile(File fileToStore) throws PeriodicBackupException {
+        backupAddFile(fileToStore, Util.getRelativePath(fileToStore, Hudson.getInstance().getRootDir()));
+    }
+
+    /**
+     *
+     * Adds a file to an archive under the given path.
+     *
+     * @param fileToStore The file that will be added to the archive
+     * @param archivePath path of the file in the archive, relative to the HUDSON directory it is restored to
+     * @throws PeriodicBackupException if something goes wrong
+     */
+    public abstract void backupAddFile(File fileToStore, String archivePath) throws PeriodicBackupException;
 
     /**
      *
@@ -65,6 +112,14 @@ public abstract class Storage extends AbstractModelObject implements Describable
      */
     public abstract Iterable<File> backupStop() throws PeriodicBackupException;
 
+    /**
+     *
+     * Releases what the Storage holds for a backup which failed between backupStart and backupStop,
+     * the archives created so far are discarded
+     */
+    public void backupAbort() {
+    }
+
     /**
      *
      * Extracts backup files from given archives into the temporary directory
@@ -75,6 +130,43 @@ public abstract class Storage extends AbstractModelObject implements Describable
      */
     public abstract void unarchiveFiles(Iterable<File> archives, File tempDir);
 
+    /**
+     *
+     * Tells whether this Storage extracts each archive on its own, so that the archives can be handed over
+     * to unarchiveFiles while the next ones are still being retrieved
+     *
+     * @return true if the archives do not depend on each other
+     */
+    public boolean isPipelinedRestoreSupported() {
+        return false;
+    }
+
+    /**
+     *
+     * Tells whether this Storage is able to extract only some of the files of an archive
+     *
+     * @return true if unarchiveSelectedFiles can be used
+     */
+    public boolean isSelectiveRestoreSupported() {
+        return false;
+    }
+
+    /**
+     *
+     * Extracts the files accepted by the selection from a single archive into the temporary directory,
+     * the archive is left in place
+     *
+     * @param archive backup archive, it may be the file kept in the location
+     * @param tempDir Directory where the files will be extracted to
+     * @param selection BackupFilter rooted in tempDir deciding which files are extracted
+     * @return number of files extracted
+     * @throws IOException If an IO problem occurs
+     * @throws PeriodicBackupException if something else goes wrong
+     */
+    public int unarchiveSelectedFiles(File archive, File tempDir, BackupFilter selection) throws IOException, PeriodicBackupException {
+        throw new PeriodicBackupException(getDisplayName() + " cannot extract single files");
+    }
+
     public StorageDescriptor getDescriptor() {
         return (StorageDescriptor) Hudson.getInstance().getDescriptor(getClass());
     }
@@ -0,0 +1,384 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010 - 2011, Tomasz Blaszczynski, Emanuele Zattin
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jvnet.hudson.plugins.periodicbackup;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import hudson.model.Hudson;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ *
+ * This RestorePolicy first moves the whole content of the backup into a staging directory next to the Jenkins home
+ * directory, so that it is on the same file system. Then the top level entries of the home directory contained
+ * in the backup, together with the jobs and users directories and the root xml files, are swapped with the staged
+ * ones by renaming them, which takes a short time regardless of the size of the backup.
+ * The replaced entries are kept in a ".previous" directory next to the home directory, together with the list of
+ * the swapped entries. If Jenkins fails to load the restored files they are swapped back, otherwise they are kept
+ * until the next restore or until they are discarded, so that the restore can still be rolled back by hand.
+ * A backup made with include or exclude patterns is not swapped in, only its differences are restored.
+ */
+public class SwapRestorePolicy implements RestorePolicy {
+
+    private final static Pattern SWAPPED_ENTRIES = Pattern.compile("jobs|users|.*\\.xml");  // Always swapped, even if missing in the backup
+    private final static String PREVIOUS = ".previous-";
+    private final static String ENTRIES_EXTENSION = ".entries";
+    private final static Object LOCK = new Object();                        // The previous trees are shared by all the instances
+    private static final Logger LOGGER = Logger.getLogger(SwapRestorePolicy.class.getName());
+
+    private transient File hudsonRoot;                                      // Home directory of the last restore
+    private transient List<Thread> cleaners;                                // Threads deleting the directories no longer needed
+
+    public void restore(File tempDir, BackupFilter filter) throws IOException, PeriodicBackupException {
+        File hudsonRoot = Hudson.getInstance().getRootDir();
+        if(hudsonRoot == null) {
+            throw new PeriodicBackupException("HOME directory is unidentified.");
+        }
+        restore(tempDir, hudsonRoot, filter);
+    }
+
+    void restore(File tempDir, File hudsonRoot, BackupFilter filter) throws IOException, PeriodicBackupException {
+        if(filter == null) {
+            restore(tempDir, hudsonRoot);
+            return;
+        }
+        // The swapped entries would take the files left out of the backup away with them, and the previous tree
+        // keeping them is deleted by the next restore
+        LOGGER.severe("The backup has been made with include or exclude patterns, swapping the restored entries in would "
+                + "lose the files left out of it. Only the differences are restored in " + hudsonRoot.getAbsolutePath());
+        this.hudsonRoot = null;
+        new DiffRestorePolicy(false).restore(tempDir, hudsonRoot, filter);
+    }
+
+    void restore(File tempDir, File hudsonRoot) throws IOException, PeriodicBackupException {
+        synchronized (LOCK) {
+            File parent = hudsonRoot.getAbsoluteFile().getParentFile();
+            String suffix = Util.generateFileNameBase(new Date());
+            File staging = new File(parent, hudsonRoot.getName() + ".restore-" + suffix);
+            File previous = new File(parent, hudsonRoot.getName() + PREVIOUS + suffix);
+            if(!staging.mkdirs() || !previous.mkdirs()) {
+                throw new PeriodicBackupException("Could not create the staging directories next to " + hudsonRoot.getAbsolutePath());
+            }
+            try {
+                if(!isSameFileSystem(staging, hudsonRoot)) {
+                    throw new PeriodicBackupException(staging.getAbsolutePath() + " is not on the same file system as " + hudsonRoot.getAbsolutePath());
+                }
+                stage(tempDir, staging);
+                BackupLinks.restore(staging, staging);
+
+                Set<String> entries = Sets.newTreeSet();
+                entries.addAll(Arrays.asList(list(staging)));
+                for(String name : list(hudsonRoot)) {
+                    if(SWAPPED_ENTRIES.matcher(name).matches()) {
+                        entries.add(name);
+                    }
+                }
+                // The swapped entries are written first, so that the previous tree can always be swapped back
+                writeEntries(previous, Lists.newArrayList(entries));
+                swap(Lists.newArrayList(entries), hudsonRoot, staging, previous);
+            } catch (PeriodicBackupException e) {
+                deletePreviousIfEmpty(previous);
+                throw e;
+            } catch (IOException e) {
+                deletePreviousIfEmpty(previous);
+                throw e;
+            } finally {
+                deleteInBackground(staging);
+            }
+            this.hudsonRoot = hudsonRoot;
+            discardPreviousTrees(hudsonRoot, previous);
+        }
+    }
+
+    /**
+     *
+     * Swaps back the replaced entries if the restore failed, otherwise they are kept until the next restore
+     *
+     * @param successful true if the restored files have been loaded by Jenkins
+     */
+    public void restoreFinished(boolean successful) {
+        if(successful || hudsonRoot == null) {
+            return;
+        }
+        try {
+            rollback(hudsonRoot);
+        } catch (Exception e) {
+            LOGGER.warning("Could not roll back the restore " + e.getMessage());
+        }
+    }
+
+    /**
+     *
+     * Swaps back the entries replaced by the last restore, the restored ones are deleted in the background
+     *
+     * @param hudsonRoot the HUDSON directory
+     * @throws IOException If an IO problem occurs
+     * @throws PeriodicBackupException If there is nothing to roll back
+     */
+    public void rollback(File hudsonRoot) throws IOException, PeriodicBackupException {
+        synchronized (LOCK) {
+            File previous = getPreviousTree(hudsonRoot);
+            if(previous == null) {
+                throw new PeriodicBackupException("There is no previous restore of " + hudsonRoot.getAbsolutePath() + " to roll back");
+            }
+            File entriesFile = getEntriesFile(previous);
+            List<String> entries = Files.readLines(entriesFile, Charsets.UTF_8);
+            File failed = new File(previous.getParentFile(), previous.getName().replace(PREVIOUS, ".failed-"));
+            if(!failed.mkdirs()) {
+                throw new IOException("Could not create " + failed.getAbsolutePath());
+            }
+            try {
+                swap(entries, hudsonRoot, previous, failed);
+            } catch (IOException e) {
+                LOGGER.warning("Could not roll back the restore, the previous files are kept in " + previous.getAbsolutePath());
+                throw e;
+            }
+            LOGGER.info("Restored files have been rolled back in " + hudsonRoot.getAbsolutePath());
+            if(!entriesFile.delete()) {
+                LOGGER.warning("Could not delete " + entriesFile.getAbsolutePath());
+            }
+            deleteInBackground(previous);
+            deleteInBackground(failed);
+        }
+    }
+
+    /**
+     *
+     * Deletes in the background the entries replaced by the previous restores, they cannot be rolled back any more
+     *
+     * @param hudsonRoot the HUDSON directory
+     * @param kept previous tree which is not deleted, null to delete all of them
+     */
+    public void discardPreviousTrees(File hudsonRoot, File kept) {
+        synchronized (LOCK) {
+            for(File previous : getPreviousTrees(hudsonRoot)) {
+                if(!previous.equals(kept)) {
+                    File entriesFile = getEntriesFile(previous);
+                    if(entriesFile.exists() && !entriesFile.delete()) {
+                        LOGGER.warning("Could not delete " + entriesFile.getAbsolutePath());
+                    }
+                    deleteInBackground(previous);
+                }
+            }
+        }
+    }
+
+    /**
+     *
+     * @param hudsonRoot the HUDSON directory
+     * @return the directory holding the entries replaced by the last restore, or null if there is none
+     */
+    public static File getPreviousTree(File hudsonRoot) {
+        File last = null;
+        for(File previous : getPreviousTrees(hudsonRoot)) {
+            // The timestamps in the names sort in chronological order
+            if(last == null || previous.getName().compareTo(last.getName()) > 0) {
+                last = previous;
+            }
+        }
+        return last;
+    }
+
+    /**
+     *
+     * The previous trees which can be swapped back are the ones with a list of their entries
+     */
+    private static List<File> getPreviousTrees(File hudsonRoot) {
+        List<File> previousTrees = Lists.newArrayList();
+        File parent = hudsonRoot.getAbsoluteFile().getParentFile();
+        String prefix = hudsonRoot.getName() + PREVIOUS;
+        for(String name : list(parent)) {
+            File previous = new File(parent, name);
+            if(name.startsWith(prefix) && previous.isDirectory() && getEntriesFile(previous).isFile()) {
+                previousTrees.add(previous);
+            }
+        }
+        return previousTrees;
+    }
+
+    private static File getEntriesFile(File previous) {
+        return new File(previous.getParentFile(), previous.getName() + ENTRIES_EXTENSION);
+    }
+
+    private static void writeEntries(File previous, List<String> entries) throws IOException {
+        StringBuilder content = new StringBuilder();
+        for(String name : entries) {
+            content.append(name).append('\n');
+        }
+        Files.write(content, getEntriesFile(previous), Charsets.UTF_8);
+    }
+
+    /**
+     *
+     * Moves the restored files into the staging directory, they are copied if they cannot be renamed
+     */
+    private static void stage(File tempDir, File staging) throws IOException {
+        long start = System.currentTimeMillis();
+        for(String name : list(tempDir)) {
+            File source = new File(tempDir, name);
+            File destination = new File(staging, name);
+            if(!source.renameTo(destination)) {
+                if(source.isDirectory()) {
+                    FileUtils.copyDirectory(source, destination);
+                }
+                else {
+                    FileUtils.copyFile(source, destination);
+                }
+            }
+        }
+        LOGGER.info("Restored files staged in " + staging.getAbsolutePath() + " after " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     *
+     * Moves the given entries of the home directory to the previous directory and the staged ones to the home directory,
+     * if a rename fails the entries already swapped are moved back
+     */
+    private static void swap(List<String> entries, File hudsonRoot, File staging, File previous) throws IOException {
+        long start = System.currentTimeMillis();
+        List<String> swapped = Lists.newArrayList();
+        try {
+            for(String name : entries) {
+                File live = new File(hudsonRoot, name);
+                File staged = new File(staging, name);
+                if(live.exists() && !live.renameTo(new File(previous, name))) {
+                    throw new IOException("Could not move " + live.getAbsolutePath() + " to " + previous.getAbsolutePath());
+                }
+                swapped.add(name);
+                if(staged.exists() && !staged.renameTo(live)) {
+                    throw new IOException("Could not move " + staged.getAbsolutePath() + " to " + hudsonRoot.getAbsolutePath());
+                }
+            }
+        } catch (IOException e) {
+            for(int i = swapped.size() - 1; i >= 0; i--) {
+                String name = swapped.get(i);
+                File live = new File(hudsonRoot, name);
+                if(live.exists() && !live.renameTo(new File(staging, name))) {
+                    LOGGER.warning("Could not move " + live.getAbsolutePath() + " back to " + staging.getAbsolutePath());
+                }
+                if(new File(previous, name).exists() && !new File(previous, name).renameTo(live)) {
+                    LOGGER.warning("Could not move " + name + " back to " + hudsonRoot.getAbsolutePath());
+                }
+            }
+            throw e;
+        }
+        LOGGER.info(entries.size() + " entries of " + hudsonRoot.getAbsolutePath() + " swapped in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private static boolean isSameFileSystem(File directory, File hudsonRoot) throws IOException {
+        File probe = File.createTempFile("swap", ".probe", directory);
+        File moved = new File(hudsonRoot, probe.getName());
+        if(!probe.renameTo(moved)) {
+            probe.delete();
+            return false;
+        }
+        return moved.delete();
+    }
+
+    /**
+     *
+     * After a failed swap the previous directory is empty, unless some entry could not be moved back
+     */
+    private static void deletePreviousIfEmpty(File previous) {
+        if(list(previous).length == 0) {
+            File entriesFile = getEntriesFile(previous);
+            if(!previous.delete() || (entriesFile.exists() && !entriesFile.delete())) {
+                LOGGER.warning("Could not delete " + previous.getAbsolutePath());
+            }
+        }
+        else {
+            LOGGER.warning("Some files of the home directory could not be moved back, they are kept in " + previous.getAbsolutePath());
+        }
+    }
+
+    private static String[] list(File directory) {
+        String[] names = directory.list();
+        return names != null ? names : new String[0];
+    }
+
+    private void deleteInBackground(final File directory) {
+        if(!directory.exists()) {
+            return;
+        }
+        Thread cleaner = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    FileUtils.deleteDirectory(directory);
+                } catch (IOException e) {
+                    LOGGER.warning("Could not delete " + directory.getAbsolutePath() + " " + e.getMessage());
+                }
+            }
+        }, "Periodic Backup restore cleaner");
+        cleaner.setDaemon(true);
+        cleaner.start();
+        synchronized (this) {
+            if(cleaners == null) {
+                cleaners = Lists.newArrayList();
+            }
+            cleaners.add(cleaner);
+        }
+    }
+
+    /**
+     *
+     * Waits until the directories being deleted in the background are gone
+     *
+     * @throws InterruptedException If the thread is interrupted while waiting
+     */
+    void awaitCleaners() throws InterruptedException {
+        List<Thread> running;
+        synchronized (this) {
+            if(cleaners == null) {
+                return;
+            }
+            running = Lists.newArrayList(cleaners);
+            cleaners.clear();
+        }
+        for(Thread cleaner : running) {
+            cleaner.join();
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof SwapRestorePolicy;
+    }
+
+    @Override
+    public int hashCode() {
+        return 101;
+    }
+}
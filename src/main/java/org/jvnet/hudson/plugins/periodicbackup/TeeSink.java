@@ -0,0 +1,310 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010 - 2011, Tomasz Blaszczynski, Emanuele Zattin
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jvnet.hudson.plugins.periodicbackup;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ *
+ * TeeSink writes the archives into several sinks at once. A sink which fails is left out from then on
+ * and its failure is kept, the archives keep being written as long as at least one sink works.
+ * Every sink is written by a thread of its own through a bounded buffer, so a slow sink holds up
+ * neither the other sinks nor the compression until its buffer is full.
+ */
+public class TeeSink implements BackupSink {
+
+    public final static int BLOCK_SIZE = 64 * 1024;                        // Size of the blocks handed over to the sinks
+    public final static int DEFAULT_BUFFER_BLOCKS = 16;                     // Blocks buffered for each sink and archive
+    private final static byte[] END_OF_ARCHIVE = new byte[0];
+    private static final Logger LOGGER = Logger.getLogger(TeeSink.class.getName());
+
+    private final List<BackupSink> sinks;
+    private final int bufferBlocks;
+    private final Map<BackupSink, IOException> failures = Collections.synchronizedMap(Maps.<BackupSink, IOException>newHashMap());
+    private final List<SinkWriter> writers = Collections.synchronizedList(Lists.<SinkWriter>newArrayList());  // Writers of the open archives
+
+    public TeeSink(List<BackupSink> sinks) {
+        this(sinks, DEFAULT_BUFFER_BLOCKS);
+    }
+
+    public TeeSink(List<BackupSink> sinks, int bufferBlocks) {
+        this.sinks = sinks;
+        this.bufferBlocks = Math.max(1, bufferBlocks);
+    }
+
+    public OutputStream openArchive(String archiveName) throws IOException {
+        final List<SinkWriter> archiveWriters = Lists.newArrayList();
+        for (BackupSink sink : sinks) {
+            if (getFailure(sink) == null) {
+                try {
+                    archiveWriters.add(new SinkWriter(sink, sink.openArchive(archiveName), archiveName));
+                } catch (IOException e) {
+                    fail(sink, e);
+                }
+            }
+        }
+        checkWriters(archiveWriters);
+        for (SinkWriter writer : archiveWriters) {
+            writers.add(writer);
+            writer.start();
+        }
+        return new OutputStream() {
+            private byte[] block = new byte[BLOCK_SIZE];
+            private int count;
+
+            @Override
+            public void write(int b) throws IOException {
+                block[count++] = (byte) b;
+                if (count == block.length) {
+                    dispatch();
+                }
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                while (len > 0) {
+                    int n = Math.min(len, block.length - count);
+                    System.arraycopy(b, off, block, count, n);
+                    count += n;
+                    off += n;
+                    len -= n;
+                    if (count == block.length) {
+                        dispatch();
+                    }
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                if (count > 0) {
+                    dispatch();
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (block == null) {
+                    return;
+                }
+                flush();
+                block = null;
+                for (SinkWriter writer : archiveWriters) {
+                    writer.put(END_OF_ARCHIVE);
+                }
+                for (SinkWriter writer : archiveWriters) {
+                    writer.await();
+                    writers.remove(writer);
+                    if (writer.getFailure() != null) {
+                        fail(writer.sink, writer.getFailure());
+                    }
+                }
+                archiveWriters.clear();
+            }
+
+            /**
+             * Hands the block over to the writers, it is not modified afterwards
+             */
+            private void dispatch() throws IOException {
+                byte[] full = block;
+                if (count < full.length) {
+                    full = new byte[count];
+                    System.arraycopy(block, 0, full, 0, count);
+                }
+                else {
+                    block = new byte[BLOCK_SIZE];
+                }
+                count = 0;
+                for (Iterator<SinkWriter> it = archiveWriters.iterator(); it.hasNext();) {
+                    SinkWriter writer = it.next();
+                    if (writer.getFailure() == null) {
+                        writer.put(full);
+                    }
+                    if (writer.getFailure() != null) {
+                        // The writer discards the blocks once it has failed, it only waits for the end of the archive
+                        writer.put(END_OF_ARCHIVE);
+                        writer.await();
+                        writers.remove(writer);
+                        fail(writer.sink, writer.getFailure());
+                        it.remove();
+                    }
+                }
+                checkWriters(archiveWriters);
+            }
+        };
+    }
+
+    /**
+     *
+     * Commits all the sinks which did not fail
+     */
+    public void commit(File backupObjectFile) throws IOException {
+        for (BackupSink sink : sinks) {
+            if (getFailure(sink) == null) {
+                sink.commit(backupObjectFile);
+            }
+        }
+    }
+
+    /**
+     *
+     * Stops the writers of the archives still open and discards the archives of all the sinks
+     */
+    public void abort() {
+        List<SinkWriter> openWriters;
+        synchronized (writers) {
+            openWriters = Lists.newArrayList(writers);
+            writers.clear();
+        }
+        for (SinkWriter writer : openWriters) {
+            writer.thread.interrupt();
+        }
+        for (SinkWriter writer : openWriters) {
+            try {
+                writer.await();
+            } catch (InterruptedIOException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        for (BackupSink sink : sinks) {
+            sink.abort();
+        }
+    }
+
+    /**
+     *
+     * @param sink one of the sinks of this TeeSink
+     * @return the exception which made the sink fail, or null if the sink works
+     */
+    public IOException getFailure(BackupSink sink) {
+        return failures.get(sink);
+    }
+
+    private void fail(BackupSink sink, IOException e) {
+        LOGGER.log(Level.WARNING, "Could not write the archive, the backup will not be stored there", e);
+        failures.put(sink, e);
+    }
+
+    private void checkWriters(List<SinkWriter> archiveWriters) throws IOException {
+        if (archiveWriters.isEmpty()) {
+            throw new IOException("The archive could not be written to any destination");
+        }
+    }
+
+    /**
+     *
+     * Writes the blocks of an archive into one sink in the background
+     */
+    private class SinkWriter implements Runnable {
+
+        private final BackupSink sink;
+        private final OutputStream out;
+        private final BlockingQueue<byte[]> blocks = new ArrayBlockingQueue<byte[]>(bufferBlocks);
+        private final Thread thread;
+        private volatile IOException failure;
+
+        SinkWriter(BackupSink sink, OutputStream out, String archiveName) {
+            this.sink = sink;
+            this.out = out;
+            this.thread = new Thread(this, "Periodic Backup archive writer for " + archiveName);
+            this.thread.setDaemon(true);
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        public void run() {
+            try {
+                byte[] block;
+                while ((block = blocks.take()) != END_OF_ARCHIVE) {
+                    // The blocks are still taken after a failure, so that put() never waits for a failed sink
+                    if (failure == null) {
+                        try {
+                            out.write(block);
+                        } catch (IOException e) {
+                            failure = e;
+                        }
+                    }
+                }
+                if (failure == null) {
+                    out.close();
+                    return;
+                }
+            } catch (InterruptedException e) {
+                failure = new InterruptedIOException("Writing the archive has been interrupted");
+            } catch (IOException e) {
+                failure = e;
+            }
+            try {
+                out.close();
+            } catch (IOException ignored) {
+                // The sink already failed
+            }
+        }
+
+        /**
+         * Waits for room in the buffer of this sink
+         */
+        void put(byte[] block) throws InterruptedIOException {
+            try {
+                blocks.put(block);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while writing the archive");
+            }
+        }
+
+        /**
+         * Waits until the archive has been written and closed
+         */
+        void await() throws InterruptedIOException {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while writing the archive");
+            }
+        }
+
+        IOException getFailure() {
+            return failure;
+        }
+    }
+}
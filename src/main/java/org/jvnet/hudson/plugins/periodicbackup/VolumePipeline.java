@@ -0,0 +1,177 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010 - 2011, Tomasz Blaszczynski, Emanuele Zattin
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jvnet.hudson.plugins.periodicbackup;
+
+import com.google.common.collect.AbstractIterator;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Logger;
+
+/**
+ *
+ * VolumePipeline retrieves the archives of a backup from its Location in a separate thread and hands them over
+ * to the Storage being restored as soon as each one is available, so that an archive is extracted while the next
+ * ones are being retrieved. At most lookAhead retrieved archives wait for the extraction, and since the Storage
+ * deletes each archive once extracted, only a few of them are in the temporary directory at the same time.
+ */
+public class VolumePipeline implements Iterable<File> {
+
+    public final static int DEFAULT_LOOK_AHEAD = 2;                         // Maximum number of archives waiting to be extracted
+    private final static File END_OF_VOLUMES = new File("");                // Marks the end of the archives in the queue
+    private static final Logger LOGGER = Logger.getLogger(VolumePipeline.class.getName());
+
+    private final BackupObject backup;
+    private final List<String> volumes;
+    private final File tempDir;
+    private final BlockingQueue<File> queue;
+    private volatile Exception retrieveFailure;                             // Exception thrown by the retrieving thread, if any
+    private volatile int handedOver;                                        // Number of archives given to the Storage
+    private volatile long retrievedBytes;                                   // Only written by the retrieving thread
+    private Thread retriever;
+
+    public VolumePipeline(BackupObject backup, List<String> volumes, File tempDir, int lookAhead) {
+        this.backup = backup;
+        this.volumes = volumes;
+        this.tempDir = tempDir;
+        this.queue = new ArrayBlockingQueue<File>(Math.max(1, lookAhead));
+    }
+
+    /**
+     *
+     * Starts retrieving the archives in the background
+     */
+    public void start() {
+        retriever = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    for (String volume : volumes) {
+                        File archive = null;
+                        BackupEvent.Span event = BackupEvent.RETRIEVE.begin();
+                        try {
+                            archive = backup.getLocation().retrieveVolumeFromLocation(backup, volume, tempDir);
+                        } finally {
+                            event.commit(archive != null ? 1 : 0, archive != null ? archive.length() : 0, volume, archive != null);
+                        }
+                        retrievedBytes += archive.length();
+                        try {
+                            queue.put(archive);
+                        } catch (InterruptedException e) {
+                            delete(archive);
+                            throw e;
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    LOGGER.info("Retrieval of the backup archives aborted");
+                    return;
+                } catch (Exception e) {
+                    retrieveFailure = e;
+                }
+                try {
+                    queue.put(END_OF_VOLUMES);
+                } catch (InterruptedException e) {
+                    LOGGER.info("Retrieval of the backup archives aborted");
+                }
+            }
+        }, "Periodic Backup archive retriever");
+        retriever.setDaemon(true);
+        retriever.start();
+    }
+
+    /**
+     *
+     * The archives in the order they have been retrieved, the iteration waits for the retrieval of the next one.
+     * It can be iterated only once.
+     */
+    public Iterator<File> iterator() {
+        return new AbstractIterator<File>() {
+            @Override
+            protected File computeNext() {
+                File archive;
+                try {
+                    archive = queue.take();
+                } catch (InterruptedException e) {
+                    cancel();
+                    Thread.currentThread().interrupt();
+                    return endOfData();
+                }
+                if(archive == END_OF_VOLUMES) {
+                    return endOfData();
+                }
+                // Deleting the archive is up to the Storage from now on
+                handedOver++;
+                return archive;
+            }
+        };
+    }
+
+    /**
+     *
+     * @return total size of the archives retrieved so far
+     */
+    public long getRetrievedBytes() {
+        return retrievedBytes;
+    }
+
+    /**
+     *
+     * @return the exception which stopped the retrieval of the archives or null
+     */
+    public Exception getRetrieveFailure() {
+        return retrieveFailure;
+    }
+
+    /**
+     *
+     * Stops the retrieval if it is still running and waits for it to end, then the archives retrieved
+     * but not handed over to the Storage are deleted, the one which was being retrieved included
+     */
+    public void cancel() {
+        if(retriever != null) {
+            retriever.interrupt();
+            try {
+                retriever.join();
+            } catch (InterruptedException e) {
+                LOGGER.warning("Interrupted while waiting for the retrieval of the backup archives to stop");
+                Thread.currentThread().interrupt();
+            }
+        }
+        queue.clear();
+        for (int i = handedOver; i < volumes.size(); i++) {
+            delete(new File(tempDir, volumes.get(i)));
+        }
+        // The iteration ends instead of waiting for archives which will not come
+        queue.offer(END_OF_VOLUMES);
+    }
+
+    private static void delete(File archive) {
+        if(archive.exists() && !archive.delete()) {
+            LOGGER.warning("Could not delete " + archive.getAbsolutePath());
+        }
+    }
+}
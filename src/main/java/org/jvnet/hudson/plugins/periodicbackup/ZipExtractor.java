@@ -0,0 +1,209 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010 - 2011, Tomasz Blaszczynski, Emanuele Zattin
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jvnet.hudson.plugins.periodicbackup;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+/**
+ *
+ * ZipExtractor extracts a zip archive, Zip64 archives included, with several threads. The central directory is read
+ * once, then the entries are split in slices of consecutive entries which are inflated and written by the workers
+ * at the same time. The reads of the compressed data from the shared archive are serialized by ZipFile, while the
+ * inflating and the writing, which take most of the time, happen in parallel.
+ * All the directories are created before the workers start, so they never race creating the same parent, and the
+ * modification times of the directories are set once all their files have been written.
+ */
+public class ZipExtractor {
+
+    private final static int MIN_ENTRIES_PER_SLICE = 16;                    // Smaller slices are not worth a task
+    private static final Logger LOGGER = Logger.getLogger(ZipExtractor.class.getName());
+
+    private final ExecutorService workers;
+    private final int parallelism;
+
+    public ZipExtractor(ExecutorService workers, int parallelism) {
+        this.workers = workers;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     *
+     * Extracts all the entries of the archive
+     *
+     * @param archive the zip archive
+     * @param destinationDirectory directory the files are extracted to
+     * @throws IOException If an IO problem occurs
+     */
+    public void extract(File archive, File destinationDirectory) throws IOException {
+        extract(archive, destinationDirectory, null);
+    }
+
+    /**
+     *
+     * Extracts the files of the archive accepted by the selection, only the compressed data of those entries is read
+     *
+     * @param archive the zip archive
+     * @param destinationDirectory directory the files are extracted to
+     * @param selection BackupFilter rooted in the destination directory deciding which files are extracted,
+     * null means all of them
+     * @return number of files extracted
+     * @throws IOException If an IO problem occurs
+     */
+    public int extract(File archive, File destinationDirectory, BackupFilter selection) throws IOException {
+        String destinationPath = destinationDirectory.getCanonicalPath() + File.separator;
+        ZipFile zipFile = new ZipFile(archive);
+        try {
+            List<ZipArchiveEntry> files = Lists.newArrayList();
+            List<ZipArchiveEntry> directories = Lists.newArrayList();
+            Set<File> parents = Sets.newHashSet();
+            for (ZipArchiveEntry entry : Collections.list(zipFile.getEntriesInPhysicalOrder())) {
+                File destination = new File(destinationDirectory, entry.getName());
+                if (!destination.getCanonicalPath().startsWith(destinationPath)) {
+                    throw new IOException("Entry " + entry.getName() + " is outside of the destination directory");
+                }
+                if (selection != null) {
+                    // The directories containing the selected files are created below
+                    if (!entry.isDirectory() && selection.acceptFile(destination)) {
+                        files.add(entry);
+                        parents.add(destination.getParentFile());
+                    }
+                }
+                else if (entry.isDirectory()) {
+                    directories.add(entry);
+                    parents.add(destination);
+                }
+                else {
+                    files.add(entry);
+                    parents.add(destination.getParentFile());
+                }
+            }
+            for (File parent : parents) {
+                if (!parent.isDirectory() && !parent.mkdirs()) {
+                    throw new IOException("Could not create " + parent.getAbsolutePath());
+                }
+            }
+
+            int sliceSize = Math.max(MIN_ENTRIES_PER_SLICE, (files.size() + parallelism - 1) / parallelism);
+            List<Future<Void>> slices = Lists.newArrayList();
+            for (int start = 0; start < files.size(); start += sliceSize) {
+                List<ZipArchiveEntry> slice = files.subList(start, Math.min(files.size(), start + sliceSize));
+                slices.add(workers.submit(new SliceExtractor(zipFile, slice, destinationDirectory)));
+            }
+            IOException failure = null;
+            for (Future<Void> slice : slices) {
+                try {
+                    slice.get();
+                } catch (InterruptedException e) {
+                    for (Future<Void> pendingSlice : slices) {
+                        pendingSlice.cancel(true);
+                    }
+                    throw new IOException("Interrupted while extracting " + archive.getAbsolutePath());
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause().getMessage());
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+
+            // Writing the files changes the modification time of their directories
+            for (ZipArchiveEntry entry : directories) {
+                setLastModified(new File(destinationDirectory, entry.getName()), entry);
+            }
+            LOGGER.info(files.size() + " files extracted from " + archive.getAbsolutePath() + " in " + slices.size() + " slices");
+            return files.size();
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    private static void setLastModified(File destination, ZipArchiveEntry entry) {
+        if (entry.getTime() != -1 && !destination.setLastModified(entry.getTime())) {
+            LOGGER.warning("Could not set the modification time of " + destination.getAbsolutePath());
+        }
+    }
+
+    /**
+     *
+     * Inflates and writes a slice of the entries of the archive
+     */
+    private static class SliceExtractor implements Callable<Void> {
+
+        private final ZipFile zipFile;
+        private final List<ZipArchiveEntry> entries;
+        private final File destinationDirectory;
+
+        SliceExtractor(ZipFile zipFile, List<ZipArchiveEntry> entries, File destinationDirectory) {
+            this.zipFile = zipFile;
+            this.entries = entries;
+            this.destinationDirectory = destinationDirectory;
+        }
+
+        public Void call() throws IOException {
+            byte[] buffer = new byte[64 * 1024];
+            for (ZipArchiveEntry entry : entries) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new IOException("Extraction interrupted");
+                }
+                File destination = new File(destinationDirectory, entry.getName());
+                InputStream in = zipFile.getInputStream(entry);
+                try {
+                    OutputStream out = new FileOutputStream(destination);
+                    try {
+                        int read;
+                        while ((read = in.read(buffer)) != -1) {
+                            out.write(buffer, 0, read);
+                        }
+                    } finally {
+                        out.close();
+                    }
+                } finally {
+                    in.close();
+                }
+                setLastModified(destination, entry);
+            }
+            return null;
+        }
+    }
+}
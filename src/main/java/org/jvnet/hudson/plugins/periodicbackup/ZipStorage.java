@@ -24,41 +24,92 @@
 
 package org.jvnet.hudson.plugins.periodicbackup;
 
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import hudson.Extension;
-import hudson.model.Hudson;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.FormValidation;
 import net.sf.json.JSONObject;
+import org.apache.commons.compress.archivers.zip.Zip64Mode;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
 import org.codehaus.plexus.archiver.ArchiverException;
 import org.codehaus.plexus.archiver.zip.ZipArchiver;
-import org.codehaus.plexus.archiver.zip.ZipUnArchiver;
-import org.codehaus.plexus.logging.console.ConsoleLogger;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
+import java.util.zip.Deflater;
 
 public class ZipStorage extends Storage {
 
-    private final static int MAX_FILES_PER_ARCHIVE = 65534;                 // Max allowed amount of files in a zip archive is 65535
-    private final static long MAX_SIZE_OF_FILES_PER_ARCHIVE = 3999999999l;  // Max allowed size of uncompressed/compressed files in a zip archive is 4GiB
+    private final static int UNIX_FILE_MODE = 0644;                         // Permissions of the archived files
     private boolean multiVolume;                                            // Determines if the backup should be divided into few archives
     private long volumeSize;                                                // Determines maximum size of files inside single archive file
+    private int compressionThreads;                                         // Number of archives compressed at the same time, 0 means one per processor
+    private long parallelDeflateThreshold;                                  // Files of at least this size are deflated in blocks by several threads, 0 disables it
+    private int parallelDeflateBlockSize;                                   // Size of the blocks of the files deflated in parallel, 0 means the default size
+    private String storedExtensions;                                        // Extensions of the files stored without compression, null means the default ones
+    private Integer compressionLevel;                                       // Deflate level of the compressed files, null means the default level
     private static final Logger LOGGER = Logger.getLogger(ZipStorage.class.getName());
     private transient ZipArchiver archiver;                                 // Manages archiving process
     private transient File tempDirectory;                                   // Directory where the archives will be created
+    private transient BackupSink sink;                                      // Receives the archives instead of the temporary directory, if set
     private transient String archiveFilePathBase;                           // Part of the archive filename determined by Util.generateFileNameBase
     private transient long currentArchiveTotalFilesSize;                    // Size of all the files inside currently processed archive
     private transient int currentArchiveFilesCount;                         // Number of the files inside currently processed archive
     private transient int archivesNumber;                                   // Number of the archives created so far by the ZipStorage
     private transient Set<File> archives;                                   // Set of created archive files
+    private transient ExecutorService compressor;                           // Compresses the completed archives in the background
+    private transient List<Future<File>> pendingArchives;                   // Archives being compressed
+    private transient BackupGovernor governor;                              // Limits the bandwidth and the threads of the backup
+    private transient ExecutorService blockCompressor;                      // Compresses the blocks of the big files
+    private transient CompressionPolicy compressionPolicy;                  // Decides which files are compressed
+    private transient Set<File> incompressibleFiles;                        // Files of the current archive written without compression
+    private transient Map<String, File> archiveFiles;                       // Files of the current archive by their path in the archive
 
-    @DataBoundConstructor
     public ZipStorage(boolean multiVolume, long volumeSize) {
+        this(multiVolume, volumeSize, 0);
+    }
+
+    public ZipStorage(boolean multiVolume, long volumeSize, int compressionThreads) {
+        this(multiVolume, volumeSize, compressionThreads, 0, 0);
+    }
+
+    public ZipStorage(boolean multiVolume, long volumeSize, int compressionThreads, long parallelDeflateThreshold, int parallelDeflateBlockSize) {
+        this(multiVolume, volumeSize, compressionThreads, parallelDeflateThreshold, parallelDeflateBlockSize,
+                CompressionPolicy.DEFAULT_STORED_EXTENSIONS, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    @DataBoundConstructor
+    public ZipStorage(boolean multiVolume, long volumeSize, int compressionThreads, long parallelDeflateThreshold, int parallelDeflateBlockSize,
+                      String storedExtensions, int compressionLevel) {
         super();
         this.multiVolume = multiVolume;
         this.volumeSize = volumeSize;
+        this.compressionThreads = compressionThreads;
+        this.parallelDeflateThreshold = parallelDeflateThreshold;
+        this.parallelDeflateBlockSize = parallelDeflateBlockSize;
+        this.storedExtensions = storedExtensions;
+        this.compressionLevel = compressionLevel;
     }
 
     public long getCurrentArchiveTotalFilesSize() {
@@ -87,6 +138,55 @@ public class ZipStorage extends Storage {
         this.volumeSize = volumeSize;
     }
 
+    @SuppressWarnings("unused")
+    public int getCompressionThreads() {
+        return compressionThreads;
+    }
+
+    @SuppressWarnings("unused")
+    public void setCompressionThreads(int compressionThreads) {
+        this.compressionThreads = compressionThreads;
+    }
+
+    @SuppressWarnings("unused")
+    public long getParallelDeflateThreshold() {
+        return parallelDeflateThreshold;
+    }
+
+    @SuppressWarnings("unused")
+    public void setParallelDeflateThreshold(long parallelDeflateThreshold) {
+        this.parallelDeflateThreshold = parallelDeflateThreshold;
+    }
+
+    @SuppressWarnings("unused")
+    public int getParallelDeflateBlockSize() {
+        return parallelDeflateBlockSize;
+    }
+
+    @SuppressWarnings("unused")
+    public void setParallelDeflateBlockSize(int parallelDeflateBlockSize) {
+        this.parallelDeflateBlockSize = parallelDeflateBlockSize;
+    }
+
+    @SuppressWarnings("unused")
+    public String getStoredExtensions() {
+        return storedExtensions != null ? storedExtensions : CompressionPolicy.DEFAULT_STORED_EXTENSIONS;
+    }
+
+    @SuppressWarnings("unused")
+    public void setStoredExtensions(String storedExtensions) {
+        this.storedExtensions = storedExtensions;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel != null ? compressionLevel : Deflater.DEFAULT_COMPRESSION;
+    }
+
+    @SuppressWarnings("unused")
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
     @SuppressWarnings("unused")
     public boolean isMultiVolume() {
         return multiVolume;
@@ -99,74 +199,181 @@ public class ZipStorage extends Storage {
 
     @Override
     public void backupStart(String tempDirectoryPath, String archiveFilenameBase) {
+        start(new File(tempDirectoryPath), null, archiveFilenameBase);
+    }
+
+    @Override
+    public boolean isStreamingSupported() {
+        return true;
+    }
+
+    @Override
+    public void backupStart(BackupSink sink, String archiveFilenameBase) {
+        start(null, sink, archiveFilenameBase);
+    }
+
+    private void start(File tempDirectory, BackupSink sink, String archiveFilenameBase) {
         archiver = new ZipArchiver();
+        compressionPolicy = new CompressionPolicy(getStoredExtensions());
+        incompressibleFiles = Sets.newHashSet();
+        archiveFiles = Maps.newLinkedHashMap();
         archives = Sets.newHashSet();
+        pendingArchives = Lists.newArrayList();
+        governor = BackupGovernor.get();
+        int threads = governor.limitThreads(compressionThreads > 0 ? compressionThreads : Runtime.getRuntime().availableProcessors());
+        // When all the threads are busy and enough archives are waiting, the backup thread compresses the next archive itself
+        compressor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(threads),
+                governor.getThreadFactory(), new ThreadPoolExecutor.CallerRunsPolicy());
+        // Separate pool, a block must never wait behind an archive which is waiting for the backup thread
+        blockCompressor = Executors.newFixedThreadPool(threads, governor.getThreadFactory());
         archivesNumber = 1;
         currentArchiveFilesCount = 0;
         currentArchiveTotalFilesSize = 0;
-        tempDirectory = new File(tempDirectoryPath);
+        this.tempDirectory = tempDirectory;
+        this.sink = sink;
         this.archiveFilePathBase = archiveFilenameBase;
         String currentArchiveFilePath = archiveFilePathBase + "_" + archivesNumber; // Defining filename
         currentArchiveFilePath = Util.createFileName(currentArchiveFilePath, getDescriptor().getArchiveFileExtension()); // Adding extension to the filename
         archiver.setDestFile(new File(tempDirectory, currentArchiveFilePath));
-        if(multiVolume && (volumeSize <= 0 || volumeSize > MAX_SIZE_OF_FILES_PER_ARCHIVE)) {
+        if(multiVolume && volumeSize <= 0) {
             LOGGER.warning("Volume size " + volumeSize + " bytes is incorrect, setting to single volume.");
             multiVolume = false;
         }
     }
 
     @Override
-    public void backupAddFile(File fileToStore) throws PeriodicBackupException {
-        if(fileToStore.length() > MAX_SIZE_OF_FILES_PER_ARCHIVE) {
-            throw new PeriodicBackupException("Size of file " + fileToStore.getAbsolutePath() + " is bigger then maximum allowed size (" + MAX_SIZE_OF_FILES_PER_ARCHIVE / (1024l) + "kB). Cannot create archive.");
-        }
-        if ((currentArchiveFilesCount + 1) >= MAX_FILES_PER_ARCHIVE || (currentArchiveTotalFilesSize + fileToStore.length()) >= MAX_SIZE_OF_FILES_PER_ARCHIVE) {
-            LOGGER.info("Number of files in archive " + archiver.getDestFile().getAbsolutePath() + " exceeded " + MAX_FILES_PER_ARCHIVE + " or total size of files for this archive exceeded " + MAX_SIZE_OF_FILES_PER_ARCHIVE / (1024l) + " kB");
-            createNewArchive();
-        } else {
-            // fileToStore is bigger then the limit and there are no other files in archive yet (add and create new)
-            if (multiVolume && fileToStore.length() >= volumeSize && currentArchiveFilesCount == 0) {
-                addFile(fileToStore);
-                LOGGER.info("Total size of files for this archive exceeded single volume size " + volumeSize + " B");
-                createNewArchive();
-            }
-            // fileToStore is bigger the limit and there are already some files in the archive (create new, add, create new)
-            else if (multiVolume && fileToStore.length() >= volumeSize && currentArchiveFilesCount > 0) {
-                LOGGER.info("Total size of files for this archive exceeded single volume size " + volumeSize + " B");
-                createNewArchive();
-                addFile(fileToStore);
-                LOGGER.info("Total size of files for this archive exceeded single volume size " + volumeSize + " B");
-                createNewArchive();
-            }
-            // fileToStore is smaller then the limit but together with the files that are already in the archive the limit will be exceeded (create new, add)
-            else if (multiVolume && fileToStore.length() < volumeSize && currentArchiveTotalFilesSize + fileToStore.length() >= volumeSize) {
-                LOGGER.info("Total size of files for this archive exceeded single volume size " + volumeSize + " B");
+    public void backupAddFile(File fileToStore, String archivePath) throws PeriodicBackupException {
+        // Decided once here, the archive remembers the files it writes without compression
+        boolean compressible = compressionPolicy.isCompressible(fileToStore);
+        // Big files get an archive on their own, compressed by all the threads at once
+        if (parallelDeflateThreshold > 0 && fileToStore.length() >= parallelDeflateThreshold && compressible) {
+            if (currentArchiveFilesCount > 0) {
                 createNewArchive();
-                addFile(fileToStore);
-            }
-            // Otherwise... (add)
-            else {
-                addFile(fileToStore);
             }
+            addBigFile(fileToStore, archivePath);
+            return;
+        }
+        // The archives are written in the Zip64 format when needed, so only the volume size limits their content
+        // fileToStore is bigger then the limit and there are no other files in archive yet (add and create new)
+        if (multiVolume && fileToStore.length() >= volumeSize && currentArchiveFilesCount == 0) {
+            addFile(fileToStore, archivePath, compressible);
+            LOGGER.info("Total size of files for this archive exceeded single volume size " + volumeSize + " B");
+            createNewArchive();
+        }
+        // fileToStore is bigger the limit and there are already some files in the archive (create new, add, create new)
+        else if (multiVolume && fileToStore.length() >= volumeSize && currentArchiveFilesCount > 0) {
+            LOGGER.info("Total size of files for this archive exceeded single volume size " + volumeSize + " B");
+            createNewArchive();
+            addFile(fileToStore, archivePath, compressible);
+            LOGGER.info("Total size of files for this archive exceeded single volume size " + volumeSize + " B");
+            createNewArchive();
+        }
+        // fileToStore is smaller then the limit but together with the files that are already in the archive the limit will be exceeded (create new, add)
+        else if (multiVolume && fileToStore.length() < volumeSize && currentArchiveTotalFilesSize + fileToStore.length() >= volumeSize) {
+            LOGGER.info("Total size of files for this archive exceeded single volume size " + volumeSize + " B");
+            createNewArchive();
+            addFile(fileToStore, archivePath, compressible);
+        }
+        // Otherwise... (add)
+        else {
+            addFile(fileToStore, archivePath, compressible);
         }
     }
 
     /**
      *
-     * This method creates archive file from current ZipArchiver object and then creates new instance of ZipArchiver
+     * This method hands the current ZipArchiver object over to the compressing threads and then creates new instance of ZipArchiver.
+     * The name of each archive is determined here, so the numbering does not depend on the order in which the archives are completed.
      */
     private void createNewArchive() {
+        final ZipArchiver completedArchiver = archiver;
+        final Map<String, File> completedArchiveFiles = archiveFiles;
+        final Set<File> completedIncompressibleFiles = incompressibleFiles;
+        pendingArchives.add(compressor.submit(new Callable<File>() {
+            public File call() throws Exception {
+                long start = System.currentTimeMillis();
+                createArchive(completedArchiver.getDestFile(), completedArchiveFiles, completedIncompressibleFiles);
+                LOGGER.info("Archive " + completedArchiver.getDestFile().getAbsolutePath() + " created in " + (System.currentTimeMillis() - start) + " ms");
+                return completedArchiver.getDestFile();
+            }
+        }));
+        addArchive(archiver.getDestFile());
+        startNextArchive();
+    }
+
+    /**
+     *
+     * Writes the archive planned by the ZipArchiver either to its destination file or into the sink,
+     * compressing only the files the CompressionPolicy considers compressible
+     *
+     * @param destFile file of the archive, only its name is used when the archive is written into the sink
+     * @param files files of the archive by their path in the archive
+     * @param incompressible files of the archive written without compression
+     * @throws Exception if the archive could not be created
+     */
+    private void createArchive(File destFile, Map<String, File> files, Set<File> incompressible) throws Exception {
+        BackupEvent.Span event = BackupEvent.CLOSE_VOLUME.begin();
+        long bytes = 0;
+        OutputStream out = governor.throttle(sink != null ? sink.openArchive(destFile.getName()) : governor.openOutput(destFile));
         try {
-            archiver.createArchive();
-        } catch (Exception e) {
-            LOGGER.warning("Could not create archive " + archiver.getDestFile() + " " + e.getMessage());
+            ZipArchiveOutputStream zip = new ZipArchiveOutputStream(new BufferedOutputStream(out, 64 * 1024));
+            zip.setUseZip64(Zip64Mode.AsNeeded);
+            zip.setLevel(getCompressionLevel());
+            byte[] buffer = new byte[64 * 1024];
+            for (Map.Entry<String, File> entry : files.entrySet()) {
+                File file = entry.getValue();
+                ZipArchiveEntry zipEntry = new ZipArchiveEntry(entry.getKey().replace(File.separatorChar, '/'));
+                zipEntry.setTime(file.lastModified());
+                zipEntry.setUnixMode(UNIX_FILE_MODE);
+                // Knowing the size up front tells whether the entry needs the Zip64 extensions
+                zipEntry.setSize(file.length());
+                // Already compressed files are deflated at level 0, which copies them into stored blocks. Unlike the
+                // STORED method it does not need their CRC up front, so they are read only once
+                zipEntry.setMethod(ZipArchiveEntry.DEFLATED);
+                zip.setLevel(incompressible.contains(file) ? Deflater.NO_COMPRESSION : getCompressionLevel());
+                zip.putArchiveEntry(zipEntry);
+                InputStream in = governor.openInput(file);
+                try {
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        zip.write(buffer, 0, read);
+                    }
+                } finally {
+                    in.close();
+                }
+                zip.closeArchiveEntry();
+                bytes += zipEntry.getSize();
+            }
+            zip.finish();
+            zip.flush();
+        } finally {
+            out.close();
+        }
+        event.commit(files.size(), bytes, destFile.getName());
+    }
+
+    /**
+     *
+     * Remembers the archive to return from backupStop, the archives written into a sink are handled by the sink
+     */
+    private void addArchive(File archive) {
+        if (sink == null) {
+            archives.add(archive);
         }
-        archives.add(archiver.getDestFile());
+    }
+
+    /**
+     *
+     * Creates new instance of ZipArchiver for the next archive
+     */
+    private void startNextArchive() {
         archivesNumber++;
         currentArchiveFilesCount = 0;
         currentArchiveTotalFilesSize = 0;
         LOGGER.info("Creating new archive");
         archiver = new ZipArchiver();
+        incompressibleFiles = Sets.newHashSet();
+        archiveFiles = Maps.newLinkedHashMap();
         String currentArchiveFilePath = archiveFilePathBase + "_" + archivesNumber;
         currentArchiveFilePath = Util.createFileName(currentArchiveFilePath, getDescriptor().getArchiveFileExtension());
         archiver.setDestFile(new File(tempDirectory, currentArchiveFilePath));
@@ -177,10 +384,16 @@ public class ZipStorage extends Storage {
      * Adds a file to the archiver
      *
      * @param fileToStore file that will be add to the archive
+     * @param archivePath path of the file in the archive
+     * @param compressible false if the file is written without compression
      */
-    private void addFile(File fileToStore) {
+    private void addFile(File fileToStore, String archivePath, boolean compressible) {
         try {
-            archiver.addFile(fileToStore, Util.getRelativePath(fileToStore, Hudson.getInstance().getRootDir()));
+            archiver.addFile(fileToStore, archivePath);
+            archiveFiles.put(archivePath, fileToStore);
+            if (!compressible) {
+                incompressibleFiles.add(fileToStore);
+            }
             currentArchiveFilesCount++;
             currentArchiveTotalFilesSize += fileToStore.length();
         } catch (ArchiverException e) {
@@ -188,40 +401,124 @@ public class ZipStorage extends Storage {
         }
     }
 
+    /**
+     *
+     * Stores a big file in an archive of its own, deflating blocks of it in parallel
+     *
+     * @param fileToStore file that will be archived
+     * @param archivePath path of the file in the archive
+     * @throws PeriodicBackupException if the archive could not be created
+     */
+    private void addBigFile(File fileToStore, String archivePath) throws PeriodicBackupException {
+        File archive = archiver.getDestFile();
+        int threads = governor.limitThreads(compressionThreads > 0 ? compressionThreads : Runtime.getRuntime().availableProcessors());
+        ParallelDeflater deflater = new ParallelDeflater(blockCompressor, parallelDeflateBlockSize, threads * 2, getCompressionLevel());
+        long start = System.currentTimeMillis();
+        try {
+            OutputStream out = governor.throttle(sink != null ? sink.openArchive(archive.getName()) : governor.openOutput(archive));
+            try {
+                deflater.createArchive(fileToStore, archivePath, out);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            throw new PeriodicBackupException("Could not create archive " + archive.getAbsolutePath() + " " + e.getMessage());
+        }
+        LOGGER.info("Archive " + archive.getAbsolutePath() + " with " + fileToStore.getAbsolutePath() + " created in " + (System.currentTimeMillis() - start) + " ms");
+        addArchive(archive);
+        startNextArchive();
+    }
+
     @Override
     public Iterable<File> backupStop() throws PeriodicBackupException {
-        if(!archiver.getFiles().isEmpty()) {
-            try {
-                archiver.createArchive();
-            } catch (Exception e) {
-                throw new PeriodicBackupException("Could not create archive " + archiver.getDestFile().getAbsolutePath() + " " + e.getMessage());
+        try {
+            if(!archiveFiles.isEmpty()) {
+                try {
+                    createArchive(archiver.getDestFile(), archiveFiles, incompressibleFiles);
+                } catch (Exception e) {
+                    throw new PeriodicBackupException("Could not create archive " + archiver.getDestFile().getAbsolutePath() + " " + e.getMessage());
+                }
+                addArchive(archiver.getDestFile());
+            }
+            // Waiting for the archives still being compressed
+            for (Future<File> pendingArchive : pendingArchives) {
+                try {
+                    pendingArchive.get();
+                } catch (ExecutionException e) {
+                    throw new PeriodicBackupException("Could not create archive " + e.getCause().getMessage());
+                } catch (InterruptedException e) {
+                    throw new PeriodicBackupException("Interrupted while creating archives");
+                }
             }
-            archives.add(archiver.getDestFile());
+        } finally {
+            compressor.shutdownNow();
+            blockCompressor.shutdownNow();
         }
         return archives;
     }
 
+    /**
+     *
+     * @return true if the threads compressing the archives have been shut down
+     */
+    boolean isStopped() {
+        return compressor.isShutdown() && blockCompressor.isShutdown();
+    }
+
+    @Override
+    public void backupAbort() {
+        for (Future<File> pendingArchive : pendingArchives) {
+            pendingArchive.cancel(true);
+        }
+        compressor.shutdownNow();
+        blockCompressor.shutdownNow();
+    }
+
+    @Override
+    public boolean isPipelinedRestoreSupported() {
+        return true;
+    }
+
+    @Override
+    public boolean isSelectiveRestoreSupported() {
+        return true;
+    }
+
+    @Override
+    public int unarchiveSelectedFiles(File archive, File tempDir, BackupFilter selection) throws IOException {
+        int threads = compressionThreads > 0 ? compressionThreads : Runtime.getRuntime().availableProcessors();
+        ExecutorService extractors = Executors.newFixedThreadPool(threads, new DaemonThreadFactory());
+        try {
+            // Only the central directory and the compressed data of the selected entries are read
+            return new ZipExtractor(extractors, threads).extract(archive, tempDir, selection);
+        } finally {
+            extractors.shutdownNow();
+        }
+    }
+
     @Override
     public void unarchiveFiles(Iterable<File> archives, File tempDir) {
-        ZipUnArchiver unarchiver = new ZipUnArchiver();
-        unarchiver.setDestDirectory(tempDir);
-        unarchiver.enableLogging(new ConsoleLogger(org.codehaus.plexus.logging.Logger.LEVEL_INFO, "UnArchiver"));
-
-        // Extracting each archive to the temporary directory
-        for(File archive : archives) {
-            unarchiver.setSourceFile(archive);
-            LOGGER.info("Extracting files from " + archive.getAbsolutePath() + " to " + tempDir.getAbsolutePath());
-            try {
-                unarchiver.extract();
-            } catch (ArchiverException e) {
-                LOGGER.warning("Could not extract from " + archive.getAbsolutePath() + e.getMessage());
-            }
+        int threads = compressionThreads > 0 ? compressionThreads : Runtime.getRuntime().availableProcessors();
+        ExecutorService extractors = Executors.newFixedThreadPool(threads, new DaemonThreadFactory());
+        ZipExtractor extractor = new ZipExtractor(extractors, threads);
+        try {
+            // Extracting each archive to the temporary directory
+            for(File archive : archives) {
+                LOGGER.info("Extracting files from " + archive.getAbsolutePath() + " to " + tempDir.getAbsolutePath());
+                try {
+                    extractor.extract(archive, tempDir);
+                } catch (IOException e) {
+                    LOGGER.warning("Could not extract from " + archive.getAbsolutePath() + " " + e.getMessage());
+                }
 
-            // Deleting the archive file
-            LOGGER.info("Deleting " + archive.getAbsolutePath());
-            if(!archive.delete()) {
-                LOGGER.warning("Could not delete " + archive.getAbsolutePath());
+                // Deleting the archive file
+                LOGGER.info("Deleting " + archive.getAbsolutePath());
+                if(!archive.delete()) {
+                    LOGGER.warning("Could not delete " + archive.getAbsolutePath());
+                }
             }
+        } finally {
+            extractors.shutdownNow();
         }
     }
 
@@ -247,13 +544,31 @@ public class ZipStorage extends Storage {
         }
 
         @Override
-        public Storage newInstance(StaplerRequest req, JSONObject formData) {
-            long size = MAX_SIZE_OF_FILES_PER_ARCHIVE;
-            try {
-                size = Long.parseLong(req.getParameter("volumeSize"));
+        public Storage newInstance(StaplerRequest req, JSONObject formData) throws FormException {
+            // The volume size is blank unless multiVolume is checked, each field falls back to its own default
+            long size = parseLong(req, "volumeSize", Long.MAX_VALUE);
+            int threads = (int) parseLong(req, "compressionThreads", 0);
+            long threshold = parseLong(req, "parallelDeflateThreshold", 0);
+            int blockSize = (int) parseLong(req, "parallelDeflateBlockSize", 0);
+            int level = (int) parseLong(req, "compressionLevel", Deflater.DEFAULT_COMPRESSION);
+            String extensions = req.getParameter("storedExtensions");
+            // Deflater would only reject the level when the backup runs
+            if (!isValidCompressionLevel(level)) {
+                throw new FormException("Compression level " + level + " is not between -1 and 9", "compressionLevel");
+            }
+            return new ZipStorage("on".equals(req.getParameter("multiVolume")), size, threads, threshold, blockSize,
+                    extensions != null ? extensions : CompressionPolicy.DEFAULT_STORED_EXTENSIONS, level);
+        }
+
+        private static long parseLong(StaplerRequest req, String name, long defaultValue) throws FormException {
+            String value = req.getParameter(name);
+            if (value == null || value.trim().length() == 0) {
+                return defaultValue;
             }
-            finally {
-                return new ZipStorage("on".equals(req.getParameter("multiVolume")), size);
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                throw new FormException("\"" + value + "\" is not a number", name);
             }
         }
 
@@ -262,5 +577,21 @@ public class ZipStorage extends Storage {
             return "zip";
         }
 
+        @SuppressWarnings("unused")
+        public FormValidation doCheckCompressionLevel(@QueryParameter String value) {
+            try {
+                if (isValidCompressionLevel(Integer.parseInt(value.trim()))) {
+                    return FormValidation.ok();
+                }
+            } catch (NumberFormatException e) {
+                // Reported below
+            }
+            return FormValidation.error("The compression level must be a number between -1 (default) and 9");
+        }
+
+        private static boolean isValidCompressionLevel(int level) {
+            return level >= Deflater.DEFAULT_COMPRESSION && level <= Deflater.BEST_COMPRESSION;
+        }
+
     }
 }
@@ -0,0 +1,78 @@
+package org.jvnet.hudson.plugins.periodicbackup;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+public class BackupCatalogTest extends TestCase {
+
+    @Test
+    public void testAddAndRemove() throws Exception {
+        File tempDir = Files.createTempDir();
+        try {
+            BackupCatalog catalog = new BackupCatalog(tempDir);
+            Map<String, Long> volumes = Maps.newLinkedHashMap();
+            volumes.put("backup_1.zip", 10l);
+            volumes.put("backup_2.zip", 20l);
+            catalog.add(new BackupCatalog.Entry(new Date(2000), new Date(1000), ZipStorage.class.getName(), volumes, "backup_2.pbobj"));
+            catalog.add(new BackupCatalog.Entry(new Date(1000), null, ZipStorage.class.getName(), volumes, "backup_1.pbobj"));
+
+            List<BackupCatalog.Entry> entries = new BackupCatalog(tempDir).read();
+            assertEquals(2, entries.size());
+            assertEquals(new Date(1000), entries.get(0).getTimestamp());
+            assertNull(entries.get(0).getParentTimestamp());
+            assertEquals(new Date(1000), entries.get(1).getParentTimestamp());
+            assertEquals(volumes, entries.get(1).getVolumes());
+            assertEquals("backup_2.pbobj", entries.get(1).getBackupObjectFileName());
+
+            catalog.remove(new Date(1000));
+            entries = catalog.read();
+            assertEquals(1, entries.size());
+            assertEquals(new Date(2000), entries.get(0).getTimestamp());
+        } finally {
+            FileUtils.deleteDirectory(tempDir);
+        }
+    }
+
+    @Test
+    public void testIncompleteLineIsSkipped() throws Exception {
+        File tempDir = Files.createTempDir();
+        try {
+            BackupCatalog catalog = new BackupCatalog(tempDir);
+            catalog.add(new BackupCatalog.Entry(new Date(1000), null, ZipStorage.class.getName(), Maps.<String, Long>newHashMap(), "backup_1.pbobj"));
+            Files.append("+\t2000\t10", new File(tempDir, BackupCatalog.FILE_NAME), Charsets.UTF_8);
+
+            assertEquals(1, catalog.read().size());
+        } finally {
+            FileUtils.deleteDirectory(tempDir);
+        }
+    }
+
+    @Test
+    public void testFileManagerNameIsOptional() throws Exception {
+        File tempDir = Files.createTempDir();
+        try {
+            BackupCatalog catalog = new BackupCatalog(tempDir);
+            catalog.add(new BackupCatalog.Entry(new Date(1000), null, ZipStorage.class.getName(), Maps.<String, Long>newHashMap(), "backup_1.pbobj", "FullBackup"));
+            // Line written without the name of the FileManager
+            Files.append("+\t2000\t1000\t" + ZipStorage.class.getName() + "\t\tbackup_2.pbobj\n", new File(tempDir, BackupCatalog.FILE_NAME), Charsets.UTF_8);
+
+            List<BackupCatalog.Entry> entries = catalog.read();
+            assertEquals(2, entries.size());
+            assertEquals("FullBackup", entries.get(0).getFileManagerName());
+            assertEquals("backup_1.pbobj", entries.get(0).getBackupObjectFileName());
+            assertNull(entries.get(1).getFileManagerName());
+            assertEquals("backup_2.pbobj", entries.get(1).getBackupObjectFileName());
+        } finally {
+            FileUtils.deleteDirectory(tempDir);
+        }
+    }
+}
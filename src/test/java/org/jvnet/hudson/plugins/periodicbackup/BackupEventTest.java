@@ -0,0 +1,64 @@
+package org.jvnet.hudson.plugins.periodicbackup;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+
+public class BackupEventTest extends TestCase {
+
+    @Test
+    public void testNotRecording() throws Exception {
+        // Without a running recording the events are neither created nor committed
+        assertFalse(BackupEvent.STORE.isRecording());
+        BackupEvent.Span event = BackupEvent.STORE.begin();
+        assertFalse(event.isRecording());
+        event.commit(1, 2, "path");
+        assertSame(event, BackupEvent.RESTORE.begin());
+    }
+
+    @Test
+    public void testEventIsCommittedToARecording() throws Exception {
+        Class<?> recordingClass;
+        try {
+            recordingClass = Class.forName("jdk.jfr.Recording");
+        } catch (ClassNotFoundException e) {
+            // Flight Recorder is only available from JDK 11
+            return;
+        }
+        Object recording = recordingClass.newInstance();
+        String name = BackupEvent.class.getPackage().getName() + ".Store";
+        recordingClass.getMethod("enable", String.class).invoke(recording, name);
+        recordingClass.getMethod("start").invoke(recording);
+        File dump = File.createTempFile("backup", ".jfr");
+        try {
+            assertTrue(BackupEvent.STORE.isRecording());
+            BackupEvent.Span event = BackupEvent.STORE.begin();
+            assertTrue(event.isRecording());
+            event.commit(3, 4000, "location", false);
+            recordingClass.getMethod("stop").invoke(recording);
+            Object path = File.class.getMethod("toPath").invoke(dump);
+            recordingClass.getMethod("dump", Class.forName("java.nio.file.Path")).invoke(recording, path);
+
+            List<?> events = (List<?>) Class.forName("jdk.jfr.consumer.RecordingFile")
+                    .getMethod("readAllEvents", Class.forName("java.nio.file.Path")).invoke(null, path);
+            Object recorded = null;
+            for (Object e : events) {
+                Object type = e.getClass().getMethod("getEventType").invoke(e);
+                if (name.equals(type.getClass().getMethod("getName").invoke(type))) {
+                    recorded = e;
+                }
+            }
+            assertNotNull(recorded);
+            assertEquals(3L, recorded.getClass().getMethod("getLong", String.class).invoke(recorded, "files"));
+            assertEquals(4000L, recorded.getClass().getMethod("getLong", String.class).invoke(recorded, "bytes"));
+            assertEquals("location", recorded.getClass().getMethod("getString", String.class).invoke(recorded, "path"));
+            assertEquals(false, recorded.getClass().getMethod("getBoolean", String.class).invoke(recorded, "successful"));
+        } finally {
+            recordingClass.getMethod("close").invoke(recording);
+            assertTrue(dump.delete());
+        }
+        assertFalse(BackupEvent.STORE.isRecording());
+    }
+}
@@ -0,0 +1,51 @@
+package org.jvnet.hudson.plugins.periodicbackup;
+
+import com.google.common.collect.Lists;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+public class BackupFilterTest extends TestCase {
+
+    private final File rootDir = new File("home");
+
+    @Test
+    public void testRegenerableDataIsSkipped() {
+        BackupFilter filter = new BackupFilter(rootDir, Collections.<String>emptyList(), BackupFilter.REGENERABLE_DATA);
+
+        assertFalse(filter.acceptDirectory(file("jobs/job1/workspace")));
+        assertFalse(filter.acceptDirectory(file("jobs/job1/modules/module1/builds/1/archive")));
+        assertFalse(filter.acceptDirectory(file("war")));
+        assertFalse(filter.acceptDirectory(file("plugins/git/WEB-INF")));
+        assertTrue(filter.acceptDirectory(file("jobs/job1/builds/1")));
+        assertTrue(filter.acceptDirectory(file("plugins/git")));
+        assertTrue(filter.acceptFile(file("plugins/git.hpi")));
+        assertTrue(filter.acceptFile(file("jobs/job1/config.xml")));
+        assertEquals(1, filter.getSkippedDirectories("jobs/**/workspace/**"));
+        assertEquals(1, filter.getSkippedDirectories("jobs/**/builds/*/archive/**"));
+    }
+
+    @Test
+    public void testIncludesPruneDirectories() {
+        List<String> includes = BackupFilter.parsePatterns("config.xml,\njobs/*/config.xml");
+        List<String> excludes = Lists.newArrayList("**/*.tmp");
+        BackupFilter filter = new BackupFilter(rootDir, includes, excludes);
+
+        assertTrue(filter.acceptDirectory(file("jobs")));
+        assertTrue(filter.acceptDirectory(file("jobs/job1")));
+        assertFalse(filter.acceptDirectory(file("jobs/job1/builds")));
+        assertFalse(filter.acceptDirectory(file("users")));
+        assertTrue(filter.acceptFile(file("config.xml")));
+        assertTrue(filter.acceptFile(file("jobs/job1/config.xml")));
+        assertFalse(filter.acceptFile(file("jobs/job1/nextBuildNumber")));
+        assertFalse(filter.acceptFile(file("jobs/job1/config.tmp")));
+        assertEquals(0, filter.getSkippedFiles("**/*.tmp"));
+    }
+
+    private File file(String relativePath) {
+        return new File(rootDir, relativePath.replace('/', File.separatorChar));
+    }
+}
@@ -0,0 +1,151 @@
+package org.jvnet.hudson.plugins.periodicbackup;
+
+import com.google.common.io.Files;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+public class BackupGovernorTest extends TestCase {
+
+    @Test
+    public void testWritesAreLimitedToTheRate() throws Exception {
+        FakeClock clock = new FakeClock();
+        BackupGovernor governor = new BackupGovernor(1024 * 1024, 0, 0, 0, 0, false, false, clock);
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        OutputStream out = governor.throttle(target);
+        byte[] buffer = new byte[64 * 1024];
+        // The bucket starts empty, 3 MB take 3 seconds
+        for (int i = 0; i < 48; i++) {
+            out.write(buffer);
+        }
+        out.close();
+        assertEquals(48 * 64 * 1024, target.size());
+        assertEquals(3000, clock.now / 1000000);
+    }
+
+    @Test
+    public void testReadsOfTheBackedUpFilesAreLimitedToTheRate() throws Exception {
+        File tempDir = Files.createTempDir();
+        try {
+            File file = new File(tempDir, "file");
+            Files.write(new byte[2 * 1024 * 1024], file);
+            FakeClock clock = new FakeClock();
+            BackupGovernor governor = new BackupGovernor(1024 * 1024, 0, 0, 0, 0, false, false, clock);
+            InputStream in = governor.openInput(file);
+            try {
+                byte[] buffer = new byte[64 * 1024];
+                while (in.read(buffer) != -1) {
+                    // Only reading
+                }
+            } finally {
+                in.close();
+            }
+            assertEquals(2000, clock.now / 1000000);
+        } finally {
+            FileUtils.deleteDirectory(tempDir);
+        }
+    }
+
+    @Test
+    public void testNoLimitByDefault() throws Exception {
+        BackupGovernor governor = new BackupGovernor(0, 0, 0, 0, 0, false);
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        assertSame(target, governor.throttle(target));
+        assertEquals(8, governor.limitThreads(8));
+        assertEquals(2, new BackupGovernor(0, 0, 0, 0, 2, true).limitThreads(8));
+        assertEquals(Thread.MIN_PRIORITY, new BackupGovernor(0, 0, 0, 0, 2, true).getThreadFactory().newThread(new Runnable() {
+            public void run() {
+            }
+        }).getPriority());
+    }
+
+    @Test
+    public void testFilesDroppedFromThePageCacheAreReadAndWritten() throws Exception {
+        File tempDir = Files.createTempDir();
+        try {
+            BackupGovernor governor = new BackupGovernor(0, 0, 0, 0, 0, false, true);
+            File source = new File(tempDir, "source");
+            OutputStream out = governor.openOutput(source);
+            try {
+                out.write("content".getBytes("UTF-8"));
+            } finally {
+                out.close();
+            }
+            File copy = new File(tempDir, "copy");
+            governor.copy(source, copy);
+            assertEquals("content", FileUtils.readFileToString(copy, "UTF-8"));
+        } finally {
+            FileUtils.deleteDirectory(tempDir);
+        }
+    }
+
+    @Test
+    public void testPagesCachedBeforeTheBackupAreKept() throws Exception {
+        if (!PageCache.isAvailable()) {
+            return;
+        }
+        File tempDir = Files.createTempDir();
+        try {
+            // Jenkins has just written the file, so all its pages are cached
+            File file = new File(tempDir, "file");
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write(new byte[256 * 1024]);
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            assertAllPagesResident(file);
+
+            BackupGovernor governor = new BackupGovernor(0, 0, 0, 0, 0, false, true);
+            InputStream in = governor.openInput(file);
+            try {
+                while (in.read(new byte[64 * 1024]) != -1) {
+                    // Only reading
+                }
+            } finally {
+                in.close();
+            }
+            assertAllPagesResident(file);
+        } finally {
+            FileUtils.deleteDirectory(tempDir);
+        }
+    }
+
+    private static void assertAllPagesResident(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            byte[] residentPages = PageCache.getResidentPages(in.getFD(), file.length());
+            assertNotNull(residentPages);
+            for (byte page : residentPages) {
+                assertEquals(1, page & 1);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Time only goes on while the governor sleeps
+     */
+    private static class FakeClock implements BackupGovernor.Clock {
+
+        private long now;
+
+        public long nanoTime() {
+            return now;
+        }
+
+        public void sleep(long nanos) {
+            now += nanos;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package org.jvnet.hudson.plugins.periodicbackup;
+
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import hudson.os.PosixAPI;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Set;
+
+public class BackupLinksTest extends TestCase {
+
+    @Test
+    public void testLinksAreRecordedAndRestored() throws Exception {
+        File tempDir = Files.createTempDir();
+        try {
+            File rootDir = new File(tempDir, "home");
+            File build = new File(rootDir, "jobs/job1/builds/2011-01-01_00-00-00");
+            assertTrue(build.mkdirs());
+            File log = new File(build, "log");
+            Files.write(new byte[100], log);
+            File artifact = new File(rootDir, "jobs/job1/artifact.bin");
+            Files.write(new byte[10], artifact);
+            File copy = new File(rootDir, "jobs/job1/copy.bin");
+            if (PosixAPI.get().symlink("2011-01-01_00-00-00", new File(rootDir, "jobs/job1/builds/1").getPath()) != 0
+                    || PosixAPI.get().link(artifact.getPath(), copy.getPath()) != 0) {
+                // Links are not supported on this system
+                return;
+            }
+
+            BackupLinks links = new BackupLinks(rootDir, null);
+            Set<File> found = Sets.newHashSet();
+            for (File file : new ParallelFileWalker(rootDir, 2, 16, null, links)) {
+                found.add(file);
+            }
+            assertEquals(2, found.size());
+            assertTrue(found.contains(log));
+            assertTrue(found.contains(artifact) || found.contains(copy));
+            assertEquals(1, links.getSymbolicLinksCount());
+            assertEquals(1, links.getHardLinksCount());
+
+            // Restore the found files and the links file like a restore policy would
+            File restoreDir = new File(tempDir, "restore");
+            File restoredHome = new File(tempDir, "restoredHome");
+            assertTrue(restoreDir.mkdir());
+            for (File file : found) {
+                FileUtils.copyFile(file, new File(restoredHome, Util.getRelativePath(file, rootDir)));
+            }
+            links.write(new File(restoreDir, BackupLinks.LINKS_FILE_NAME));
+            FileUtils.copyFile(new File(restoreDir, BackupLinks.LINKS_FILE_NAME), new File(restoredHome, BackupLinks.LINKS_FILE_NAME));
+            BackupLinks.restore(restoreDir, restoredHome);
+
+            // The links file is not left in the restored homedir
+            assertFalse(new File(restoredHome, BackupLinks.LINKS_FILE_NAME).exists());
+            File restoredLink = new File(restoredHome, "jobs/job1/builds/1");
+            assertTrue(hudson.Util.isSymlink(restoredLink));
+            assertTrue(new File(restoredLink, "log").isFile());
+            assertEquals(10, new File(restoredHome, "jobs/job1/artifact.bin").length());
+            assertEquals(10, new File(restoredHome, "jobs/job1/copy.bin").length());
+        } finally {
+            FileUtils.deleteDirectory(tempDir);
+        }
+    }
+
+    @Test
+    public void testPathsWithTabsAndLineBreaksAreRestored() throws Exception {
+        File tempDir = Files.createTempDir();
+        try {
+            File rootDir = new File(tempDir, "home");
+            File build = new File(rootDir, "jobs/job\tone/builds/2011-01-01_00-00-00");
+            assertTrue(build.mkdirs());
+            File link = new File(rootDir, "jobs/job\tone/builds/last\nbuild\\1");
+            if (PosixAPI.get().symlink("2011-01-01_00-00-00", link.getPath()) != 0) {
+                // Links are not supported on this system
+                return;
+            }
+
+            BackupLinks links = new BackupLinks(rootDir, null);
+            assertTrue(links.isLink(link, BackupLinks.lstat(link)));
+            File restoreDir = new File(tempDir, "restore");
+            File restoredHome = new File(tempDir, "restoredHome");
+            assertTrue(restoreDir.mkdir());
+            links.write(new File(restoreDir, BackupLinks.LINKS_FILE_NAME));
+            BackupLinks.restore(restoreDir, restoredHome);
+
+            File restoredLink = new File(restoredHome, "jobs/job\tone/builds/last\nbuild\\1");
+            assertTrue(BackupLinks.lstat(restoredLink).isSymlink());
+            assertEquals("2011-01-01_00-00-00", PosixAPI.get().readlink(restoredLink.getPath()));
+        } finally {
+            FileUtils.deleteDirectory(tempDir);
+        }
+    }
+
+    @Test
+    public void testEscapeRoundTrip() {
+        String path = "a\\b\tc\nd\re\\tf";
+        assertEquals(-1, BackupLinks.escape(path).indexOf('\t'));
+        assertEquals(-1, BackupLinks.escape(path).indexOf('\n'));
+        assertEquals(path, BackupLinks.unescape(BackupLinks.escape(path)));
+    }
+}
@@ -0,0 +1,51 @@
+package org.jvnet.hudson.plugins.periodicbackup;
+
+import com.google.common.collect.Lists;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Date;
+import java.util.List;
+
+public class BackupManifestTest extends TestCase {
+
+    @Test
+    public void testCommitAndLoad() throws Exception {
+        File manifestFile = File.createTempFile("manifest", ".txt");
+        File temporaryFile = new File(manifestFile.getAbsolutePath() + ".tmp");
+        Date timestamp = new Date(123456);
+
+        BackupManifest.ManifestWriter writer = new BackupManifest.ManifestWriter(temporaryFile);
+        writer.add("config.xml", 10, 1000);
+        writer.add("jobs/job with spaces/config.xml", 20, 2000);
+        writer.add("jobs/deleted/config.xml", 30, 3000);
+        writer.commit(manifestFile, timestamp, 2);
+
+        BackupManifest manifest = BackupManifest.load(manifestFile);
+        assertNotNull(manifest);
+        assertEquals(timestamp, manifest.getTimestamp());
+        assertEquals(2, manifest.getRunsSinceFullBackup());
+        assertFalse(manifest.isChanged("config.xml", 10, 1000));
+        assertTrue(manifest.isChanged("jobs/job with spaces/config.xml", 20, 2001));
+        assertTrue(manifest.isChanged("jobs/new/config.xml", 5, 500));
+
+        List<String> unchecked = Lists.newArrayList(manifest.getUncheckedPaths());
+        assertEquals(Lists.newArrayList("jobs/deleted/config.xml"), unchecked);
+
+        assertFalse(temporaryFile.exists());
+        assertTrue(manifestFile.delete());
+    }
+
+    @Test
+    public void testIncompleteManifestIsIgnored() throws Exception {
+        File temporaryFile = File.createTempFile("manifest", ".tmp");
+
+        BackupManifest.ManifestWriter writer = new BackupManifest.ManifestWriter(temporaryFile);
+        writer.add("config.xml", 10, 1000);
+        writer.abort();
+
+        assertFalse(temporaryFile.exists());
+        assertNull(BackupManifest.load(temporaryFile));
+    }
+}
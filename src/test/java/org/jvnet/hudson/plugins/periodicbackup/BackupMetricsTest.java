@@ -0,0 +1,62 @@
+package org.jvnet.hudson.plugins.periodicbackup;
+
+import junit.framework.TestCase;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.junit.Test;
+
+public class BackupMetricsTest extends TestCase {
+
+    @Test
+    public void testPhasesAreRecordedInOrder() throws Exception {
+        BackupMetrics metrics = BackupMetrics.startBackup();
+        assertSame(metrics, BackupMetrics.getLastBackup());
+        assertEquals(-1, metrics.getDurationMillis());
+
+        metrics.getPhase(BackupMetrics.SCAN).count(2, 3000);
+        BackupMetrics.Phase compress = metrics.getPhase(BackupMetrics.COMPRESS, "ZipStorage");
+        compress.record(System.nanoTime() - 1000000000L, 2, 3000);
+        compress.addOutputBytes(1000);
+        metrics.getPhase(BackupMetrics.TRANSFER, "LocalDirectory: /backup").record(System.nanoTime(), 1, 1000);
+        metrics.finish(true);
+
+        assertTrue(metrics.getDurationMillis() >= 0);
+        assertEquals(3, metrics.getPhases().size());
+        assertEquals("compress:ZipStorage", metrics.getPhases().get(1).getName());
+        assertEquals(1000 / 3000.0, compress.getCompressionRatio(), 0.0001);
+        assertTrue(compress.getBytesPerSecond() > 0 && compress.getBytesPerSecond() <= 3000);
+
+        JSONObject json = metrics.toJSON();
+        assertEquals("backup", json.getString("kind"));
+        assertTrue(json.getBoolean("successful"));
+        JSONArray phases = json.getJSONArray("phases");
+        assertEquals(2, phases.getJSONObject(0).getLong("files"));
+        assertEquals(1000, phases.getJSONObject(1).getLong("outputBytes"));
+        assertFalse(phases.getJSONObject(2).containsKey("outputBytes"));
+    }
+
+    @Test
+    public void testMBeanReadsTheLastRun() throws Exception {
+        BackupMetrics metrics = BackupMetrics.startRestore();
+        metrics.getPhase(BackupMetrics.EXTRACT).count(4, 100);
+        metrics.finish(false);
+        PeriodicBackupMetrics mbean = new PeriodicBackupMetrics();
+        assertFalse(mbean.isLastRestoreSuccessful());
+        assertEquals(metrics.getDurationMillis(), mbean.getLastRestoreDurationMillis());
+        assertTrue(mbean.getLastRestorePhases().contains("extract"));
+    }
+
+    @Test
+    public void testReadingTheMBeanDoesNotCreatePhases() throws Exception {
+        BackupMetrics metrics = BackupMetrics.startBackup();
+        PeriodicBackupMetrics mbean = new PeriodicBackupMetrics();
+        assertEquals(0, mbean.getLastBackupFiles());
+        assertEquals(0, mbean.getLastBackupBytes());
+        assertNull(metrics.findPhase(BackupMetrics.SCAN));
+        assertTrue(metrics.getPhases().isEmpty());
+
+        metrics.getPhase(BackupMetrics.SCAN).count(3, 300);
+        assertEquals(3, mbean.getLastBackupFiles());
+        assertEquals(300, mbean.getLastBackupBytes());
+    }
+}
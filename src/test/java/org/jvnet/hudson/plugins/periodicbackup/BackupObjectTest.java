@@ -0,0 +1,27 @@
+package org.jvnet.hudson.plugins.periodicbackup;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Date;
+
+public class BackupObjectTest extends TestCase {
+
+    @Test
+    public void testCatalogBackupIsNotReadForItsIdentity() throws Exception {
+        // The BackupObject file does not exist, reading it would make the FileManager unknown
+        File missing = new File("missing.pbobj");
+        LocalDirectory location = new LocalDirectory(new File("backups"), true);
+        BackupObject backup = new BackupObject(missing, location, new Date(1000), new Date(500), "FullBackup");
+        BackupObject same = new BackupObject(missing, new LocalDirectory(new File("backups"), true), new Date(1000), null, null);
+        BackupObject other = new BackupObject(missing, new LocalDirectory(new File("other"), true), new Date(1000), null, null);
+
+        assertEquals(backup, same);
+        assertEquals(backup.hashCode(), same.hashCode());
+        assertFalse(backup.equals(other));
+        assertSame(location, backup.getLocation());
+        assertTrue(backup.getDisplayName().startsWith("FullBackup created on "));
+        assertTrue(backup.getDisplayName().endsWith("(incremental)"));
+    }
+}
@@ -0,0 +1,94 @@
+package org.jvnet.hudson.plugins.periodicbackup;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+public class ChunkStorageTest extends TestCase {
+
+    @Test
+    public void testChunkBoundariesSurviveAnInsertion() throws Exception {
+        File tempDir = Files.createTempDir();
+        try {
+            byte[] original = new byte[16 * 1024 * 1024];
+            new Random(1).nextBytes(original);
+            // The same content with a few bytes inserted close to its beginning
+            byte[] modified = new byte[original.length + 100];
+            System.arraycopy(original, 0, modified, 0, 1000);
+            System.arraycopy(original, 1000, modified, 1100, original.length - 1000);
+
+            ChunkStorage storage = new ChunkStorage();
+            storage.backupStart(tempDir, tempDir, "backup");
+            List<String> originalChunks = storage.storeChunks(new ByteArrayInputStream(original));
+            List<String> modifiedChunks = storage.storeChunks(new ByteArrayInputStream(modified));
+            storage.backupStop();
+
+            assertTrue(originalChunks.size() > 3);
+            Set<String> changedChunks = Sets.newHashSet(modifiedChunks);
+            changedChunks.removeAll(originalChunks);
+            // Only the chunk holding the insertion changes, the following boundaries stay where they were
+            assertEquals(1, changedChunks.size());
+            assertEquals(originalChunks.size(), modifiedChunks.size());
+            assertEquals(originalChunks.subList(1, originalChunks.size()), modifiedChunks.subList(1, modifiedChunks.size()));
+        } finally {
+            FileUtils.deleteDirectory(tempDir);
+        }
+    }
+
+    @Test
+    public void testFilesAreRestoredFromTheIndex() throws Exception {
+        File tempDir = Files.createTempDir();
+        try {
+            File root = new File(tempDir, "root");
+            File big = new File(root, "jobs/a/builds/1/log");
+            byte[] bigContent = new byte[3 * 1024 * 1024];
+            new Random(2).nextBytes(bigContent);
+            Files.createParentDirs(big);
+            Files.write(bigContent, big);
+            File small = new File(root, "config.xml");
+            Files.write("<hudson/>".getBytes("UTF-8"), small);
+            File empty = new File(root, "jobs/a/nextBuildNumber");
+            Files.write(new byte[0], empty);
+            small.setLastModified(1200000000000L);
+
+            File archiveDir = new File(tempDir, "archives");
+            archiveDir.mkdirs();
+            ChunkStorage storage = new ChunkStorage();
+            storage.backupStart(archiveDir, root, "backup");
+            storage.backupAddFile(big);
+            storage.backupAddFile(small);
+            storage.backupAddFile(empty);
+            List<File> archives = Lists.newArrayList(storage.backupStop());
+
+            File index = archives.get(0);
+            assertEquals(ChunkStorage.INDEX_EXTENSION, Util.getExtension(index));
+            Set<String> chunkNames = Sets.newHashSet();
+            for (File archive : archives.subList(1, archives.size())) {
+                chunkNames.add(archive.getName());
+            }
+            assertEquals(chunkNames, ChunkStorage.getReferencedChunks(index));
+
+            File restoreDir = new File(tempDir, "restore");
+            storage.unarchiveFiles(archives, restoreDir);
+            assertTrue(Arrays.equals(bigContent, Files.toByteArray(new File(restoreDir, "jobs/a/builds/1/log"))));
+            File restoredSmall = new File(restoreDir, "config.xml");
+            assertEquals("<hudson/>", FileUtils.readFileToString(restoredSmall));
+            assertEquals(small.lastModified(), restoredSmall.lastModified());
+            assertEquals(0, new File(restoreDir, "jobs/a/nextBuildNumber").length());
+            // The archives are deleted once extracted
+            assertFalse(index.exists());
+        } finally {
+            FileUtils.deleteDirectory(tempDir);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package org.jvnet.hudson.plugins.periodicbackup;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Random;
+
+public class CompressionPolicyTest extends TestCase {
+
+    @Test
+    public void testIsCompressible() throws Exception {
+        File tempDir = Files.createTempDir();
+        try {
+            CompressionPolicy policy = new CompressionPolicy("jar, .HPI");
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < 1000; i++) {
+                text.append("<project>").append(i).append("</project>\n");
+            }
+            File xml = new File(tempDir, "config.xml");
+            Files.write(text, xml, Charsets.UTF_8);
+            File jar = new File(tempDir, "library.jar");
+            Files.write(text, jar, Charsets.UTF_8);
+            File plugin = new File(tempDir, "plugin.hpi");
+            Files.write(text, plugin, Charsets.UTF_8);
+            byte[] random = new byte[10000];
+            new Random(1).nextBytes(random);
+            File data = new File(tempDir, "fingerprints.bin");
+            Files.write(random, data);
+
+            assertTrue(policy.isCompressible(xml));
+            assertFalse(policy.isCompressible(jar));
+            assertFalse(policy.isCompressible(plugin));
+            assertFalse(policy.isCompressible(data));
+        } finally {
+            FileUtils.deleteDirectory(tempDir);
+        }
+    }
+}
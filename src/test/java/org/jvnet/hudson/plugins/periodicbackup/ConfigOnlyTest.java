@@ -0,0 +1,44 @@
+package org.jvnet.hudson.plugins.periodicbackup;
+
+import com.google.common.collect.Lists;
+import hudson.matrix.Axis;
+import hudson.matrix.AxisList;
+import hudson.matrix.MatrixConfiguration;
+import hudson.matrix.MatrixProject;
+import hudson.model.FreeStyleProject;
+import org.junit.Test;
+import org.jvnet.hudson.test.HudsonTestCase;
+
+import java.io.File;
+import java.util.List;
+
+public class ConfigOnlyTest extends HudsonTestCase {
+
+    @Test
+    public void testNestedItemConfigsAreFound() throws Exception {
+        // The configurations of a matrix project are items stored below the project, not in the jobs directory
+        MatrixProject project = createMatrixProject("matrix");
+        project.setAxes(new AxisList(new Axis("axis", "a", "b")));
+        FreeStyleProject job = createFreeStyleProject("job");
+
+        List<File> files = Lists.newArrayList(new ConfigOnly(true).getFilesToBackup());
+
+        assertTrue(files.contains(project.getConfigFile().getFile()));
+        assertTrue(files.contains(job.getConfigFile().getFile()));
+        assertEquals(2, project.getItems().size());
+        for (MatrixConfiguration configuration : project.getItems()) {
+            File configFile = configuration.getConfigFile().getFile();
+            assertTrue(configFile.exists());
+            assertTrue(files.contains(configFile));
+        }
+    }
+
+    @Test
+    public void testMissingItemConfigIsSkipped() throws Exception {
+        FreeStyleProject job = createFreeStyleProject("job");
+        File configFile = job.getConfigFile().getFile();
+        assertTrue(configFile.delete());
+
+        assertFalse(Lists.newArrayList(new ConfigOnly(true).getFilesToBackup()).contains(configFile));
+    }
+}
@@ -0,0 +1,82 @@
+package org.jvnet.hudson.plugins.periodicbackup;
+
+import com.google.common.io.Files;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+public class DiffRestorePolicyTest extends TestCase {
+
+    @Test
+    public void testOnlyDifferencesAreRestored() throws Exception {
+        File tempDir = Files.createTempDir();
+        try {
+            File backupDir = new File(tempDir, "backup");
+            File hudsonRoot = new File(tempDir, "home");
+            long time = 1300000000000L;
+
+            write(new File(backupDir, "config.xml"), "config", time);
+            write(new File(hudsonRoot, "config.xml"), "config", time);
+            write(new File(backupDir, "jobs/job1/config.xml"), "backup", time);
+            write(new File(hudsonRoot, "jobs/job1/config.xml"), "changed", time);
+            write(new File(backupDir, "jobs/job2/config.xml"), "added", time);
+            write(new File(hudsonRoot, "jobs/job3/config.xml"), "deleted", time);
+            // Same size and time, only the checksum tells the difference
+            write(new File(backupDir, "secret.key"), "aaaa", time);
+            write(new File(hudsonRoot, "secret.key"), "bbbb", time);
+
+            DiffRestorePolicy policy = new DiffRestorePolicy(false);
+            policy.restore(backupDir, hudsonRoot, null);
+            assertEquals(1, policy.getFilesAdded());
+            assertEquals(1, policy.getFilesChanged());
+            assertEquals(1, policy.getFilesDeleted());
+            assertEquals(2, policy.getFilesUnchanged());
+            assertEquals("backup", FileUtils.readFileToString(new File(hudsonRoot, "jobs/job1/config.xml")));
+            assertEquals("added", FileUtils.readFileToString(new File(hudsonRoot, "jobs/job2/config.xml")));
+            assertFalse(new File(hudsonRoot, "jobs/job3/config.xml").exists());
+            assertEquals("bbbb", FileUtils.readFileToString(new File(hudsonRoot, "secret.key")));
+
+            policy = new DiffRestorePolicy(true);
+            policy.restore(backupDir, hudsonRoot, null);
+            assertEquals(1, policy.getFilesChanged());
+            assertEquals(0, policy.getFilesAdded() + policy.getFilesDeleted());
+            assertTrue(Arrays.equals(Files.toByteArray(new File(backupDir, "secret.key")),
+                    Files.toByteArray(new File(hudsonRoot, "secret.key"))));
+        } finally {
+            FileUtils.deleteDirectory(tempDir);
+        }
+    }
+
+    @Test
+    public void testFilesLeftOutOfTheBackupAreKept() throws Exception {
+        File tempDir = Files.createTempDir();
+        try {
+            File backupDir = new File(tempDir, "backup");
+            File hudsonRoot = new File(tempDir, "home");
+            long time = 1300000000000L;
+
+            write(new File(backupDir, "jobs/job1/config.xml"), "config", time);
+            write(new File(hudsonRoot, "jobs/job1/config.xml"), "config", time);
+            write(new File(hudsonRoot, "jobs/job1/builds/1/archive/artifact.jar"), "artifact", time);
+            write(new File(hudsonRoot, "jobs/job1/builds/1/log"), "deleted", time);
+
+            BackupFilter filter = new BackupFilter(hudsonRoot, Collections.<String>emptyList(), BackupFilter.REGENERABLE_DATA);
+            DiffRestorePolicy policy = new DiffRestorePolicy(false);
+            policy.restore(backupDir, hudsonRoot, filter);
+            assertEquals(1, policy.getFilesDeleted());
+            assertFalse(new File(hudsonRoot, "jobs/job1/builds/1/log").exists());
+            assertEquals("artifact", FileUtils.readFileToString(new File(hudsonRoot, "jobs/job1/builds/1/archive/artifact.jar")));
+        } finally {
+            FileUtils.deleteDirectory(tempDir);
+        }
+    }
+
+    private static void write(File file, String content, long lastModified) throws Exception {
+        FileUtils.writeStringToFile(file, content);
+        assertTrue(file.setLastModified(lastModified));
+    }
+}
@@ -0,0 +1,106 @@
+package org.jvnet.hudson.plugins.periodicbackup;
+
+import com.google.common.collect.Lists;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.List;
+
+public class FilePipelineTest extends TestCase {
+
+    @Test
+    public void testTakeReturnsAllFilesInOrder() throws Exception {
+        final List<File> files = Lists.newArrayList();
+        for (int i = 0; i < 100; i++) {
+            files.add(new File("file" + i));
+        }
+        FilePipeline pipeline = new FilePipeline(new TestFileManager(files, null), 3);
+        pipeline.start();
+
+        List<File> result = Lists.newArrayList();
+        File file;
+        while ((file = pipeline.take()) != null) {
+            result.add(file);
+        }
+
+        assertEquals(files, result);
+        assertNull(pipeline.take());
+    }
+
+    @Test
+    public void testScanFailureIsReported() throws Exception {
+        FilePipeline pipeline = new FilePipeline(new TestFileManager(Lists.newArrayList(new File("file")), new IllegalStateException("scan failed")), 3);
+        pipeline.start();
+
+        assertEquals(new File("file"), pipeline.take());
+        try {
+            pipeline.take();
+            fail("The failure of the scan should be reported");
+        } catch (PeriodicBackupException e) {
+            assertTrue(e.getMessage().contains("scan failed"));
+        }
+    }
+
+    @Test
+    public void testScanErrorIsRethrown() throws Exception {
+        StackOverflowError error = new StackOverflowError("too deep");
+        FilePipeline pipeline = new FilePipeline(new TestFileManager(Lists.newArrayList(new File("file")), error), 3);
+        pipeline.start();
+
+        assertEquals(new File("file"), pipeline.take());
+        try {
+            pipeline.take();
+            fail("The error of the scan should be thrown again");
+        } catch (StackOverflowError e) {
+            assertSame(error, e);
+        }
+    }
+
+    private static class TestFileManager extends FileManager {
+
+        private final List<File> files;
+        private final Throwable failure;                                    // Thrown after the files, if not null
+
+        TestFileManager(List<File> files, Throwable failure) {
+            this.files = files;
+            this.failure = failure;
+        }
+
+        @Override
+        public Iterable<File> getFilesToBackup() throws PeriodicBackupException {
+            if (failure == null) {
+                return files;
+            }
+            return new Iterable<File>() {
+                public Iterator<File> iterator() {
+                    final Iterator<File> iterator = files.iterator();
+                    return new Iterator<File>() {
+                        public boolean hasNext() {
+                            return true;
+                        }
+
+                        public File next() {
+                            if (iterator.hasNext()) {
+                                return iterator.next();
+                            }
+                            if (failure instanceof Error) {
+                                throw (Error) failure;
+                            }
+                            throw (RuntimeException) failure;
+                        }
+
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+            };
+        }
+
+        public String getDisplayName() {
+            return "TestFileManager";
+        }
+    }
+}
@@ -1,8 +1,11 @@
 package org.jvnet.hudson.plugins.periodicbackup;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
 import com.google.common.io.Resources;
 
+import org.apache.commons.io.FileUtils;
 import org.junit.Test;
 import org.jvnet.hudson.test.HudsonTestCase;
 
@@ -10,6 +13,8 @@ import java.io.File;
 import java.io.IOException;
 import java.util.Date;
 import java.util.List;
+import java.util.Random;
+import java.util.Set;
 
 /**
  * Created by IntelliJ IDEA.
@@ -48,7 +53,7 @@ public class LocalDirectoryTest extends HudsonTestCase {
         assertTrue(backupObjectFileInLocation.exists());
         assertEquals(backupObjectFileInLocation.getUsableSpace(), backupObjectFile.getUsableSpace());
         File[] filesInLocation = destination.listFiles();
-        assertTrue(filesInLocation.length == 4);  //2 archives + backup object file + dummy == 4
+        assertTrue(filesInLocation.length == 5);  //2 archives + backup object file + catalog + dummy == 5
 
         for(File f : filesInLocation) {
             if(!f.delete()) {
@@ -72,4 +77,76 @@ public class LocalDirectoryTest extends HudsonTestCase {
         assertTrue(expectedResult.exists());
 
     }
+
+    @Test
+    public void testUnreferencedChunksAreDeleted() throws Exception {
+        File tempDir = Files.createTempDir();
+        try {
+            File root = new File(tempDir, "root");
+            File kept = new File(root, "kept");
+            File removed = new File(root, "removed");
+            writeRandomFile(kept, 1);
+            writeRandomFile(removed, 2);
+            File locationDir = new File(tempDir, "location");
+            assertTrue(locationDir.mkdirs());
+            LocalDirectory localDirectory = new LocalDirectory(locationDir, true);
+
+            Date firstDate = new Date(1000000000000L);
+            Date secondDate = new Date(1000000100000L);
+            BackupObject first = storeChunkBackup(localDirectory, root, firstDate, kept, removed);
+            storeChunkBackup(localDirectory, root, secondDate, kept);
+            Set<String> firstChunks = ChunkStorage.getReferencedChunks(getIndex(locationDir, firstDate));
+            Set<String> secondChunks = ChunkStorage.getReferencedChunks(getIndex(locationDir, secondDate));
+            Set<String> unreferencedChunks = Sets.newHashSet(firstChunks);
+            unreferencedChunks.removeAll(secondChunks);
+            assertFalse(secondChunks.isEmpty());
+            assertFalse(unreferencedChunks.isEmpty());
+            for (String chunk : firstChunks) {
+                assertTrue(localDirectory.hasChunk(chunk));
+            }
+
+            localDirectory.deleteBackupFiles(first);
+
+            // Only the chunks of the file which is not in the second backup anymore are deleted
+            for (String chunk : secondChunks) {
+                assertTrue(localDirectory.hasChunk(chunk));
+            }
+            for (String chunk : unreferencedChunks) {
+                assertFalse(localDirectory.hasChunk(chunk));
+            }
+        } finally {
+            FileUtils.deleteDirectory(tempDir);
+        }
+    }
+
+    private static BackupObject storeChunkBackup(LocalDirectory localDirectory, File root, Date timestamp, File... files) throws Exception {
+        File archiveDir = Files.createTempDir();
+        try {
+            String fileNameBase = Util.generateFileNameBase(timestamp);
+            ChunkStorage storage = new ChunkStorage();
+            storage.setTargetLocations(Lists.<Location>newArrayList(localDirectory));
+            storage.backupStart(archiveDir, root, fileNameBase);
+            for (File file : files) {
+                storage.backupAddFile(file);
+            }
+            Iterable<File> archives = storage.backupStop();
+            BackupObject backupObject = new BackupObject(new FullBackup(), storage, localDirectory, timestamp);
+            File backupObjectFile = Util.createBackupObjectFile(backupObject, archiveDir.getAbsolutePath(), fileNameBase);
+            localDirectory.storeBackupInLocation(archives, backupObjectFile);
+            return backupObject;
+        } finally {
+            FileUtils.deleteDirectory(archiveDir);
+        }
+    }
+
+    private static File getIndex(File locationDir, Date timestamp) {
+        return new File(locationDir, Util.createFileName(Util.generateFileNameBase(timestamp), ChunkStorage.INDEX_EXTENSION));
+    }
+
+    private static void writeRandomFile(File file, long seed) throws IOException {
+        byte[] content = new byte[1024 * 1024];
+        new Random(seed).nextBytes(content);
+        Files.createParentDirs(file);
+        Files.write(content, file);
+    }
 }
@@ -0,0 +1,112 @@
+package org.jvnet.hudson.plugins.periodicbackup;
+
+import com.google.common.io.Files;
+import junit.framework.TestCase;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.codehaus.plexus.archiver.zip.ZipUnArchiver;
+import org.codehaus.plexus.logging.console.ConsoleLogger;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class ParallelDeflaterTest extends TestCase {
+
+    @Test
+    public void testArchiveCanBeExtracted() throws Exception {
+        File tempDir = Files.createTempDir();
+        ExecutorService blockCompressor = Executors.newFixedThreadPool(3);
+        try {
+            // Repeated random words, so that the blocks refer to the data of the previous ones
+            Random random = new Random(42);
+            byte[][] words = new byte[50][];
+            for (int i = 0; i < words.length; i++) {
+                words[i] = new byte[5 + random.nextInt(10)];
+                random.nextBytes(words[i]);
+            }
+            byte[] content = new byte[1000000];
+            int position = 0;
+            while (position < content.length) {
+                byte[] word = words[random.nextInt(words.length)];
+                int length = Math.min(word.length, content.length - position);
+                System.arraycopy(word, 0, content, position, length);
+                position += length;
+            }
+            File file = new File(tempDir, "big.bin");
+            Files.write(content, file);
+            File archive = new File(tempDir, "big.zip");
+
+            ParallelDeflater deflater = new ParallelDeflater(blockCompressor, 64 * 1024, 4);
+            OutputStream out = new FileOutputStream(archive);
+            try {
+                deflater.createArchive(file, "jobs/big.bin", out);
+            } finally {
+                out.close();
+            }
+            assertEquals(content.length, deflater.getSize());
+            assertTrue(deflater.getCompressedSize() < content.length);
+
+            File extractDir = new File(tempDir, "extracted");
+            assertTrue(extractDir.mkdir());
+            ZipUnArchiver unarchiver = new ZipUnArchiver();
+            unarchiver.enableLogging(new ConsoleLogger(org.codehaus.plexus.logging.Logger.LEVEL_INFO, "UnArchiver"));
+            unarchiver.setSourceFile(archive);
+            unarchiver.setDestDirectory(extractDir);
+            unarchiver.extract();
+
+            assertTrue(Arrays.equals(content, Files.toByteArray(new File(extractDir, "jobs/big.bin"))));
+        } finally {
+            blockCompressor.shutdownNow();
+            FileUtils.deleteDirectory(tempDir);
+        }
+    }
+
+    @Test
+    public void testZip64ArchiveCanBeRead() throws Exception {
+        File tempDir = Files.createTempDir();
+        ExecutorService blockCompressor = Executors.newFixedThreadPool(2);
+        try {
+            byte[] content = new byte[300000];
+            new Random(7).nextBytes(content);
+            File file = new File(tempDir, "big.bin");
+            Files.write(content, file);
+            File archive = new File(tempDir, "big.zip");
+
+            ParallelDeflater deflater = new ParallelDeflater(blockCompressor, 64 * 1024, 4);
+            deflater.zip64Threshold = 0;
+            OutputStream out = new FileOutputStream(archive);
+            try {
+                deflater.createArchive(file, "jobs/big.bin", out);
+            } finally {
+                out.close();
+            }
+
+            ZipFile zipFile = new ZipFile(archive);
+            try {
+                ZipArchiveEntry entry = zipFile.getEntry("jobs/big.bin");
+                assertNotNull(entry);
+                assertEquals(content.length, entry.getSize());
+                InputStream in = zipFile.getInputStream(entry);
+                try {
+                    assertTrue(Arrays.equals(content, IOUtils.toByteArray(in)));
+                } finally {
+                    in.close();
+                }
+            } finally {
+                zipFile.close();
+            }
+        } finally {
+            blockCompressor.shutdownNow();
+            FileUtils.deleteDirectory(tempDir);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package org.jvnet.hudson.plugins.periodicbackup;
+
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import hudson.os.PosixAPI;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+
+public class ParallelFileWalkerTest extends TestCase {
+
+    @Test
+    public void testAllFilesAreFound() throws Exception {
+        File rootDir = Files.createTempDir();
+        try {
+            Set<File> expected = Sets.newHashSet();
+            for (int i = 0; i < 5; i++) {
+                for (int j = 0; j < 4; j++) {
+                    File directory = new File(rootDir, "jobs/job" + i + "/builds/" + j);
+                    assertTrue(directory.mkdirs());
+                    for (int k = 0; k < 3; k++) {
+                        File file = new File(directory, "file" + k);
+                        Files.write(new byte[k], file);
+                        expected.add(file);
+                    }
+                }
+            }
+            assertTrue(new File(rootDir, "empty").mkdir());
+            File config = new File(rootDir, "config.xml");
+            Files.write(new byte[1], config);
+            expected.add(config);
+
+            // A small queue makes the listing threads wait for the consumer
+            Set<File> found = Sets.newHashSet();
+            for (File file : new ParallelFileWalker(rootDir, 3, 2, null, null)) {
+                assertTrue(found.add(file));
+            }
+            assertEquals(expected, found);
+        } finally {
+            FileUtils.deleteDirectory(rootDir);
+        }
+    }
+
+    @Test
+    public void testEmptyDirectory() throws Exception {
+        File rootDir = Files.createTempDir();
+        try {
+            assertFalse(new ParallelFileWalker(rootDir, 2).iterator().hasNext());
+        } finally {
+            FileUtils.deleteDirectory(rootDir);
+        }
+    }
+
+    @Test
+    public void testLinkToParentDirectoryIsNotFollowed() throws Exception {
+        File rootDir = Files.createTempDir();
+        File loop = new File(rootDir, "jobs/loop");
+        try {
+            File config = new File(rootDir, "jobs/config.xml");
+            Files.createParentDirs(config);
+            Files.write(new byte[1], config);
+            assertEquals(0, PosixAPI.get().symlink("..", loop.getPath()));
+
+            Set<File> found = Sets.newHashSet();
+            for (File file : new ParallelFileWalker(rootDir, 2, 16, null, null)) {
+                assertTrue(found.add(file));
+            }
+            assertEquals(Sets.newHashSet(config), found);
+        } finally {
+            loop.delete();
+            FileUtils.deleteDirectory(rootDir);
+        }
+    }
+
+    @Test
+    public void testLinkLoopIsNotFollowedWithoutLstat() throws Exception {
+        File rootDir = Files.createTempDir();
+        File loop = new File(rootDir, "jobs/loop");
+        try {
+            File config = new File(rootDir, "jobs/config.xml");
+            Files.createParentDirs(config);
+            Files.write(new byte[1], config);
+            assertEquals(0, PosixAPI.get().symlink("..", loop.getPath()));
+
+            // Both walkers, with and without the native lstat()
+            for (boolean lstatSupported : new boolean[] {true, false}) {
+                BackupLinks.setLstatSupported(lstatSupported);
+                try {
+                    assertEquals(Sets.newHashSet(config), walk(new ParallelFileWalker(rootDir, 2, 16, null, null).iterator()));
+                    BackupFilter filter = new BackupFilter(rootDir, Collections.<String>emptyList(), Collections.<String>emptyList());
+                    Set<File> found = walk(new FullBackup.FileTreeIterator(rootDir, filter, new BackupLinks(rootDir, filter)));
+                    assertEquals(Sets.newHashSet(config), found);
+                } finally {
+                    BackupLinks.setLstatSupported(true);
+                }
+            }
+        } finally {
+            loop.delete();
+            FileUtils.deleteDirectory(rootDir);
+        }
+    }
+
+    private static Set<File> walk(Iterator<File> files) {
+        Set<File> found = Sets.newHashSet();
+        while (files.hasNext()) {
+            assertTrue(found.add(files.next()));
+        }
+        return found;
+    }
+}
@@ -0,0 +1,87 @@
+package org.jvnet.hudson.plugins.periodicbackup;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import hudson.os.PosixAPI;
+import junit.framework.TestCase;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+
+public class SnapshotDirectoryTest extends TestCase {
+
+    private static final long T = 1200000000000L;
+
+    @Test
+    public void testUnchangedFilesAreLinkedToThePreviousSnapshot() throws Exception {
+        File tempDir = Files.createTempDir();
+        try {
+            File first = new File(tempDir, "first.zip");
+            writeArchive(first, new String[] {"config.xml", "jobs/a/config.xml", "jobs/b/config.xml"}, new String[] {"1", "a1", "b1"}, new long[] {T, T, T});
+            File firstSnapshot = new File(tempDir, "snapshot1");
+            SnapshotDirectory.createSnapshot(Lists.newArrayList(first), firstSnapshot, null, false, Lists.<String>newArrayList());
+
+            // Full backup: jobs/a changed and jobs/b was deleted, unchanged files are recognized by their size and modification time
+            File second = new File(tempDir, "second.zip");
+            writeArchive(second, new String[] {"config.xml", "jobs/a/config.xml"}, new String[] {"1", "a2"}, new long[] {T, T + 2000});
+            File secondSnapshot = new File(tempDir, "snapshot2");
+            SnapshotDirectory.createSnapshot(Lists.newArrayList(second), secondSnapshot, firstSnapshot, false, Lists.<String>newArrayList());
+
+            assertEquals(inode(new File(firstSnapshot, "config.xml")), inode(new File(secondSnapshot, "config.xml")));
+            assertEquals("a2", FileUtils.readFileToString(new File(secondSnapshot, "jobs/a/config.xml")));
+            assertEquals("a1", FileUtils.readFileToString(new File(firstSnapshot, "jobs/a/config.xml")));
+            assertFalse(new File(secondSnapshot, "jobs/b/config.xml").exists());
+
+            // Incremental backup: only jobs/c was added and config.xml deleted
+            File third = new File(tempDir, "third.zip");
+            writeArchive(third, new String[] {"jobs/c/config.xml"}, new String[] {"c1"}, new long[] {T + 4000});
+            File thirdSnapshot = new File(tempDir, "snapshot3");
+            SnapshotDirectory.createSnapshot(Lists.newArrayList(third), thirdSnapshot, secondSnapshot, true, Lists.newArrayList("config.xml"));
+
+            assertEquals(inode(new File(secondSnapshot, "jobs/a/config.xml")), inode(new File(thirdSnapshot, "jobs/a/config.xml")));
+            assertEquals("c1", FileUtils.readFileToString(new File(thirdSnapshot, "jobs/c/config.xml")));
+            assertFalse(new File(thirdSnapshot, "config.xml").exists());
+        } finally {
+            FileUtils.deleteDirectory(tempDir);
+        }
+    }
+
+    @Test
+    public void testOnlyTheTargetSnapshotIsRestored() throws Exception {
+        File tempDir = Files.createTempDir();
+        try {
+            // The snapshots the incremental backup is based upon are not even looked up
+            SnapshotDirectory location = new SnapshotDirectory(tempDir, true);
+            BackupObject incremental = new BackupObject(new FullBackup(), new ZipStorage(false, 0), location,
+                    new Date(T + 2000), new Date(T), Lists.<String>newArrayList());
+
+            assertEquals(Lists.newArrayList(incremental), RestoreExecutor.getBackupChain(incremental));
+        } finally {
+            FileUtils.deleteDirectory(tempDir);
+        }
+    }
+
+    private static long inode(File file) {
+        return PosixAPI.get().stat(file.getPath()).ino();
+    }
+
+    private static void writeArchive(File archive, String[] names, String[] contents, long[] times) throws IOException {
+        ZipArchiveOutputStream out = new ZipArchiveOutputStream(archive);
+        try {
+            for (int i = 0; i < names.length; i++) {
+                ZipArchiveEntry entry = new ZipArchiveEntry(names[i]);
+                entry.setTime(times[i]);
+                out.putArchiveEntry(entry);
+                out.write(contents[i].getBytes("UTF-8"));
+                out.closeArchiveEntry();
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
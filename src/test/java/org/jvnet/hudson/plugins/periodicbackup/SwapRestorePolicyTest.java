@@ -0,0 +1,103 @@
+package org.jvnet.hudson.plugins.periodicbackup;
+
+import com.google.common.io.Files;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Collections;
+
+public class SwapRestorePolicyTest extends TestCase {
+
+    @Test
+    public void testSwapAndRollback() throws Exception {
+        File tempDir = Files.createTempDir();
+        SwapRestorePolicy policy = new SwapRestorePolicy();
+        try {
+            File hudsonRoot = new File(tempDir, "home");
+            File backupDir = new File(tempDir, "backup");
+            FileUtils.writeStringToFile(new File(hudsonRoot, "config.xml"), "old");
+            FileUtils.writeStringToFile(new File(hudsonRoot, "jobs/job1/config.xml"), "old");
+            FileUtils.writeStringToFile(new File(hudsonRoot, "users/user1/config.xml"), "old");
+            FileUtils.writeStringToFile(new File(hudsonRoot, "logs/log"), "kept");
+            FileUtils.writeStringToFile(new File(backupDir, "config.xml"), "new");
+            FileUtils.writeStringToFile(new File(backupDir, "jobs/job2/config.xml"), "new");
+
+            policy.restore(backupDir, hudsonRoot);
+            assertEquals("new", FileUtils.readFileToString(new File(hudsonRoot, "config.xml")));
+            assertEquals("new", FileUtils.readFileToString(new File(hudsonRoot, "jobs/job2/config.xml")));
+            assertFalse(new File(hudsonRoot, "jobs/job1").exists());
+            assertFalse(new File(hudsonRoot, "users").exists());
+            assertEquals("kept", FileUtils.readFileToString(new File(hudsonRoot, "logs/log")));
+
+            policy.restoreFinished(false);
+            assertEquals("old", FileUtils.readFileToString(new File(hudsonRoot, "config.xml")));
+            assertEquals("old", FileUtils.readFileToString(new File(hudsonRoot, "jobs/job1/config.xml")));
+            assertEquals("old", FileUtils.readFileToString(new File(hudsonRoot, "users/user1/config.xml")));
+            assertFalse(new File(hudsonRoot, "jobs/job2").exists());
+        } finally {
+            policy.awaitCleaners();
+            FileUtils.deleteDirectory(tempDir);
+        }
+    }
+
+    @Test
+    public void testPreviousFilesAreKeptUntilTheNextRestore() throws Exception {
+        File tempDir = Files.createTempDir();
+        SwapRestorePolicy policy = new SwapRestorePolicy();
+        try {
+            File hudsonRoot = new File(tempDir, "home");
+            FileUtils.writeStringToFile(new File(hudsonRoot, "config.xml"), "old");
+            File backupDir = new File(tempDir, "backup");
+            FileUtils.writeStringToFile(new File(backupDir, "config.xml"), "first");
+            policy.restore(backupDir, hudsonRoot);
+            policy.restoreFinished(true);
+            policy.awaitCleaners();
+            File firstPrevious = SwapRestorePolicy.getPreviousTree(hudsonRoot);
+            assertNotNull(firstPrevious);
+            assertEquals("old", FileUtils.readFileToString(new File(firstPrevious, "config.xml")));
+
+            // The timestamps of the previous trees have a millisecond resolution
+            Thread.sleep(2);
+            FileUtils.writeStringToFile(new File(backupDir, "config.xml"), "second");
+            policy.restore(backupDir, hudsonRoot);
+            policy.restoreFinished(true);
+            policy.awaitCleaners();
+            assertFalse(firstPrevious.exists());
+            assertEquals("second", FileUtils.readFileToString(new File(hudsonRoot, "config.xml")));
+
+            // A successful restore can still be rolled back by hand
+            policy.rollback(hudsonRoot);
+            policy.awaitCleaners();
+            assertEquals("first", FileUtils.readFileToString(new File(hudsonRoot, "config.xml")));
+            assertNull(SwapRestorePolicy.getPreviousTree(hudsonRoot));
+        } finally {
+            policy.awaitCleaners();
+            FileUtils.deleteDirectory(tempDir);
+        }
+    }
+
+    @Test
+    public void testBackupWithExcludesIsNotSwapped() throws Exception {
+        File tempDir = Files.createTempDir();
+        SwapRestorePolicy policy = new SwapRestorePolicy();
+        try {
+            File hudsonRoot = new File(tempDir, "home");
+            File backupDir = new File(tempDir, "backup");
+            FileUtils.writeStringToFile(new File(hudsonRoot, "jobs/job1/config.xml"), "old");
+            FileUtils.writeStringToFile(new File(hudsonRoot, "jobs/job1/workspace/file"), "kept");
+            FileUtils.writeStringToFile(new File(backupDir, "jobs/job1/config.xml"), "restored");
+
+            BackupFilter filter = new BackupFilter(hudsonRoot, Collections.<String>emptyList(), BackupFilter.REGENERABLE_DATA);
+            policy.restore(backupDir, hudsonRoot, filter);
+            policy.restoreFinished(false);
+            assertEquals("restored", FileUtils.readFileToString(new File(hudsonRoot, "jobs/job1/config.xml")));
+            assertEquals("kept", FileUtils.readFileToString(new File(hudsonRoot, "jobs/job1/workspace/file")));
+            assertNull(SwapRestorePolicy.getPreviousTree(hudsonRoot));
+        } finally {
+            policy.awaitCleaners();
+            FileUtils.deleteDirectory(tempDir);
+        }
+    }
+}
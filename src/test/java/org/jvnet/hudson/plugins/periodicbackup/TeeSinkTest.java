@@ -0,0 +1,131 @@
+package org.jvnet.hudson.plugins.periodicbackup;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class TeeSinkTest extends TestCase {
+
+    @Test
+    public void testFailingSinkIsLeftOut() throws Exception {
+        File tempDir = Files.createTempDir();
+        try {
+            DirectorySink directorySink = new DirectorySink(tempDir);
+            BackupSink failingSink = new BackupSink() {
+                public OutputStream openArchive(String archiveName) throws IOException {
+                    return new OutputStream() {
+                        @Override
+                        public void write(int b) throws IOException {
+                            throw new IOException("disk full");
+                        }
+                    };
+                }
+
+                public void commit(File backupObjectFile) throws IOException {
+                    fail("The failed sink should not be committed");
+                }
+
+                public void abort() {
+                }
+            };
+            TeeSink teeSink = new TeeSink(Lists.newArrayList(directorySink, failingSink));
+
+            OutputStream out = teeSink.openArchive("archive.zip");
+            out.write(new byte[] {1, 2, 3});
+            out.close();
+            assertFalse(new File(tempDir, "archive.zip").exists());
+            teeSink.commit(null);
+
+            assertNull(teeSink.getFailure(directorySink));
+            assertNotNull(teeSink.getFailure(failingSink));
+            assertEquals(3, new File(tempDir, "archive.zip").length());
+        } finally {
+            FileUtils.deleteDirectory(tempDir);
+        }
+    }
+
+    @Test
+    public void testSlowSinkDoesNotHoldUpTheOthers() throws Exception {
+        final CountDownLatch slowSinkReleased = new CountDownLatch(1);
+        final ByteArrayOutputStream slowArchive = new ByteArrayOutputStream();
+        final ByteArrayOutputStream fastArchive = new ByteArrayOutputStream();
+        BackupSink slowSink = new MemorySink(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                try {
+                    slowSinkReleased.await();
+                } catch (InterruptedException e) {
+                    throw new IOException("interrupted");
+                }
+                slowArchive.write(b, off, len);
+            }
+        });
+        BackupSink fastSink = new MemorySink(fastArchive);
+        TeeSink teeSink = new TeeSink(Lists.<BackupSink>newArrayList(slowSink, fastSink), 8);
+
+        // Four blocks fit in the buffer of the slow sink, so they are all written before it catches up
+        byte[] data = new byte[4 * TeeSink.BLOCK_SIZE];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        OutputStream out = teeSink.openArchive("archive.zip");
+        out.write(data);
+        while (size(fastArchive) < data.length && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(data.length, size(fastArchive));
+        assertEquals(0, size(slowArchive));
+
+        slowSinkReleased.countDown();
+        out.close();
+        teeSink.commit(null);
+        assertNull(teeSink.getFailure(slowSink));
+        assertNull(teeSink.getFailure(fastSink));
+        assertTrue(Arrays.equals(data, slowArchive.toByteArray()));
+        assertTrue(Arrays.equals(data, fastArchive.toByteArray()));
+    }
+
+    private static int size(ByteArrayOutputStream archive) {
+        synchronized (archive) {
+            return archive.size();
+        }
+    }
+
+    /**
+     * Sink writing its only archive into the given stream
+     */
+    private static class MemorySink implements BackupSink {
+
+        private final OutputStream archive;
+
+        MemorySink(OutputStream archive) {
+            this.archive = archive;
+        }
+
+        public OutputStream openArchive(String archiveName) throws IOException {
+            return archive;
+        }
+
+        public void commit(File backupObjectFile) throws IOException {
+        }
+
+        public void abort() {
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package org.jvnet.hudson.plugins.periodicbackup;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+
+public class VolumePipelineTest extends TestCase {
+
+    @Test
+    public void testVolumesAreRetrievedWhileConsumed() throws Exception {
+        File locationDir = Files.createTempDir();
+        File tempDir = Files.createTempDir();
+        try {
+            List<String> volumes = Lists.newArrayList();
+            for (int i = 1; i <= 5; i++) {
+                String volume = "backup_" + i + ".zip";
+                Files.write(new byte[i], new File(locationDir, volume));
+                volumes.add(volume);
+            }
+            LocalDirectory location = new LocalDirectory(locationDir, true);
+            BackupObject backup = new BackupObject(new FullBackup(), new ZipStorage(false, 0), location, new Date());
+
+            VolumePipeline pipeline = new VolumePipeline(backup, volumes, tempDir, 1);
+            pipeline.start();
+            List<String> retrieved = Lists.newArrayList();
+            for (File archive : pipeline) {
+                retrieved.add(archive.getName());
+                // The archive being consumed, one waiting in the queue and one being retrieved
+                assertTrue(tempDir.list().length <= 3);
+                assertTrue(archive.delete());
+            }
+            pipeline.cancel();
+            assertNull(pipeline.getRetrieveFailure());
+            assertEquals(volumes, retrieved);
+            assertEquals(1 + 2 + 3 + 4 + 5, pipeline.getRetrievedBytes());
+        } finally {
+            FileUtils.deleteDirectory(locationDir);
+            FileUtils.deleteDirectory(tempDir);
+        }
+    }
+
+    @Test
+    public void testRetrievalFailureEndsTheIteration() throws Exception {
+        File locationDir = Files.createTempDir();
+        File tempDir = Files.createTempDir();
+        try {
+            List<String> volumes = createVolumes(locationDir);
+            LocalDirectory location = new LocalDirectory(locationDir, true) {
+                @Override
+                public File retrieveVolumeFromLocation(BackupObject backup, String volume, File tempDir) throws IOException, PeriodicBackupException {
+                    if(volume.equals("backup_3.zip")) {
+                        throw new IOException("Volume not readable");
+                    }
+                    return super.retrieveVolumeFromLocation(backup, volume, tempDir);
+                }
+            };
+            BackupObject backup = new BackupObject(new FullBackup(), new ZipStorage(false, 0), location, new Date());
+
+            VolumePipeline pipeline = new VolumePipeline(backup, volumes, tempDir, 1);
+            pipeline.start();
+            List<String> retrieved = Lists.newArrayList();
+            for (File archive : pipeline) {
+                retrieved.add(archive.getName());
+                assertTrue(archive.delete());
+            }
+            pipeline.cancel();
+            assertNotNull(pipeline.getRetrieveFailure());
+            assertEquals(volumes.subList(0, 2), retrieved);
+            assertEquals(0, tempDir.list().length);
+        } finally {
+            FileUtils.deleteDirectory(locationDir);
+            FileUtils.deleteDirectory(tempDir);
+        }
+    }
+
+    @Test
+    public void testCancelWaitsForTheRetrievalAndDeletesTheArchives() throws Exception {
+        File locationDir = Files.createTempDir();
+        File tempDir = Files.createTempDir();
+        try {
+            List<String> volumes = createVolumes(locationDir);
+            BackupObject backup = new BackupObject(new FullBackup(), new ZipStorage(false, 0), new LocalDirectory(locationDir, true), new Date());
+
+            VolumePipeline pipeline = new VolumePipeline(backup, volumes, tempDir, 1);
+            pipeline.start();
+            Iterator<File> archives = pipeline.iterator();
+            assertTrue(archives.next().delete());
+            pipeline.cancel();
+
+            // Nothing is retrieved after cancel() has returned
+            assertEquals(0, tempDir.list().length);
+            assertFalse(archives.hasNext());
+        } finally {
+            FileUtils.deleteDirectory(locationDir);
+            FileUtils.deleteDirectory(tempDir);
+        }
+    }
+
+    private static List<String> createVolumes(File locationDir) throws IOException {
+        List<String> volumes = Lists.newArrayList();
+        for (int i = 1; i <= 5; i++) {
+            String volume = "backup_" + i + ".zip";
+            Files.write(new byte[i], new File(locationDir, volume));
+            volumes.add(volume);
+        }
+        return volumes;
+    }
+}
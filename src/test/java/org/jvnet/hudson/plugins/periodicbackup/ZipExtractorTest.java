@@ -0,0 +1,114 @@
+package org.jvnet.hudson.plugins.periodicbackup;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import junit.framework.TestCase;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class ZipExtractorTest extends TestCase {
+
+    @Test
+    public void testEntriesAreExtractedWithTheirModificationTime() throws Exception {
+        File tempDir = Files.createTempDir();
+        ExecutorService workers = Executors.newFixedThreadPool(4);
+        try {
+            File archive = new File(tempDir, "archive.zip");
+            ZipArchiveOutputStream out = new ZipArchiveOutputStream(archive);
+            try {
+                ZipArchiveEntry directory = new ZipArchiveEntry("jobs/");
+                directory.setTime(1000000000000L);
+                out.putArchiveEntry(directory);
+                out.closeArchiveEntry();
+                for (int i = 0; i < 100; i++) {
+                    ZipArchiveEntry entry = new ZipArchiveEntry("jobs/job" + i + "/builds/" + i + "/log");
+                    entry.setTime(1200000000000L + i * 2000L);
+                    out.putArchiveEntry(entry);
+                    out.write(("log of build " + i).getBytes("UTF-8"));
+                    out.closeArchiveEntry();
+                }
+            } finally {
+                out.close();
+            }
+
+            File destination = new File(tempDir, "destination");
+            new ZipExtractor(workers, 4).extract(archive, destination);
+
+            for (int i = 0; i < 100; i++) {
+                File log = new File(destination, "jobs/job" + i + "/builds/" + i + "/log");
+                assertEquals("log of build " + i, FileUtils.readFileToString(log, "UTF-8"));
+                assertEquals(1200000000000L + i * 2000L, log.lastModified());
+            }
+            assertEquals(1000000000000L, new File(destination, "jobs").lastModified());
+        } finally {
+            workers.shutdownNow();
+            FileUtils.deleteDirectory(tempDir);
+        }
+    }
+
+    @Test
+    public void testOnlySelectedEntriesAreExtracted() throws Exception {
+        File tempDir = Files.createTempDir();
+        ExecutorService workers = Executors.newFixedThreadPool(2);
+        try {
+            File archive = new File(tempDir, "archive.zip");
+            ZipArchiveOutputStream out = new ZipArchiveOutputStream(archive);
+            try {
+                for (String name : Lists.newArrayList("config.xml", "jobs/a/config.xml", "jobs/a/builds/1/log", "jobs/b/config.xml")) {
+                    out.putArchiveEntry(new ZipArchiveEntry(name));
+                    out.write(name.getBytes("UTF-8"));
+                    out.closeArchiveEntry();
+                }
+            } finally {
+                out.close();
+            }
+
+            File destination = new File(tempDir, "destination");
+            BackupFilter selection = new BackupFilter(destination, Lists.newArrayList("jobs/*/config.xml"), Lists.<String>newArrayList());
+            assertEquals(2, new ZipExtractor(workers, 2).extract(archive, destination, selection));
+
+            assertEquals("jobs/a/config.xml", FileUtils.readFileToString(new File(destination, "jobs/a/config.xml"), "UTF-8"));
+            assertTrue(new File(destination, "jobs/b/config.xml").exists());
+            assertFalse(new File(destination, "config.xml").exists());
+            assertFalse(new File(destination, "jobs/a/builds").exists());
+        } finally {
+            workers.shutdownNow();
+            FileUtils.deleteDirectory(tempDir);
+        }
+    }
+
+    @Test
+    public void testEntriesOutsideOfTheDestinationAreRejected() throws Exception {
+        File tempDir = Files.createTempDir();
+        ExecutorService workers = Executors.newFixedThreadPool(2);
+        try {
+            File archive = new File(tempDir, "archive.zip");
+            ZipArchiveOutputStream out = new ZipArchiveOutputStream(archive);
+            try {
+                out.putArchiveEntry(new ZipArchiveEntry("../outside"));
+                out.write(1);
+                out.closeArchiveEntry();
+            } finally {
+                out.close();
+            }
+
+            try {
+                new ZipExtractor(workers, 2).extract(archive, new File(tempDir, "destination"));
+                fail("The entry should have been rejected");
+            } catch (IOException e) {
+                // expected
+            }
+            assertFalse(new File(tempDir, "outside").exists());
+        } finally {
+            workers.shutdownNow();
+            FileUtils.deleteDirectory(tempDir);
+        }
+    }
+}
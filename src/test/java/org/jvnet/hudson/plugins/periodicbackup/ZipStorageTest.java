@@ -1,15 +1,24 @@
 package org.jvnet.hudson.plugins.periodicbackup;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
 import com.google.common.io.Resources;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
 import org.codehaus.plexus.archiver.ArchiverException;
 import org.junit.Before;
 import org.junit.Test;
 import org.jvnet.hudson.test.HudsonTestCase;
+import org.kohsuke.stapler.StaplerRequest;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Created by IntelliJ IDEA.
@@ -100,4 +109,86 @@ public class ZipStorageTest extends HudsonTestCase {
 
 
     }
+
+    @Test
+    public void testVolumesAreCompressedInParallel() throws Exception {
+        File sourceDir = new File(hudson.getRootDir(), "parallel");
+        File archiveDir = Files.createTempDir();
+        File restoreDir = Files.createTempDir();
+        try {
+            // Every file fills a volume of its own, so that the volumes are compressed by several threads
+            ZipStorage storage = new ZipStorage(true, 1000, 4);
+            storage.backupStart(archiveDir.getAbsolutePath(), baseFileName);
+            for (int i = 0; i < 20; i++) {
+                File file = new File(sourceDir, "file" + i);
+                Files.createParentDirs(file);
+                FileUtils.writeStringToFile(file, StringUtils.repeat(Integer.toString(i), 800));
+                storage.backupAddFile(file);
+            }
+            List<File> archives = Lists.newArrayList(storage.backupStop());
+
+            assertEquals(20, archives.size());
+            for (File archive : archives) {
+                assertTrue(archive.exists());
+            }
+            storage.unarchiveFiles(archives, restoreDir);
+            for (int i = 0; i < 20; i++) {
+                File file = new File(restoreDir, "parallel/file" + i);
+                assertEquals(StringUtils.repeat(Integer.toString(i), 800), FileUtils.readFileToString(file));
+            }
+        } finally {
+            FileUtils.deleteDirectory(sourceDir);
+            FileUtils.deleteDirectory(archiveDir);
+            FileUtils.deleteDirectory(restoreDir);
+        }
+    }
+
+    @Test
+    public void testAbortedBackupStopsTheCompressingThreads() throws Exception {
+        ZipStorage storage = new ZipStorage(true, 1, 4);
+        File archiveDir = Files.createTempDir();
+        try {
+            storage.backupStart(archiveDir.getAbsolutePath(), baseFileName);
+            storage.backupAddFile(archive1);
+            storage.backupAddFile(archive2);
+            storage.backupAbort();
+
+            assertTrue(storage.isStopped());
+        } finally {
+            FileUtils.deleteDirectory(archiveDir);
+        }
+    }
+
+    @Test
+    public void testDescriptorKeepsTheSettingsWithoutMultiVolume() throws Exception {
+        // The volume size is left blank when multiVolume is not checked
+        Map<String, String> parameters = Maps.newHashMap();
+        parameters.put("volumeSize", "");
+        parameters.put("compressionThreads", "3");
+        parameters.put("parallelDeflateThreshold", "1000000");
+        parameters.put("parallelDeflateBlockSize", "65536");
+        parameters.put("compressionLevel", "9");
+        parameters.put("storedExtensions", "zip");
+        ZipStorage storage = (ZipStorage) hudson.getDescriptorByType(ZipStorage.DescriptorImpl.class).newInstance(request(parameters), null);
+
+        assertFalse(storage.isMultiVolume());
+        assertEquals(Long.MAX_VALUE, storage.getVolumeSize());
+        assertEquals(3, storage.getCompressionThreads());
+        assertEquals(1000000, storage.getParallelDeflateThreshold());
+        assertEquals(65536, storage.getParallelDeflateBlockSize());
+        assertEquals(9, storage.getCompressionLevel());
+        assertEquals("zip", storage.getStoredExtensions());
+    }
+
+    private static StaplerRequest request(final Map<String, String> parameters) {
+        return (StaplerRequest) Proxy.newProxyInstance(StaplerRequest.class.getClassLoader(), new Class<?>[] {StaplerRequest.class},
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (method.getName().equals("getParameter")) {
+                            return parameters.get((String) args[0]);
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
 }